@@ -8,9 +8,11 @@ import org.apache.commons.cli.ParseException;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.server.Server;
+import top.guoziyang.mydb.backend.tbm.Booter;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.vm.Vacuum;
 import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.backend.vm.VersionManagerImpl;
 import top.guoziyang.mydb.common.Error;
@@ -26,6 +28,7 @@ public class Launcher {
     public static final long KB = 1 << 10;
 	public static final long MB = 1 << 20;
 	public static final long GB = 1 << 30;
+    public static final long VACUUM_INTERVAL = 1000;
 
     public static void main(String[] args) throws ParseException {
         Options options = new Options();
@@ -57,10 +60,12 @@ public class Launcher {
     }
 
     private static void openDB(String path, long mem) {
+        Booter.checkFormat(path);
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
+        Vacuum.startDaemon(vm, VACUUM_INTERVAL);
         new Server(port, tbm).start();
     }
 
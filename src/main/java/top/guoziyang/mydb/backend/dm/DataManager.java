@@ -9,6 +9,16 @@ import top.guoziyang.mydb.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 插入到段 seg 的页面中，seg 为 null 时与 insert(xid, data) 相同
+    long insert(long xid, byte[] data, Segment seg) throws Exception;
+    Segment createSegment() throws Exception;
+    // 加载段，并将段中的页面移出公共的 PageIndex，需要在其他插入之前调用
+    Segment loadSegment(long uid) throws Exception;
+    // 页面中所有有效的 DataItem 的 UID，按槽号排列
+    long[] scanPage(int pgno) throws Exception;
+    void free(long uid) throws Exception;
+    // 设置 readers 之后，回收的槽在读者都结束之前不会被复用，见 Readers。没有设置时立即可以复用
+    void setReaders(Readers readers);
     void close();
 
     // 从空文件创建首先需要对第一页进行初始化
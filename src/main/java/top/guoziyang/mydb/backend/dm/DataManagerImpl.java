@@ -1,5 +1,8 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import top.guoziyang.mydb.backend.common.AbstractCache;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItemImpl;
@@ -11,6 +14,7 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageInfo;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Types;
 import top.guoziyang.mydb.common.Error;
@@ -22,6 +26,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    Map<Integer, Integer> pins;    // 每个页面上被缓存的 DataItem 个数
+    Map<Integer, Segment> owners;  // 属于某个段的页面
+    Map<Integer, Long> retiring;   // 有回收的槽、还可能被读者引用的页面，值为最近一次回收时的标记
+    Readers readers;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
@@ -29,6 +37,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.pins = new ConcurrentHashMap<>();
+        this.owners = new ConcurrentHashMap<>();
+        this.retiring = new ConcurrentHashMap<>();
     }
 
     // 根据 UID 从缓存中获取 DataItem，并校验有效位
@@ -43,7 +54,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     // insert() 方法，在 pageIndex 中获取一个足以存储插入内容的页面的页号，
-    // 获取页面后，首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回插入位置的偏移。
+    // 获取页面后，首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回插入位置的槽号。
     // 最后需要将页面信息重新插入 pageIndex
     @Override
     public long insert(long xid, byte[] data) throws Exception {
@@ -52,41 +63,226 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
+        // 选出的页面实际放不下时会以原来的空闲空间放回同一个区间，可能被再次选中，
+        // 所以每次尝试都计数，尝试失败或者没有合适的页面时直接插入新页
         for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
+            PageInfo pi = pIndex.select(raw.length);
+            if (pi == null) {
                 break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
             }
+            long uid = insertIntoPage(xid, pi, raw, pIndex);
+            if(uid != 0) {
+                return uid;
+            }
+        }
+        return insertIntoNewPage(xid, raw, null);
+    }
+
+    // 与 insert 相同，只是从段的 PageIndex 中选择页面，没有合适的页面时为段分配新页
+    @Override
+    public long insert(long xid, byte[] data, Segment seg) throws Exception {
+        if(seg == null) {
+            return insert(xid, data);
+        }
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        if(raw.length > PageX.MAX_FREE_SPACE) {
+            throw Error.DataTooLargeException;
         }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
+
+        for(int i = 0; i < 5; i ++) {
+            PageInfo pi = seg.pIndex.select(raw.length);
+            if (pi == null) {
+                return insertIntoNewPage(xid, raw, seg);
+            }
+            long uid = insertIntoPage(xid, pi, raw, seg.pIndex);
+            if(uid != 0) {
+                return uid;
+            }
         }
+        return insertIntoNewPage(xid, raw, seg);
+    }
 
-        Page pg = null;
-        int freeSpace = 0;
+    // 分配新页并插入数据，seg 为 null 时新页是公共页面。段的新页在插入之后才登记到段中，见 Segment
+    private long insertIntoNewPage(long xid, byte[] raw, Segment seg) throws Exception {
+        int pgno = pc.newPage(PageX.initRaw());
+        Page pg = pc.getPage(pgno);
+        int freeSpace;
+        long uid;
         try {
-            pg = pc.getPage(pi.pgno);
-            // 首先做日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            pg.lock();
+            try {
+                short slot = PageX.selectSlot(pg, false);
+                short offset = PageX.getInsertOffset(pg, raw.length);
+                logger.log(Recover.insertLog(xid, pg, slot, offset, raw));
+                PageX.insert(pg, raw, slot, offset);
+                freeSpace = PageX.getFreeSpace(pg);
+                uid = Types.addressToUid(pgno, slot);
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            pg.release();
+        }
+        if(seg == null) {
+            pIndex.add(pgno, freeSpace);
+            return uid;
+        }
+        seg.addPage(pgno);
+        owners.put(pgno, seg);
+        seg.pIndex.add(pgno, freeSpace);
+        return uid;
+    }
+
+    @Override
+    public Segment createSegment() throws Exception {
+        long uid = insert(TransactionManagerImpl.SUPER_XID, Segment.newExtentRaw());
+        return new Segment(this, uid);
+    }
 
-            // 执行插入操作
-            short offset = PageX.insert(pg, raw);
+    @Override
+    public Segment loadSegment(long uid) throws Exception {
+        Segment seg = new Segment(this, uid);
+        for (int pgno : seg.load()) {
+            owners.put(pgno, seg);
+            int freeSpace = pIndex.remove(pgno);
+            seg.pIndex.add(pgno, freeSpace < 0 ? 0 : freeSpace);
+        }
+        return seg;
+    }
 
+    @Override
+    public long[] scanPage(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        try {
+            short[] slots;
+            pg.lock();
+            try {
+                slots = PageX.liveSlots(pg);
+            } finally {
+                pg.unlock();
+            }
+            long[] uids = new long[slots.length];
+            for(int i = 0; i < slots.length; i ++) {
+                uids[i] = Types.addressToUid(pgno, slots[i]);
+            }
+            return uids;
+        } finally {
             pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+        }
+    }
+
+    // 向选中的页面插入数据，页面放不下时返回 0，用完后将页面归还到 index
+    // 连续空间不足但整理后足够时先整理页面，页面中还有被缓存的 DataItem 时不能整理，也不能复用空槽；
+    // 回收的槽还可能被读者引用时不能复用空槽
+    private long insertIntoPage(long xid, PageInfo pi, byte[] raw, PageIndex index) throws Exception {
+        Page pg = null;
+        int freeSpace = 0;
+        try {
+            pg = pc.getPage(pi.pgno);
+            pg.lock();
+            try {
+                boolean pinned = isPinned(pi.pgno);
+                boolean reuse = !pinned && !isRetiring(pi.pgno);
+                if(PageX.getContiguousFreeSpace(pg, reuse) < raw.length) {
+                    if(pinned || PageX.getFreeSpace(pg) < raw.length) {
+                        freeSpace = PageX.getContiguousFreeSpace(pg, reuse);
+                        return 0;
+                    }
+                    PageX.compact(pg, reuse);
+                    logger.log(Recover.compactLog(pg));
+                    // 不复用空槽时可能还需要一个新槽
+                    if(PageX.getContiguousFreeSpace(pg, reuse) < raw.length) {
+                        freeSpace = PageX.getContiguousFreeSpace(pg, reuse);
+                        return 0;
+                    }
+                }
+                short slot = PageX.selectSlot(pg, reuse);
+                short offset = PageX.getInsertOffset(pg, raw.length);
+                // 首先做日志
+                byte[] log = Recover.insertLog(xid, pg, slot, offset, raw);
+                logger.log(log);
 
+                // 执行插入操作
+                PageX.insert(pg, raw, slot, offset);
+                freeSpace = PageX.getFreeSpace(pg);
+                return Types.addressToUid(pi.pgno, slot);
+            } finally {
+                pg.unlock();
+            }
         } finally {
             // 将取出的pg重新插入pIndex
+            index.add(pi.pgno, freeSpace);
             if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+                pg.release();
+            }
+        }
+    }
+
+    // 回收一条 DataItem：将其有效位置为非法，之后 read() 不会再返回它
+    // 修改通过 before()/after() 落日志，保证崩溃后可以重做。所占空间在页面整理时回收
+    @Override
+    public void free(long uid) throws Exception {
+        // 先登记再置为非法，之后整理该页面的插入都能看到登记
+        Readers r = readers;
+        if(r != null) {
+            retiring.merge(Types.uidToPgno(uid), r.mark(), Math::max);
+        }
+        DataItem di = super.get(uid);
+        try {
+            di.before();
+            DataItem.setDataItemRawInvalid(di.getRaw());
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+
+        Page pg = pc.getPage(Types.uidToPgno(uid));
+        pg.lock();
+        try {
+            Segment seg = owners.get(pg.getPageNumber());
+            PageIndex index = seg == null ? pIndex : seg.pIndex;
+            index.update(pg.getPageNumber(), PageX.getFreeSpace(pg));
+        } finally {
+            pg.unlock();
+            pg.release();
+        }
+    }
+
+    @Override
+    public void setReaders(Readers readers) {
+        this.readers = readers;
+    }
+
+    // 页面中回收的槽是否还可能被读者引用，需持有页面锁
+    private boolean isRetiring(int pgno) {
+        Long mark = retiring.get(pgno);
+        if(mark == null) {
+            return false;
+        }
+        if(!readers.finished(mark)) {
+            return true;
+        }
+        retiring.remove(pgno, mark);
+        return false;
+    }
+
+    // 页面中是否有被缓存的 DataItem，需持有页面锁
+    private boolean isPinned(int pgno) {
+        Integer n = pins.get(pgno);
+        return n != null && n > 0;
+    }
+
+    private void pin(Page pg, int delta) {
+        pg.lock();
+        try {
+            int n = pins.getOrDefault(pg.getPageNumber(), 0) + delta;
+            if(n == 0) {
+                pins.remove(pg.getPageNumber());
             } else {
-                pIndex.add(pi.pgno, freeSpace);
+                pins.put(pg.getPageNumber(), n);
             }
+        } finally {
+            pg.unlock();
         }
     }
 
@@ -113,20 +309,27 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
 
-    // 从 key 中解析出页号，从 pageCache 中获取到页面，再根据偏移，解析出 DataItem
+    // 从 key 中解析出页号，从 pageCache 中获取到页面，再根据槽号，解析出 DataItem
+    // 被缓存的 DataItem 直接引用页面中的数据，所以在页面上计数，计数不为 0 的页面不能整理
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
+        short slot = Types.uidToSlot(uid);
+        int pgno = Types.uidToPgno(uid);
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        pg.lock();
+        try {
+            pin(pg, 1);
+            return DataItem.parseDataItem(pg, slot, this);
+        } finally {
+            pg.unlock();
+        }
     }
 
     // DataItem 缓存释放，需要将 DataItem 写回数据源，
     // 由于对文件的读写是以页为单位进行的，只需要将 DataItem 所在的页 release 即可
     @Override
     protected void releaseForCache(DataItem di) {
+        pin(di.page(), -1);
         di.page().release();
     }
 
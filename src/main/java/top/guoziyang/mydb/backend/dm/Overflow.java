@@ -0,0 +1,155 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.page.PageX;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * Overflow 将超过一页的大数据切分为多个溢出块，每块存储为一条 DataItem，串成单链表
+ * 溢出块结构：
+ * [NextUid] [Data]
+ * NextUid 为下一块的 UID，最后一块为 0
+ *
+ * 除最后一块外，每块都恰好占满一个空页，所以大数据独占自己的溢出页，不会和普通记录混在一起。
+ * 插入时从最后一块开始倒序插入，这样每一块写入时都已知下一块的 UID。
+ * 溢出块和普通 DataItem 一样通过 DM 插入，插入日志保证其原子性。溢出块写入后不再修改，读取时无需加锁。
+ * 溢出数据不再被任何版本引用时，由 vacuum 通过 free() 释放整条链（见 Vacuum）
+ */
+public class Overflow {
+
+    private static final int OF_NEXT = 0;
+    private static final int OF_DATA = OF_NEXT+8;
+    // DataItem 头部：[ValidFlag 1][DataSize 2]
+    private static final int DATA_ITEM_HEADER = 3;
+    public static final int CHUNK_SIZE = PageX.MAX_FREE_SPACE - DATA_ITEM_HEADER - OF_DATA;
+
+    // 将 data 切分为溢出块写入，返回第一块的 UID
+    public static long insert(DataManager dm, long xid, byte[] data) throws Exception {
+        int chunks = Math.max((data.length + CHUNK_SIZE - 1) / CHUNK_SIZE, 1);
+        long next = 0;
+        for(int i = chunks-1; i >= 0; i --) {
+            int start = i * CHUNK_SIZE;
+            int end = Math.min(start + CHUNK_SIZE, data.length);
+            byte[] chunk = Bytes.concat(Parser.long2Byte(next), Arrays.copyOfRange(data, start, end));
+            next = dm.insert(xid, chunk);
+        }
+        return next;
+    }
+
+    // 释放 uid 开始的整条溢出块链，返回释放的块数
+    public static int free(DataManager dm, long uid) throws Exception {
+        int freed = 0;
+        while(uid != 0) {
+            DataItem di = dm.read(uid);
+            if(di == null) {
+                break;
+            }
+            long next;
+            try {
+                SubArray sa = di.data();
+                next = Parser.parseLong(sa.raw, sa.start+OF_NEXT);
+            } finally {
+                di.release();
+            }
+            dm.free(uid);
+            freed ++;
+            uid = next;
+        }
+        return freed;
+    }
+
+    // 以流的形式读取溢出数据，同一时刻只持有一个溢出块
+    public static InputStream open(DataManager dm, long uid) {
+        return new Reader(dm, uid);
+    }
+
+    public static byte[] read(DataManager dm, long uid) throws Exception {
+        try (InputStream in = open(dm, uid)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[CHUNK_SIZE];
+            int n;
+            while((n = in.read(buf, 0, buf.length)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    static class Reader extends InputStream {
+        private DataManager dm;
+        private long next;
+        private DataItem current;
+        private int pos, end;
+
+        Reader(DataManager dm, long uid) {
+            this.dm = dm;
+            this.next = uid;
+        }
+
+        // 当前块读完后，释放它并加载下一块，没有下一块时返回 false
+        private boolean advance() throws IOException {
+            while(current == null || pos == end) {
+                if(current != null) {
+                    current.release();
+                    current = null;
+                }
+                if(next == 0) {
+                    return false;
+                }
+                try {
+                    current = dm.read(next);
+                } catch(Exception e) {
+                    throw new IOException(e);
+                }
+                if(current == null) {
+                    throw new IOException(Error.NullEntryException);
+                }
+                SubArray sa = current.data();
+                next = Parser.parseLong(sa.raw, sa.start+OF_NEXT);
+                pos = sa.start+OF_DATA;
+                end = sa.end;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!advance()) {
+                return -1;
+            }
+            return current.data().raw[pos ++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!advance()) {
+                return -1;
+            }
+            int n = Math.min(len, end - pos);
+            System.arraycopy(current.data().raw, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if(current != null) {
+                current.release();
+                current = null;
+            }
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package top.guoziyang.mydb.backend.dm;
+
+/**
+ * Readers 由上层提供，告诉 DataManager 已回收的 UID 是否还可能被读者持有。
+ *
+ * 索引游标缓存的 UID、版本链中的 PREV、哈希桶中的项等都不固定 DataItem，
+ * 它们指向的 DataItem 被回收后，槽如果立即被复用，读者会通过旧的 UID 读到无关的新数据。
+ * 所以回收时记下 mark()，在 finished(mark) 之前，回收的槽所在的页面不复用空槽，整理时也不截掉页尾的空槽
+ */
+public interface Readers {
+    // 当前的标记，之后开始的读者都不会再得到此前回收的 UID
+    long mark();
+    // 在 mark 之前开始的读者是否都已结束
+    boolean finished(long mark);
+}
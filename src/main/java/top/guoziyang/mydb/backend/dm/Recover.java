@@ -16,11 +16,13 @@ import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.utils.Types;
 
 // DM 为上层模块，提供了两种操作，分别是插入新数据（I）和更新现有数据（U）
-// (没提供删除数据)
+// (删除数据通过 update 将 DataItem 的有效位置为非法完成，空间在页面整理时回收)
 
 // 日志策略：在进行 I 和 U 操作之前，必须先进行对应的日志操作，在保证日志写入磁盘后，才进行数据操作。
 // 日志在数据操作之前，保证到达了磁盘，那么即使该数据操作最后没有来得及同步到磁盘，数据库就发生了崩溃，后续也可以通过磁盘上的日志恢复该数据
@@ -30,14 +32,19 @@ import top.guoziyang.mydb.backend.utils.Parser;
 public class Recover {
     // recover例程主要也是两步：重做所有已完成事务，撤销所有未完成事务
 
-    // 两种日志格式：
+    // 三种日志格式：
     // updateLog:
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
 
     // insertLog:
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Offset] [Raw]
+
+    // compactLog: 页面整理后的整页镜像，XID 总是 SUPER_XID，只需重做
+    // [LogType] [XID] [Pgno] [PageImage]
+    // update 日志通过 UID 中的槽号定位数据，所以在页面整理移动数据之后仍然可以正确地重做和撤销
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_COMPACT = 2;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -45,6 +52,7 @@ public class Recover {
     static class InsertLogInfo {
         long xid;
         int pgno;
+        short slot;
         short offset;
         byte[] raw;
     }
@@ -52,11 +60,17 @@ public class Recover {
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        short slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
+    static class CompactLogInfo {
+        long xid;
+        int pgno;
+        byte[] image;
+    }
+
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
         System.out.println("Recovering...");
 
@@ -69,6 +83,9 @@ public class Recover {
             if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 pgno = li.pgno;
+            } else if(isCompactLog(log)) {
+                CompactLogInfo li = parseCompactLog(log);
+                pgno = li.pgno;
             } else {
                 UpdateLogInfo li = parseUpdateLog(log);
                 pgno = li.pgno;
@@ -103,6 +120,8 @@ public class Recover {
                 if(!tm.isActive(xid)) {
                     doInsertLog(pc, log, REDO);
                 }
+            } else if(isCompactLog(log)) {
+                doCompactLog(pc, log);
             } else {
                 UpdateLogInfo xi = parseUpdateLog(log);
                 long xid = xi.xid;
@@ -128,6 +147,8 @@ public class Recover {
                     }
                     logCache.get(xid).add(log);
                 }
+            } else if(isCompactLog(log)) {
+                continue;
             } else {
                 UpdateLogInfo xi = parseUpdateLog(log);
                 long xid = xi.xid;
@@ -159,6 +180,10 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isCompactLog(byte[] log) {
+        return log[0] == LOG_TYPE_COMPACT;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
@@ -179,9 +204,8 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        li.pgno = (int)(uid & ((1L << 32) - 1));
+        li.slot = Types.uidToSlot(uid);
+        li.pgno = Types.uidToPgno(uid);
         int length = (log.length - OF_UPDATE_RAW) / 2;
         li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
         li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
@@ -190,17 +214,17 @@ public class Recover {
 
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
         int pgno;
-        short offset;
+        short slot;
         byte[] raw;
         if(flag == REDO) {
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.newRaw;
         } else {
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.oldRaw;
         }
         Page pg = null;
@@ -210,29 +234,32 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            PageX.recoverUpdate(pg, raw, slot);
         } finally {
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_OFFSET = OF_INSERT_SLOT+2;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, Page pg, short slot, short offset, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte(slot);
+        byte[] offsetRaw = Parser.short2Byte(offset);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, offsetRaw, raw);
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_OFFSET));
         li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
@@ -249,8 +276,47 @@ public class Recover {
         try {
             if(flag == UNDO) {
                 DataItem.setDataItemRawInvalid(li.raw);// 将该条 DataItem 的有效位设置为无效，来进行逻辑删除
+                if(PageX.getOffset(pg, li.slot) != 0) {
+                    // 页面整理可能已经移动了这条数据，通过槽号定位
+                    PageX.recoverUpdate(pg, li.raw, li.slot);
+                    return;
+                }
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);//???????????
+            PageX.recoverInsert(pg, li.raw, li.slot, li.offset);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [PageImage]
+    private static final int OF_COMPACT_PGNO = OF_XID+8;
+    private static final int OF_COMPACT_IMAGE = OF_COMPACT_PGNO+4;
+
+    public static byte[] compactLog(Page pg) {
+        byte[] logTypeRaw = {LOG_TYPE_COMPACT};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, pg.getData());
+    }
+
+    private static CompactLogInfo parseCompactLog(byte[] log) {
+        CompactLogInfo li = new CompactLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_COMPACT_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_COMPACT_PGNO, OF_COMPACT_IMAGE));
+        li.image = Arrays.copyOfRange(log, OF_COMPACT_IMAGE, log.length);
+        return li;
+    }
+
+    private static void doCompactLog(PageCache pc, byte[] log) {
+        CompactLogInfo li = parseCompactLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageX.recoverPage(pg, li.image);
         } finally {
             pg.release();
         }
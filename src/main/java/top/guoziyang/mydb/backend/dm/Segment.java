@@ -0,0 +1,120 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * Segment 是一组只存放同一张表的记录的页面。插入到段中的数据只使用段中的页面，页面不足时为段分配新页；
+ * 段中的页面不在公共的 PageIndex 中，普通的插入不会使用。所以按页扫描段，就能读到表的全部记录，不会读到其他数据。
+ *
+ * 段中的页号按分配的顺序记录在区段表（extent）中，每个区段表是一条 DataItem：
+ * [NextExtentUid][NoPages][Pgno0][Pgno1]...[PgnoN]
+ * 段的 UID 即第一个区段表的 UID。区段表满时插入新的区段表，再链接到最后一个区段表之后。
+ * 区段表本身存储在公共页面中。
+ *
+ * 新页先插入第一条数据，再登记到区段表：插入日志保证恢复时该页不会被截断。
+ * 登记完成之前，页面不会被其他插入选中，所以登记之前崩溃时，页面上只有一条未提交事务的数据，
+ * 恢复时被撤销，页面回到公共空间。
+ */
+public class Segment {
+    static final int OF_NEXT = 0;
+    static final int OF_NO_PAGES = OF_NEXT+8;
+    static final int OF_PAGES = OF_NO_PAGES+2;
+    static final int EXTENT_PAGES = 256;
+    static final int EXTENT_SIZE = OF_PAGES + 4*EXTENT_PAGES;
+
+    long uid;
+    PageIndex pIndex;
+    private DataManagerImpl dm;
+    private List<Integer> pages;
+    private long tailUid;
+    private Lock lock;
+
+    Segment(DataManagerImpl dm, long uid) {
+        this.dm = dm;
+        this.uid = uid;
+        this.tailUid = uid;
+        this.pIndex = new PageIndex();
+        this.pages = new ArrayList<>();
+        this.lock = new ReentrantLock();
+    }
+
+    static byte[] newExtentRaw() {
+        return new byte[EXTENT_SIZE];
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    // 段中的页号，页号随分配递增，按分配的顺序即物理顺序
+    public int[] pages() {
+        lock.lock();
+        try {
+            int[] res = new int[pages.size()];
+            for(int i = 0; i < res.length; i ++) {
+                res[i] = pages.get(i);
+            }
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 读出区段表中的所有页号
+    List<Integer> load() throws Exception {
+        long extentUid = uid;
+        while(extentUid != 0) {
+            DataItem di = dm.read(extentUid);
+            SubArray raw = di.data();
+            int noPages = Parser.parseShort(raw.raw, raw.start+OF_NO_PAGES);
+            for(int i = 0; i < noPages; i ++) {
+                pages.add(Parser.parseInt(raw.raw, raw.start+OF_PAGES+i*4));
+            }
+            tailUid = extentUid;
+            extentUid = Parser.parseLong(raw.raw, raw.start+OF_NEXT);
+            di.release();
+        }
+        return pages;
+    }
+
+    // 将新页 pgno 登记到最后一个区段表，修改通过 SUPER_XID 落日志
+    void addPage(int pgno) throws Exception {
+        lock.lock();
+        try {
+            DataItem tail = dm.read(tailUid);
+            try {
+                SubArray raw = tail.data();
+                int noPages = Parser.parseShort(raw.raw, raw.start+OF_NO_PAGES);
+                if(noPages < EXTENT_PAGES) {
+                    tail.before();
+                    Parser.putInt(raw.raw, raw.start+OF_PAGES+noPages*4, pgno);
+                    Parser.putShort(raw.raw, raw.start+OF_NO_PAGES, (short)(noPages+1));
+                    tail.after(TransactionManagerImpl.SUPER_XID);
+                } else {
+                    byte[] extent = newExtentRaw();
+                    Parser.putInt(extent, OF_PAGES, pgno);
+                    Parser.putShort(extent, OF_NO_PAGES, (short)1);
+                    long extentUid = dm.insert(TransactionManagerImpl.SUPER_XID, extent);
+                    tail.before();
+                    Parser.putLong(raw.raw, raw.start+OF_NEXT, extentUid);
+                    tail.after(TransactionManagerImpl.SUPER_XID);
+                    tailUid = extentUid;
+                }
+            } finally {
+                tail.release();
+            }
+            pages.add(pgno);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package top.guoziyang.mydb.backend.dm.dataItem;
 
-import java.util.Arrays;
 
 import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.Types;
 
@@ -25,6 +25,10 @@ public interface DataItem {
     void rLock();
     void rUnLock();
 
+    // 乐观读：不加锁读取数据，读完后通过 validate 校验期间没有经过 before() 的修改
+    long tryOptimisticRead();
+    boolean validate(long stamp);
+
     Page page();
     long getUid();
     byte[] getOldRaw();
@@ -36,16 +40,26 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
-    // 从页面的offset处解析处dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    // 从页面的槽slot处解析出dataitem，空槽解析为一个非法的 DataItem
+    public static DataItem parseDataItem(Page pg, short slot, DataManagerImpl dm) {
+        long uid = Types.addressToUid(pg.getPageNumber(), slot);
+        short offset = PageX.getOffset(pg, slot);
+        if(offset == 0) {
+            byte[] nil = wrapDataItemRaw(new byte[0]);
+            setDataItemRawInvalid(nil);
+            return new DataItemImpl(new SubArray(nil, 0, nil.length), new byte[nil.length], pg, uid, dm);
+        }
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        short size = Parser.parseShort(raw, offset+DataItemImpl.OF_SIZE);
         short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    public static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start+DataItemImpl.OF_VALID] = (byte)1;
+    }
 }
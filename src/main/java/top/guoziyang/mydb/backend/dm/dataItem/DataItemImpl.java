@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.dm.dataItem;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
@@ -27,6 +28,10 @@ public class DataItemImpl implements DataItem {
     private byte[] oldRaw;
     private Lock rLock;
     private Lock wLock;
+    // 版本戳，before() 到 after()/unBefore() 之间持有其写锁，供乐观读校验。
+    // StampedLock 不可重入，所以只在 before() 中获取，读写锁仍负责互斥
+    private StampedLock stamp;
+    private long writeStamp;
 
     // 保存一个 dm 的引用是因为其释放依赖 dm 的释放（dm 同时实现了缓存接口，用于缓存 DataItem），以及修改数据时落日志。
     private DataManagerImpl dm;
@@ -39,6 +44,7 @@ public class DataItemImpl implements DataItem {
         ReadWriteLock lock = new ReentrantReadWriteLock();
         rLock = lock.readLock();
         wLock = lock.writeLock();
+        stamp = new StampedLock();
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
@@ -61,6 +67,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock();
+        writeStamp = stamp.writeLock();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);// 备份、保存前相数据
     }
@@ -68,6 +75,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);// 撤销、还原
+        stamp.unlockWrite(writeStamp);
         wLock.unlock();
     }
 
@@ -75,6 +83,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);// 对修改操作落日志
+        stamp.unlockWrite(writeStamp);
         wLock.unlock();
     }
 
@@ -104,6 +113,16 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return stamp.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return this.stamp.validate(stamp);
+    }
+
     @Override
     public Page page() {
         return pg;
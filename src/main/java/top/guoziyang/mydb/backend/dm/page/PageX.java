@@ -7,73 +7,211 @@ import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
  * PageX管理普通页
- * 普通页结构
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * 普通页采用槽页结构：
+ * [SlotCount] [HeapStart] [Slot0] [Slot1] ... [SlotN] ...空闲空间... [DataN] ... [Data1] [Data0]
+ * SlotCount: 2字节 槽的个数
+ * HeapStart: 2字节 数据区起始偏移，数据从页尾向前增长
+ * Slot:      4字节 [Offset 2][Length 2]，Offset 为 0 表示空槽，可以被新插入的数据复用
  *
- * MYDB 对于普通数据页的管理就比较简单。
- * 一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。
- * 剩下的部分都是实际存储的数据。
+ * 槽数组从页头向后增长，数据从页尾向前增长，两者之间是连续的空闲空间。
+ * DataItem 的 UID 由页号和槽号组成，而不是页内偏移，
+ * 所以整理页面（compact）时可以移动数据，只需修改槽中的偏移，UID 保持不变。
+ * 数据的首字节是 DataItem 的有效位，被回收（有效位为非法）的数据所占空间在整理时归还。
  */
 public class PageX {
-    
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+
+    private static final short OF_SLOT_COUNT = 0;
+    private static final short OF_HEAP_START = OF_SLOT_COUNT+2;
+    private static final short OF_SLOTS = OF_HEAP_START+2;
+    private static final int SLOT_SIZE = 4;
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_SLOTS - SLOT_SIZE;
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        setSlotCount(raw, 0);
+        setHeapStart(raw, PageCache.PAGE_SIZE);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setSlotCount(byte[] raw, int count) {
+        Parser.putShort(raw, OF_SLOT_COUNT, (short)count);
+    }
+
+    private static int getSlotCount(byte[] raw) {
+        return Parser.parseShort(raw, OF_SLOT_COUNT);
+    }
+
+    private static void setHeapStart(byte[] raw, int heapStart) {
+        Parser.putShort(raw, OF_HEAP_START, (short)heapStart);
+    }
+
+    private static int getHeapStart(byte[] raw) {
+        return Parser.parseShort(raw, OF_HEAP_START);
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset, int length) {
+        int of = OF_SLOTS + slot*SLOT_SIZE;
+        Parser.putShort(raw, of, (short)offset);
+        Parser.putShort(raw, of+2, (short)length);
+    }
+
+    private static int getSlotOffset(byte[] raw, int slot) {
+        int of = OF_SLOTS + slot*SLOT_SIZE;
+        return Parser.parseShort(raw, of);
+    }
+
+    private static int getSlotLength(byte[] raw, int slot) {
+        int of = OF_SLOTS + slot*SLOT_SIZE;
+        return Parser.parseShort(raw, of+2);
+    }
+
+    // 获取槽 slot 中数据的偏移，空槽或槽不存在时返回 0
+    public static short getOffset(Page pg, short slot) {
+        byte[] raw = pg.getData();
+        if(slot < 0 || slot >= getSlotCount(raw)) {
+            return 0;
+        }
+        return (short)getSlotOffset(raw, slot);
     }
 
-    // 获取pg的FSO
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+    // 插入新数据的位置：数据区向前扩展 length 字节
+    public static short getInsertOffset(Page pg, int length) {
+        return (short)(getHeapStart(pg.getData()) - length);
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    // 选择插入使用的槽号。reuse 为 false 时不复用空槽，
+    // 页面中还有被缓存的 DataItem 时，复用空槽可能让旧的 UID 指向新数据
+    public static short selectSlot(Page pg, boolean reuse) {
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        if(reuse) {
+            for(int i = 0; i < count; i ++) {
+                if(getSlotOffset(raw, i) == 0) {
+                    return (short)i;
+                }
+            }
+        }
+        return (short)count;
     }
 
-    // 将raw插入pg中，返回插入位置
-    public static short insert(Page pg, byte[] raw) {
+    // 将raw插入pg中的offset位置，并记录在槽slot中
+    public static void insert(Page pg, byte[] raw, short slot, short offset) {
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        // 更新FSO的值
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        byte[] data = pg.getData();
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        setSlot(data, slot, offset, raw.length);
+        if(slot >= getSlotCount(data)) {
+            setSlotCount(data, slot+1);
+        }
+        if(offset < getHeapStart(data)) {
+            setHeapStart(data, offset);
+        }
     }
 
-    // 获取页面的空闲空间大小
+    // 不整理页面时，能够直接插入的最大数据长度
+    public static int getContiguousFreeSpace(Page pg, boolean reuse) {
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        int free = getHeapStart(raw) - OF_SLOTS - count*SLOT_SIZE;
+        if(selectSlot(pg, reuse) == count) {
+            free -= SLOT_SIZE;
+        }
+        return Math.max(free, 0);
+    }
+
+    // 获取页面的空闲空间大小，包括整理页面后可以回收的空间：被回收的数据，以及页尾被截掉的空槽
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        int used = 0, live = 0, newCount = 0;
+        for(int i = 0; i < count; i ++) {
+            int offset = getSlotOffset(raw, i);
+            if(offset == 0 || isDead(raw, offset)) {
+                continue;
+            }
+            used += getSlotLength(raw, i);
+            live ++;
+            newCount = i+1;
+        }
+        int free = PageCache.PAGE_SIZE - OF_SLOTS - newCount*SLOT_SIZE - used;
+        if(live == newCount) {
+            free -= SLOT_SIZE;  // 没有可以复用的空槽
+        }
+        return Math.max(free, 0);
     }
 
-    // 剩余两个函数 recoverInsert() 和 recoverUpdate() 用于在数据库崩溃后重新打开时，
-    // 恢复例程直接插入数据以及修改数据使用。
+    // 页面中所有未被回收的数据所在的槽号，按槽号递增
+    public static short[] liveSlots(Page pg) {
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        short[] slots = new short[count];
+        int n = 0;
+        for(int i = 0; i < count; i ++) {
+            int offset = getSlotOffset(raw, i);
+            if(offset != 0 && !isDead(raw, offset)) {
+                slots[n ++] = (short)i;
+            }
+        }
+        return Arrays.copyOf(slots, n);
+    }
 
-    // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    // ??????????????????????????????????????????????????????????????????????????
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
-        pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+    // 数据首字节为 DataItem 的有效位，非 0 表示已被回收
+    private static boolean isDead(byte[] raw, int offset) {
+        return raw[offset] != (byte)0;
+    }
 
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+    // 整理页面：丢弃已被回收的数据，将存活的数据紧凑地移动到页尾，并修改槽中的偏移。
+    // 被回收数据的槽变为空槽，truncate 时页尾连续的空槽被截掉，否则保留，之后的插入不会使用这些槽号。
+    // 调用方需要保证此时没有任何 DataItem 引用该页面的数据
+    public static void compact(Page pg, boolean truncate) {
+        pg.setDirty(true);
+        byte[] raw = pg.getData();
+        byte[] heap = new byte[PageCache.PAGE_SIZE];
+        int count = getSlotCount(raw);
+        int heapStart = PageCache.PAGE_SIZE;
+        int newCount = 0;
+        for(int i = 0; i < count; i ++) {
+            int offset = getSlotOffset(raw, i);
+            if(offset == 0 || isDead(raw, offset)) {
+                setSlot(raw, i, 0, 0);
+                continue;
+            }
+            int length = getSlotLength(raw, i);
+            heapStart -= length;
+            System.arraycopy(raw, offset, heap, heapStart, length);
+            setSlot(raw, i, heapStart, length);
+            newCount = i+1;
+        }
+        if(!truncate) {
+            newCount = count;
         }
+        int slotsEnd = OF_SLOTS + newCount*SLOT_SIZE;
+        Arrays.fill(raw, slotsEnd, heapStart, (byte)0);
+        System.arraycopy(heap, heapStart, raw, heapStart, PageCache.PAGE_SIZE-heapStart);
+        setSlotCount(raw, newCount);
+        setHeapStart(raw, heapStart);
+    }
+
+    // 剩余函数用于在数据库崩溃后重新打开时，恢复例程直接插入数据以及修改数据使用。
+
+    // 将raw插入pg中的offset位置，并记录在槽slot中
+    public static void recoverInsert(Page pg, byte[] raw, short slot, short offset) {
+        insert(pg, raw, slot, offset);
     }
 
-    // 将raw插入pg中的offset位置，不更新update
-    // ??????????????????????????????????????????????????????????????????????????
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    // 将raw写入槽slot所指的数据，槽不存在时忽略
+    public static void recoverUpdate(Page pg, byte[] raw, short slot) {
+        short offset = getOffset(pg, slot);
+        if(offset == 0) {
+            return;
+        }
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
+
+    // 用整页镜像覆盖页面，用于重做页面整理
+    public static void recoverPage(Page pg, byte[] image) {
+        pg.setDirty(true);
+        System.arraycopy(image, 0, pg.getData(), 0, image.length);
+    }
 }
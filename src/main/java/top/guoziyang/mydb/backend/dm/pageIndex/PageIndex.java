@@ -1,7 +1,9 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -18,6 +20,7 @@ public class PageIndex {
 
     private Lock lock;
     private List<PageInfo>[] lists;
+    private Map<Integer, PageInfo> pages;   // 当前在索引中的页面，被 select 取出的页面不在其中
 
     @SuppressWarnings("unchecked")
     public PageIndex() {
@@ -26,6 +29,7 @@ public class PageIndex {
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
             lists[i] = new ArrayList<>();
         }
+        pages = new HashMap<>();
     }
 
     // 在上层模块使用完这个页面后，需要将其重新插入 PageIndex：
@@ -33,7 +37,9 @@ public class PageIndex {
         lock.lock();
         try {
             int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            lists[number].add(pi);
+            pages.put(pgno, pi);
         } finally {
             lock.unlock();
         }
@@ -50,7 +56,9 @@ public class PageIndex {
                     number ++;
                     continue;
                 }
-                return lists[number].remove(0);// 被选择的页，会直接从 PageIndex 中移除，这意味着，同一个页面是不允许并发写的。
+                PageInfo pi = lists[number].remove(0);// 被选择的页，会直接从 PageIndex 中移除，这意味着，同一个页面是不允许并发写的。
+                pages.remove(pi.pgno);
+                return pi;
             }
             return null;
         } finally {
@@ -58,4 +66,35 @@ public class PageIndex {
         }
     }
 
+    // 将页面移出索引，返回其空闲空间，页面不在索引中时返回 -1
+    public int remove(int pgno) {
+        lock.lock();
+        try {
+            PageInfo pi = pages.remove(pgno);
+            if(pi == null) {
+                return -1;
+            }
+            lists[pi.freeSpace / THRESHOLD].remove(pi);
+            return pi.freeSpace;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 页面中有数据被回收后，更新该页的空闲空间。
+    // 页面正被 select 取出使用时不做处理，使用者归还时会重新计算
+    public void update(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            PageInfo pi = pages.get(pgno);
+            if(pi == null || pi.freeSpace == freeSpace) {
+                return;
+            }
+            lists[pi.freeSpace / THRESHOLD].remove(pi);
+            pi.freeSpace = freeSpace;
+            lists[freeSpace / THRESHOLD].add(pi);
+        } finally {
+            lock.unlock();
+        }
+    }
 }
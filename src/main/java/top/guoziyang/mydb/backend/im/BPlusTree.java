@@ -1,17 +1,23 @@
 package top.guoziyang.mydb.backend.im;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.im.Node.InsertAndSplitRes;
+import top.guoziyang.mydb.backend.im.Node.LeafDeleteRes;
+import top.guoziyang.mydb.backend.im.Node.LeafLookupRes;
 import top.guoziyang.mydb.backend.im.Node.LeafSearchRangeRes;
-import top.guoziyang.mydb.backend.im.Node.SearchNextRes;
+import top.guoziyang.mydb.backend.im.InnerNode.SearchNextRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
@@ -22,9 +28,19 @@ import top.guoziyang.mydb.backend.utils.Parser;
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
  *
  * --------------------------------------------------------------------------------------------------------------------------
- * IM没提供删除索引的能力：
- * 当上层模块通过 VM 删除某个 Entry，实际的操作是设置其 XMAX。
- * 如果不去删除对应索引的话，当后续再次尝试读取该 Entry 时，是可以通过索引寻找到的，但是由于设置了 XMAX，寻找不到合适的版本而返回一个找不到内容的错误
+ * 删除索引：
+ * 当上层模块通过 VM 删除某个 Entry，实际的操作是设置其 XMAX，此时索引项不能删除，旧事务仍可能通过索引读到它。
+ * 等到 vacuum 确认该 Entry 对所有事务都不可见时，再通过 delete() 从叶子节点中摘除对应的索引项。
+ *
+ * 删除后叶子的项数少于 MIN_KEYS 时，独占整棵树，沿 key 所在的路径自底向上合并下溢的节点：
+ * 下溢节点与父节点中相邻的兄弟（优先右兄弟）合并后的项数不超过 MERGE_LIMIT 时，右边的节点并入左边的节点。
+ * 合并分三步：先从父节点中删除右节点，此时右节点仍可通过左节点的兄弟指针访问到；
+ * 再将右节点的项追加到左节点，并接管其兄弟指针；最后释放右节点。任意一步之后崩溃，树仍然是合法的 B-link 树。
+ * 根节点只剩一个子节点时，该子节点成为新的根。
+ * 不在兄弟间借用项：借用需要分别修改两个已有节点，两次写入之间崩溃会丢失或重复索引项。
+ *
+ * 普通操作持有 structureLock 的读锁，彼此之间不阻塞，合并持有写锁，
+ * 所以合并时没有其他操作正在访问将被释放的节点。
  *
  * ---------------------------------------------------------------------------------------------------------------------------
  * B+ 树在操作过程中，可能出现两种错误，分别是节点内部错误和节点间关系错误。
@@ -34,17 +50,43 @@ import top.guoziyang.mydb.backend.utils.Parser;
  * 如果出现了节点间错误，那么一定是下面这种情况：某次对 u 节点的插入操作创建了新节点 v, 此时 sibling(u)=v，但是 v 却并没有被插入到父节点中。
  * 这时，如果要对节点进行插入或者搜索操作，如果失败，就会继续迭代它的兄弟节点，最终还是可以找到 v 节点。
  * 唯一的缺点仅仅是，无法直接通过父节点找到 v 了，只能间接地通过 u 获取到 v。
+ *
+ * ---------------------------------------------------------------------------------------------------------------------------
+ * 批量建树：
+ * 由有序的 (key, uid) 序列自底向上逐层建树，每个节点按填充因子装入固定数量的项，不经过逐条插入和分裂。
+ * 每一层从右向左生成节点，生成时已知右兄弟的 UID。上层节点中第 i 项的键值为第 i 个子节点的上界：
+ * 叶子的上界为下一个叶子的第一个 key，内部节点的上界为它的最后一个 key，最右边的节点为 MAX_VALUE。
+ * 每个节点只通过一次 dm.insert 写入，日志中只有节点的完整镜像，没有修改日志。
+ *
+ * ---------------------------------------------------------------------------------------------------------------------------
+ * 内部节点缓存：
+ * 查找时内部节点解码为 InnerNode 快照缓存在内存中，只有叶子节点通过 DM 读取。
+ * 内部节点被修改后从缓存中删除。读者解码与写者删除并发时，读者可能把修改前的快照放回缓存，
+ * 所以每次删除前递增 generation，读者放入快照后发现 generation 变化，就撤回自己放入的快照。
+ * 即使读到过时的快照，也只是少了新分裂出的节点，沿兄弟指针右移仍能找到目标。
  */
 
 // 由于 B+ 树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个 bootDataItem，该 DataItem 中存储了根节点的 UID。
+// 根节点 UID 缓存在内存中，bootDataItem 只在修改根节点时读取并立即释放，不会一直占用所在的页面
 // IM 在操作 DM 时，使用的事务都是 SUPER_XID
 public class BPlusTree {
+    private static final int UNIQUE_LOCKS = 64;
+    // estimate 精确计数时最多读取的叶子数
+    private static final int ESTIMATE_LEAVES = 8;
+
     DataManager dm;
 
     // 根节点UID
     long bootUid;
-    DataItem bootDataItem;
     Lock bootLock;
+    volatile long rootUid;
+
+    Map<Long, InnerNode> inners;
+    AtomicLong generation;
+    ReadWriteLock structureLock;
+    Lock[] uniqueLocks;
+    // 合并的次数，节点只会在合并时被释放，TreeCursor 据此判断保存的叶子 UID 是否仍然有效
+    volatile long rebalances;
 
     public static long create(DataManager dm) throws Exception {
         byte[] rawRoot = Node.newNilRootRaw();
@@ -52,112 +94,382 @@ public class BPlusTree {
         return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid)); // 记录根节点的地址？？？？？？
     }
 
+    // 由按 key 有序的 keys、uids 批量建树，fillFactor 为每个节点装入的项数占节点容量的比例，返回 bootUid
+    public static long bulkLoad(DataManager dm, long[] keys, long[] uids, double fillFactor) throws Exception {
+        if(keys.length == 0) {
+            return create(dm);
+        }
+        int perNode = (int)(Node.BALANCE_NUMBER*2*fillFactor);
+        perNode = Math.max(2, Math.min(Node.BALANCE_NUMBER*2-1, perNode));
+
+        Level level = buildLevel(dm, keys, uids, true, perNode);
+        while(level.uids.length > 1) {
+            level = buildLevel(dm, level.highKeys, level.uids, false, perNode);
+        }
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(level.uids[0]));
+    }
+
+    // 一层节点的 UID 及其上界
+    static class Level {
+        long[] uids;
+        long[] highKeys;
+    }
+
+    // 将 keys、sons 平均分配到若干个节点中，每个节点不超过 perNode 项
+    private static Level buildLevel(DataManager dm, long[] keys, long[] sons, boolean isLeaf, int perNode) throws Exception {
+        int n = keys.length;
+        int noNodes = (n + perNode - 1) / perNode;
+        Level level = new Level();
+        level.uids = new long[noNodes];
+        level.highKeys = new long[noNodes];
+        long sibling = 0;
+        for(int i = noNodes-1; i >= 0; i --) {
+            int begin = (int)((long)i*n/noNodes);
+            int end = (int)((long)(i+1)*n/noNodes);
+            byte[] raw = Node.newNodeRaw(isLeaf, sibling, keys, sons, begin, end);
+            sibling = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+            level.uids[i] = sibling;
+            if(!isLeaf) {
+                level.highKeys[i] = keys[end-1];
+            } else {
+                level.highKeys[i] = i == noNodes-1 ? Long.MAX_VALUE : keys[end];
+            }
+        }
+        return level;
+    }
+
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
         DataItem bootDataItem = dm.read(bootUid);
         assert bootDataItem != null;
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;
         t.dm = dm;
-        t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        t.rootUid = Parser.parseLong(sa.raw, sa.start);
+        bootDataItem.release();
+        t.inners = new ConcurrentHashMap<>();
+        t.generation = new AtomicLong();
+        t.structureLock = new ReentrantReadWriteLock();
+        t.uniqueLocks = new Lock[UNIQUE_LOCKS];
+        for(int i = 0; i < UNIQUE_LOCKS; i ++) {
+            t.uniqueLocks[i] = new ReentrantLock();
+        }
         return t;
     }
 
-    private long rootUid() {
+    // 根节点 UID 只在 setRootUid 中修改，缓存在 volatile 字段中，读取时不加锁
+    long rootUid() {
+        return rootUid;
+    }
+
+    private void updateRootUid(long left, long right, long rightKey) throws Exception {
         bootLock.lock();
         try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+            setRootUid(newRootUid);
         } finally {
             bootLock.unlock();
         }
     }
 
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private void setRootUid(long newRootUid) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+            DataItem bootDataItem = dm.read(bootUid);
             bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            try {
+                SubArray diRaw = bootDataItem.data();
+                Parser.putLong(diRaw.raw, diRaw.start, newRootUid);
+            } finally {
+                bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+                bootDataItem.release();
+            }
+            rootUid = newRootUid;
         } finally {
             bootLock.unlock();
         }
     }
 
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        if(isLeaf) {
-            return nodeUid;
-        } else {
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+    long searchLeaf(long nodeUid, long key) throws Exception {
+        while(true) {
+            SearchNextRes res = searchNext(nodeUid, key, true);
+            if(res.isLeaf) {
+                return res.uid;
+            }
+            nodeUid = res.uid;
         }
     }
 
-    private long searchNext(long nodeUid, long key) throws Exception {
+    // 在 nodeUid 所在层查找 key 的下一层节点，需要时沿兄弟指针右移，每个节点只加载一次。
+    // nodeUid 为叶子时，返回的 uid 即为该叶子
+    private SearchNextRes searchNext(long nodeUid, long key, boolean leftmost) throws Exception {
         while(true) {
-            Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
-            node.release();
-            if(res.uid != 0) return res.uid;
+            InnerNode inner = innerNode(nodeUid);
+            if(inner.isLeaf()) {
+                SearchNextRes res = new SearchNextRes();
+                res.isLeaf = true;
+                res.uid = nodeUid;
+                return res;
+            }
+            SearchNextRes res = inner.searchNext(key, leftmost);
+            if(res.uid != 0) return res;
             nodeUid = res.siblingUid;
         }
     }
 
+    // 从缓存中获取内部节点的快照，未命中时通过 DM 读取并解码
+    private InnerNode innerNode(long nodeUid) throws Exception {
+        InnerNode inner = inners.get(nodeUid);
+        if(inner != null) {
+            return inner;
+        }
+        long gen = generation.get();
+        Node node = Node.loadNode(this, nodeUid);
+        inner = node.decode();
+        node.release();
+        inners.put(nodeUid, inner);
+        if(generation.get() != gen) {
+            inners.remove(nodeUid, inner);
+        }
+        return inner;
+    }
+
+    // 内部节点被修改后，删除其快照
+    private void invalidate(long nodeUid) {
+        generation.incrementAndGet();
+        inners.remove(nodeUid);
+    }
+
     public List<Long> search(long key) throws Exception {
         return searchRange(key, key);
     }
 
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if(res.siblingUid == 0) {
-                break;
-            } else {
+        IndexCursor cursor = cursor(leftKey, rightKey);
+        while(cursor.hasNext()) {
+            uids.add(cursor.next());
+        }
+        return uids;
+    }
+
+    // 返回遍历 [leftKey, rightKey] 的游标，结果按叶子分批读取
+    public IndexCursor cursor(long leftKey, long rightKey) {
+        return new TreeCursor(this, leftKey, rightKey);
+    }
+
+    // 唯一索引的点查，只从根向下查找一次，不分配结果列表，没有等于 key 的项时返回 0。
+    // 失效的项在 vacuum 之前仍留在树中，返回的项不一定对调用方可见，不可见时调用方需要通过 cursor 查看其余的项
+    public long lookupUnique(long key) throws Exception {
+        structureLock.readLock().lock();
+        try {
+            long leafUid = searchLeaf(rootUid(), key);
+            while(true) {
+                Node leaf = Node.loadNode(this, leafUid);
+                LeafLookupRes res = leaf.leafLookup(key);
+                leaf.release();
+                if(res.found) {
+                    return res.uid;
+                }
+                if(res.siblingUid == 0) {
+                    return 0;
+                }
                 leafUid = res.siblingUid;
             }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    // 估计 [leftKey, rightKey] 中的项数。先从 leftKey 所在的叶子开始最多读取 ESTIMATE_LEAVES 个叶子，
+    // 范围在这些叶子中结束时返回精确的项数；否则不再遍历叶子，最多沿 leftKey 和 rightKey 的两条路径各向下读取一次：
+    // 找到两者分到不同子节点的那一层，两端的子节点分别沿路径估计落在范围内的部分，中间的子节点按两端子节点的平均大小计算。
+    // 内部节点的键值只是近似的边界，所以只用来估计较大的范围
+    public long estimate(long leftKey, long rightKey) throws Exception {
+        if(leftKey > rightKey) {
+            return 0;
+        }
+        structureLock.readLock().lock();
+        try {
+            long leafUid = searchLeaf(rootUid(), leftKey);
+            long count = 0;
+            for(int i = 0; i < ESTIMATE_LEAVES; i ++) {
+                Node leaf = Node.loadNode(this, leafUid);
+                LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+                leaf.release();
+                count += res.size;
+                if(res.siblingUid == 0) {
+                    return count;
+                }
+                leafUid = res.siblingUid;
+            }
+
+            long nodeUid = rootUid();
+            while(true) {
+                InnerNode inner = innerNode(nodeUid);
+                if(inner.isLeaf()) {
+                    return count;
+                }
+                int l = inner.lowerBound(leftKey);
+                if(l == inner.keys.length) {
+                    nodeUid = inner.sibling;
+                    continue;
+                }
+                // 重复的 key 可能延伸到键值等于它的子节点之后的子节点中
+                int r = Math.min(inner.upperBound(rightKey), inner.keys.length-1);
+                if(l == r) {
+                    nodeUid = inner.sons[l];
+                    continue;
+                }
+                double[] tail = countFrom(inner.sons[l], leftKey, true);
+                double[] head = countFrom(inner.sons[r], rightKey, false);
+                long est = Math.round(tail[0] + head[0] + (r-l-1) * (tail[1] + head[1]) / 2);
+                return Math.max(est, count);
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    // 估计以 nodeUid 为根的子树中不小于（tail 为 true）或不大于 key 的项数，以及子树的总项数
+    private double[] countFrom(long nodeUid, long key, boolean tail) throws Exception {
+        InnerNode inner = innerNode(nodeUid);
+        if(inner.isLeaf()) {
+            Node leaf = Node.loadNode(this, nodeUid);
+            try {
+                int part = tail ? leaf.leafSearchRange(key, Long.MAX_VALUE).size : leaf.leafSearchRange(Long.MIN_VALUE, key).size;
+                return new double[]{part, leaf.getNoKeys()};
+            } finally {
+                leaf.release();
+            }
+        }
+        int n = inner.keys.length;
+        int kth = Math.min(inner.lowerBound(key), n-1);
+        double[] son = countFrom(inner.sons[kth], key, tail);
+        int others = tail ? n-1-kth : kth;
+        return new double[]{son[0] + others * son[1], n * son[1]};
+    }
+
+    public interface Liveness {
+        boolean isLive(long uid) throws Exception;
+    }
+
+    // 从第一个叶子向后查找第一个满足 liveness 的项，返回 {key, uid}，没有时返回 null
+    public long[] firstLive(Liveness liveness) throws Exception {
+        IndexCursor cursor = cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            if(liveness.isLive(uid)) {
+                return new long[]{cursor.key(), uid};
+            }
+        }
+        return null;
+    }
+
+    // 从最后一个叶子向前查找第一个满足 liveness 的项，返回 {key, uid}，没有时返回 null。
+    // 叶子之间只有向右的兄弟指针，所以从根开始按子节点逆序深度优先遍历，通常只读取最右边的一条路径。
+    // 已分裂但还没有插入父节点的节点只能通过兄弟指针找到，每个子节点都沿兄弟指针遍历到下一个子节点为止
+    public long[] lastLive(Liveness liveness) throws Exception {
+        structureLock.readLock().lock();
+        try {
+            return lastLive(rootUid(), 0, liveness);
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    // 逆序遍历从 nodeUid 开始、沿兄弟指针到 stopUid 之前（stopUid 为 0 时到最后）的各个节点
+    private long[] lastLive(long nodeUid, long stopUid, Liveness liveness) throws Exception {
+        List<Long> chain = new ArrayList<>();
+        for(long uid = nodeUid; uid != 0 && uid != stopUid; ) {
+            chain.add(uid);
+            InnerNode inner = innerNode(uid);
+            if(inner.isLeaf()) {
+                Node leaf = Node.loadNode(this, uid);
+                uid = leaf.getSibling();
+                leaf.release();
+            } else {
+                uid = inner.sibling;
+            }
+        }
+        // 链中最后一个节点的最后一个子节点，沿兄弟指针遍历到 stopUid 的第一个子节点之前
+        long nextFirst = stopUid == 0 || innerNode(stopUid).isLeaf() ? 0 : innerNode(stopUid).sons[0];
+        for(int c = chain.size()-1; c >= 0; c --) {
+            long uid = chain.get(c);
+            InnerNode inner = innerNode(uid);
+            if(inner.isLeaf()) {
+                Node leaf = Node.loadNode(this, uid);
+                LeafSearchRangeRes res = leaf.leafSearchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+                leaf.release();
+                for(int i = res.size-1; i >= 0; i --) {
+                    if(liveness.isLive(res.uids[i])) {
+                        return new long[]{res.keys[i], res.uids[i]};
+                    }
+                }
+                continue;
+            }
+            for(int i = inner.sons.length-1; i >= 0; i --) {
+                long stop = i+1 < inner.sons.length ? inner.sons[i+1] : nextFirst;
+                long[] found = lastLive(inner.sons[i], stop, liveness);
+                if(found != null) {
+                    return found;
+                }
+            }
+            nextFirst = inner.sons.length > 0 ? inner.sons[0] : nextFirst;
+        }
+        return null;
+    }
+
+    // 唯一索引的插入：树中已有的同一个 key 的项都已失效时才插入，否则返回 false。
+    // 同一个 key 的唯一插入在 uniqueLocks 的同一把锁上串行执行，检查和插入之间不会有其他的插入
+    public boolean insertUnique(long key, long uid, Liveness liveness) throws Exception {
+        Lock lock = uniqueLocks[(int)((key ^ (key >>> 32)) & (UNIQUE_LOCKS - 1))];
+        lock.lock();
+        try {
+            IndexCursor cursor = cursor(key, key);
+            while(cursor.hasNext()) {
+                if(liveness.isLive(cursor.next())) {
+                    return false;
+                }
+            }
+            insert(key, uid);
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return uids;
     }
 
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        structureLock.readLock().lock();
+        try {
+            long rootUid = rootUid();
+            InsertRes res = insert(rootUid, uid, key);
+            assert res != null;
+            if(res.newNode != 0) {
+                updateRootUid(res.splitNode, res.newNode, res.newKey);
+            }
+        } finally {
+            structureLock.readLock().unlock();
         }
     }
 
+    // splitNode 为发生分裂的节点，newNode 为分裂出的新节点，newKey 为新节点的最小键值
     class InsertRes {
-        long newNode, newKey;
+        long splitNode, newNode, newKey;
     }
 
     private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+        SearchNextRes next = searchNext(nodeUid, key, false);
 
         InsertRes res = null;
-        if(isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
+        if(next.isLeaf) {
+            res = insertAndSplit(nodeUid, uid, key, 0);
         } else {
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
+            InsertRes ir = insert(next.uid, uid, key);
             if(ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey, ir.splitNode);
             } else {
                 res = new InsertRes();
             }
@@ -165,15 +477,19 @@ public class BPlusTree {
         return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, long key, long leftSon) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
-            InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            InsertAndSplitRes iasr = node.insertAndSplit(uid, key, leftSon);
             node.release();
+            if(leftSon != 0) {
+                invalidate(nodeUid);
+            }
             if(iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
             } else {
                 InsertRes res = new InsertRes();
+                res.splitNode = nodeUid;
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
                 return res;
@@ -181,7 +497,118 @@ public class BPlusTree {
         }
     }
 
+    // 删除 (key, uid) 索引项，返回是否找到
+    public boolean delete(long key, long uid) throws Exception {
+        LeafDeleteRes res = null;
+        boolean isRoot = false;
+        structureLock.readLock().lock();
+        try {
+            long rootUid = rootUid();
+            long leafUid = searchLeaf(rootUid, key);
+            isRoot = leafUid == rootUid;
+            while(leafUid != 0) {
+                Node leaf = Node.loadNode(this, leafUid);
+                res = leaf.leafDelete(key, uid);
+                leaf.release();
+                if(res.deleted) {
+                    break;
+                }
+                leafUid = res.siblingUid;
+            }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+        if(res == null || !res.deleted) {
+            return false;
+        }
+        if(res.underflow && !isRoot) {
+            rebalance(key);
+        }
+        return true;
+    }
+
+    private void rebalance(long key) throws Exception {
+        structureLock.writeLock().lock();
+        try {
+            rebalance(rootUid(), key);
+            collapseRoot();
+            rebalances ++;
+            // 节点被合并或释放，丢弃所有内部节点快照
+            generation.incrementAndGet();
+            inners.clear();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    // 修复 nodeUid 的子树中可能包含 key 的下溢节点，先修复子节点，再修复子节点本身。
+    // 重复的 key 可能分布在多个子节点中，从右向左处理，合并只影响当前及右边的项
+    private void rebalance(long nodeUid, long key) throws Exception {
+        Node node = Node.loadNode(this, nodeUid);
+        try {
+            InnerNode inner = node.decode();
+            if(inner.isLeaf()) {
+                return;
+            }
+            int lo = inner.lowerBound(key);
+            int hi = Math.min(inner.upperBound(key), inner.sons.length-1);
+            for(int j = hi; j >= lo; j --) {
+                rebalance(inner.sons[j], key);
+                merge(node, j);
+            }
+        } finally {
+            node.release();
+        }
+    }
+
+    // 第 kth 个子节点下溢时，与相邻的兄弟合并
+    private void merge(Node parent, int kth) throws Exception {
+        InnerNode inner = parent.decode();
+        int noKeys = inner.sons.length;
+        if(noKeys < 2) {
+            return;
+        }
+        int l = kth, r = kth+1;
+        if(r == noKeys) {
+            l = kth-1;
+            r = kth;
+        }
+        Node left = Node.loadNode(this, inner.sons[l]);
+        Node right = Node.loadNode(this, inner.sons[r]);
+        try {
+            int leftKeys = left.getNoKeys(), rightKeys = right.getNoKeys();
+            if((kth == l ? leftKeys : rightKeys) >= Node.MIN_KEYS) {
+                return;
+            }
+            // 右节点尚未插入父节点时，两者在兄弟链上不相邻
+            if(left.getSibling() != right.uid || leftKeys + rightKeys > Node.MERGE_LIMIT) {
+                return;
+            }
+            parent.removeSon(l);
+            left.absorb(right);
+        } finally {
+            left.release();
+            right.release();
+        }
+        dm.free(inner.sons[r]);
+    }
+
+    // 根节点只剩一个子节点时，将该子节点作为新的根
+    private void collapseRoot() throws Exception {
+        while(true) {
+            long root = rootUid();
+            Node node = Node.loadNode(this, root);
+            InnerNode inner = node.decode();
+            node.release();
+            if(inner.isLeaf() || inner.sons.length != 1) {
+                return;
+            }
+            setRootUid(inner.sons[0]);
+            dm.free(root);
+        }
+    }
+
+    // bootDataItem 不再常驻缓存，关闭时没有需要释放的 DataItem
     public void close() {
-        bootDataItem.release();
     }
 }
@@ -0,0 +1,134 @@
+package top.guoziyang.mydb.backend.im;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 哈希桶存储在一条固定长度的 DataItem 中，结构如下：
+ * [OverflowFlag][LocalDepth][KeyNumber][Pattern][NextUid]
+ * [Key0][Uid0][Key1][Uid1]...[KeyN][UidN]
+ *
+ * 哈希值的低 LocalDepth 位等于 Pattern 的 key 属于这个桶，称为桶的区域。
+ * 所有的桶通过 NextUid 串成一条链表，分裂出的新桶总是插在原来的桶之后。
+ * OverflowFlag 为 1 的桶是溢出桶，与它前面的桶属于同一个区域，紧跟在区域的第一个桶之后。
+ *
+ * HashBucket 是读取时拷贝出的快照，修改时由调用方生成完整的新内容，通过 write 整体写回
+ */
+public class HashBucket {
+    static final int OVERFLOW_OFFSET = 0;
+    static final int DEPTH_OFFSET = OVERFLOW_OFFSET+1;
+    static final int NO_KEYS_OFFSET = DEPTH_OFFSET+1;
+    static final int PATTERN_OFFSET = NO_KEYS_OFFSET+2;
+    static final int NEXT_OFFSET = PATTERN_OFFSET+4;
+    static final int BUCKET_HEADER_SIZE = NEXT_OFFSET+8;
+
+    static final int CAPACITY = 64;
+    static final int BUCKET_SIZE = BUCKET_HEADER_SIZE + (2*8)*CAPACITY;
+
+    long uid;
+    boolean overflow;
+    int depth;
+    int pattern;
+    long next;
+    int noKeys;
+    long[] keys = new long[CAPACITY];
+    long[] uids = new long[CAPACITY];
+
+    HashBucket(long uid, boolean overflow, int depth, int pattern, long next) {
+        this.uid = uid;
+        this.overflow = overflow;
+        this.depth = depth;
+        this.pattern = pattern;
+        this.next = next;
+    }
+
+    static int mask(int depth) {
+        return (1 << depth) - 1;
+    }
+
+    // 哈希值 hash 是否属于这个桶的区域
+    boolean covers(long hash) {
+        return ((int)hash & mask(depth)) == pattern;
+    }
+
+    // 是否是区域的第一个桶 head 的溢出桶
+    boolean isOverflowOf(HashBucket head) {
+        return overflow && depth == head.depth && pattern == head.pattern;
+    }
+
+    boolean isFull() {
+        return noKeys == CAPACITY;
+    }
+
+    void add(long key, long uid) {
+        keys[noKeys] = key;
+        uids[noKeys] = uid;
+        noKeys ++;
+    }
+
+    // 删除第 i 项，桶内的项没有顺序，用最后一项填补空位
+    void remove(int i) {
+        noKeys --;
+        keys[i] = keys[noKeys];
+        uids[i] = uids[noKeys];
+    }
+
+    byte[] toRaw() {
+        byte[] raw = new byte[BUCKET_SIZE];
+        raw[OVERFLOW_OFFSET] = (byte)(overflow ? 1 : 0);
+        raw[DEPTH_OFFSET] = (byte)depth;
+        Parser.putShort(raw, NO_KEYS_OFFSET, (short)noKeys);
+        Parser.putInt(raw, PATTERN_OFFSET, pattern);
+        Parser.putLong(raw, NEXT_OFFSET, next);
+        for(int i = 0; i < noKeys; i ++) {
+            Parser.putLong(raw, BUCKET_HEADER_SIZE+i*(8*2), keys[i]);
+            Parser.putLong(raw, BUCKET_HEADER_SIZE+i*(8*2)+8, uids[i]);
+        }
+        return raw;
+    }
+
+    // 在读锁下拷贝出桶的快照
+    static HashBucket load(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        di.rLock();
+        try {
+            SubArray raw = di.data();
+            byte[] buf = raw.raw;
+            int s = raw.start;
+            HashBucket b = new HashBucket(uid, buf[s+OVERFLOW_OFFSET] == (byte)1, buf[s+DEPTH_OFFSET],
+                Parser.parseInt(buf, s+PATTERN_OFFSET), Parser.parseLong(buf, s+NEXT_OFFSET));
+            b.noKeys = Parser.parseShort(buf, s+NO_KEYS_OFFSET);
+            for(int i = 0; i < b.noKeys; i ++) {
+                b.keys[i] = Parser.parseLong(buf, s+BUCKET_HEADER_SIZE+i*(8*2));
+                b.uids[i] = Parser.parseLong(buf, s+BUCKET_HEADER_SIZE+i*(8*2)+8);
+            }
+            return b;
+        } finally {
+            di.rUnLock();
+            di.release();
+        }
+    }
+
+    // 通过一次 before()/after() 整体写回，崩溃后由日志重做
+    void write(DataManager dm) throws Exception {
+        byte[] image = toRaw();
+        DataItem di = dm.read(uid);
+        di.before();
+        try {
+            SubArray raw = di.data();
+            System.arraycopy(image, 0, raw.raw, raw.start, image.length);
+        } finally {
+            di.after(TransactionManagerImpl.SUPER_XID);
+            di.release();
+        }
+    }
+
+    // 以新桶的形式插入，返回其 UID
+    long insert(DataManager dm) throws Exception {
+        uid = dm.insert(TransactionManagerImpl.SUPER_XID, toRaw());
+        return uid;
+    }
+}
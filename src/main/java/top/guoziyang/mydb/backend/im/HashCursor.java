@@ -0,0 +1,91 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.NoSuchElementException;
+
+/**
+ * HashCursor 每次从一个桶中读取一批项。
+ * leftKey 等于 rightKey 时为等值查找，只读取 key 所在区域的桶；否则沿链表读取所有的桶，过滤出范围内的项。
+ *
+ * 前进时使用读取桶时记下的 NextUid。之后这个桶分裂出的新桶插在它的后面，不会被读到，
+ * 新桶中的项是从已经读过的桶中移过去的，所以不会重复返回
+ */
+public class HashCursor implements IndexCursor {
+    private HashIndex index;
+    private long leftKey;
+    private long rightKey;
+
+    private long[] keys = new long[HashBucket.CAPACITY];
+    private long[] uids = new long[HashBucket.CAPACITY];
+    private int pos;
+    private int size;
+
+    private boolean started;
+    private long nextBucket;
+    // 等值查找时 key 所在区域的第一个桶
+    private HashBucket head;
+    private long lastKey;
+
+    HashCursor(HashIndex index, long leftKey, long rightKey) {
+        this.index = index;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+    }
+
+    @Override
+    public boolean hasNext() throws Exception {
+        while(pos == size) {
+            if(!fetch()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long next() throws Exception {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        lastKey = keys[pos];
+        return uids[pos ++];
+    }
+
+    @Override
+    public long key() {
+        return lastKey;
+    }
+
+    // 读取下一个桶中的项，已经读完时返回 false
+    private boolean fetch() throws Exception {
+        if(leftKey > rightKey || (started && nextBucket == 0)) {
+            return false;
+        }
+        HashBucket b;
+        if(!started) {
+            started = true;
+            if(leftKey == rightKey) {
+                head = index.locate(HashIndex.hash(leftKey));
+                b = head;
+            } else {
+                b = HashBucket.load(index.dm, index.headUid());
+            }
+        } else {
+            b = HashBucket.load(index.dm, nextBucket);
+            if(head != null && !b.isOverflowOf(head)) {
+                nextBucket = 0;
+                return false;
+            }
+        }
+        nextBucket = b.next;
+        pos = 0;
+        size = 0;
+        for(int i = 0; i < b.noKeys; i ++) {
+            if(leftKey <= b.keys[i] && b.keys[i] <= rightKey) {
+                keys[size] = b.keys[i];
+                uids[size] = b.uids[i];
+                size ++;
+            }
+        }
+        return true;
+    }
+}
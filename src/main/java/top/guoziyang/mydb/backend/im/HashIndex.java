@@ -0,0 +1,317 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/*
+ * 可扩展哈希索引，只支持等值查找。与 B+ 树一样，所有数据通过 DM 存储，使用的事务都是 SUPER_XID。
+ *
+ * 目录记录哈希值的低 GlobalDepth 位到桶的映射，按 SEGMENT_SLOTS 个槽切分为多个段，每个段存储在一条 DataItem 中：
+ * Boot: [TopUid]
+ * Top: [GlobalDepth][Segment0Uid][Segment1Uid]...
+ * Segment: [BucketUid0][BucketUid1]...
+ * 目录在加载时读入内存，查找时从内存中的目录取得桶的 UID，只需要读取一个桶。
+ *
+ * ---------------------------------------------------------------------------------------------------------------------------
+ * 插入：
+ * 区域内的桶都满了时分裂区域的第一个桶：LocalDepth 加一，哈希值新增的一位为 1 的项移到新桶中。分裂分三步：
+ * 先插入新桶，新桶的 NextUid 为原桶的 NextUid；再原地改写原桶，去掉移走的项，NextUid 指向新桶；
+ * 最后修改目录中指向新桶区域的槽，LocalDepth 超过 GlobalDepth 时先将目录加倍。
+ * 和 B-link 树的兄弟指针一样，目录中的槽即使过时，指向的桶之后的链表中仍能找到包含目标区域的桶，
+ * 所以任意一步之后崩溃，索引仍然是完整的，目录的修改也不需要是原子的。
+ *
+ * 分裂无法分开区域内的项（例如大量重复的 key），或者 LocalDepth 已达到 MAX_DEPTH 时，在区域末尾追加溢出桶。
+ * 有溢出桶的区域不再分裂。
+ *
+ * 删除只从桶中摘除项，桶不会合并，空的溢出桶也留在链表中。
+ *
+ * ---------------------------------------------------------------------------------------------------------------------------
+ * 并发：
+ * 插入和删除持有 lock，彼此串行；读者不加这把锁，读取桶时持有 DataItem 的读锁，拷贝出快照。
+ * 桶只会被分裂到链表中它之后的位置，读者沿链表查找即可，不会错过目标。
+ */
+public class HashIndex {
+    static final int SEGMENT_BITS = 9;
+    static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    // Top 中最多 2^(MAX_DEPTH-SEGMENT_BITS) 个段，仍能放入一个页面
+    static final int MAX_DEPTH = 18;
+
+    DataManager dm;
+    long bootUid;
+    volatile Directory dir;
+    Lock lock;
+
+    // 内存中的目录，加倍时整体替换
+    static class Directory {
+        int depth;
+        long topUid;
+        long[] segUids;
+        AtomicLongArray slots;
+    }
+
+    public static long create(DataManager dm) throws Exception {
+        HashBucket bucket = new HashBucket(0, false, 0, 0, 0);
+        long bucketUid = bucket.insert(dm);
+        long segUid = dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(bucketUid));
+        long topUid = dm.insert(TransactionManagerImpl.SUPER_XID, topRaw(0, new long[]{segUid}));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(topUid));
+    }
+
+    public static HashIndex load(long bootUid, DataManager dm) throws Exception {
+        HashIndex h = new HashIndex();
+        h.dm = dm;
+        h.bootUid = bootUid;
+        h.lock = new ReentrantLock();
+        h.dir = h.loadDirectory();
+        return h;
+    }
+
+    private Directory loadDirectory() throws Exception {
+        Directory d = new Directory();
+        DataItem bootDataItem = dm.read(bootUid);
+        SubArray raw = bootDataItem.data();
+        d.topUid = Parser.parseLong(raw.raw, raw.start);
+        bootDataItem.release();
+
+        DataItem top = dm.read(d.topUid);
+        raw = top.data();
+        d.depth = raw.raw[raw.start];
+        d.segUids = new long[noSegments(d.depth)];
+        for(int i = 0; i < d.segUids.length; i ++) {
+            d.segUids[i] = Parser.parseLong(raw.raw, raw.start+1+i*8);
+        }
+        top.release();
+
+        d.slots = new AtomicLongArray(1 << d.depth);
+        int perSeg = slotsPerSegment(d.depth);
+        for(int i = 0; i < d.segUids.length; i ++) {
+            DataItem seg = dm.read(d.segUids[i]);
+            raw = seg.data();
+            for(int j = 0; j < perSeg; j ++) {
+                d.slots.set(i*perSeg+j, Parser.parseLong(raw.raw, raw.start+j*8));
+            }
+            seg.release();
+        }
+        return d;
+    }
+
+    private static int noSegments(int depth) {
+        return depth <= SEGMENT_BITS ? 1 : 1 << (depth - SEGMENT_BITS);
+    }
+
+    private static int slotsPerSegment(int depth) {
+        return Math.min(1 << depth, SEGMENT_SLOTS);
+    }
+
+    private static byte[] topRaw(int depth, long[] segUids) {
+        byte[] raw = new byte[1+segUids.length*8];
+        raw[0] = (byte)depth;
+        for(int i = 0; i < segUids.length; i ++) {
+            Parser.putLong(raw, 1+i*8, segUids[i]);
+        }
+        return raw;
+    }
+
+    // 打散 key 的各位，使连续的 key 均匀地分布到各个桶中
+    static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    // 链表的第一个桶，它的区域始终包含哈希值为 0 的 key，所以目录的第一个槽总是指向它
+    long headUid() {
+        return dir.slots.get(0);
+    }
+
+    // 从目录给出的桶出发，沿链表找到包含 hash 的区域的第一个桶
+    HashBucket locate(long hash) throws Exception {
+        Directory d = dir;
+        long uid = d.slots.get((int)hash & HashBucket.mask(d.depth));
+        while(true) {
+            HashBucket b = HashBucket.load(dm, uid);
+            if(b.covers(hash) && !b.overflow) {
+                return b;
+            }
+            uid = b.next;
+        }
+    }
+
+    public IndexCursor cursor(long leftKey, long rightKey) {
+        return new HashCursor(this, leftKey, rightKey);
+    }
+
+    public void insert(long key, long uid) throws Exception {
+        long hash = hash(key);
+        lock.lock();
+        try {
+            while(true) {
+                HashBucket head = locate(hash);
+                HashBucket last = head;
+                while(true) {
+                    if(!last.isFull()) {
+                        last.add(key, uid);
+                        last.write(dm);
+                        return;
+                    }
+                    if(last.next == 0) break;
+                    HashBucket b = HashBucket.load(dm, last.next);
+                    if(!b.isOverflowOf(head)) break;
+                    last = b;
+                }
+                if(last == head && head.depth < MAX_DEPTH && canSplit(head, hash)) {
+                    split(head);
+                    continue;
+                }
+                // 在区域的末尾追加溢出桶
+                HashBucket overflow = new HashBucket(0, true, head.depth, head.pattern, last.next);
+                overflow.add(key, uid);
+                last.next = overflow.insert(dm);
+                last.write(dm);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 所有项与新的 key 的哈希值都相同时，分裂无法腾出空间
+    private boolean canSplit(HashBucket b, long hash) {
+        for(int i = 0; i < b.noKeys; i ++) {
+            if(hash(b.keys[i]) != hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void split(HashBucket b) throws Exception {
+        int high = 1 << b.depth;
+        HashBucket right = new HashBucket(0, false, b.depth+1, b.pattern | high, b.next);
+        HashBucket left = new HashBucket(b.uid, false, b.depth+1, b.pattern, 0);
+        for(int i = 0; i < b.noKeys; i ++) {
+            if(((int)hash(b.keys[i]) & high) != 0) {
+                right.add(b.keys[i], b.uids[i]);
+            } else {
+                left.add(b.keys[i], b.uids[i]);
+            }
+        }
+        left.next = right.insert(dm);
+        left.write(dm);
+
+        if(right.depth > dir.depth) {
+            doubleDirectory();
+        }
+        updateSlots(right);
+    }
+
+    // 将目录中属于 b 的区域的槽指向 b，同一个段中的槽一次写回
+    private void updateSlots(HashBucket b) throws Exception {
+        Directory d = dir;
+        int perSeg = slotsPerSegment(d.depth);
+        int step = 1 << b.depth;
+        int slot = b.pattern;
+        while(slot < (1 << d.depth)) {
+            int seg = slot / perSeg;
+            DataItem di = dm.read(d.segUids[seg]);
+            di.before();
+            try {
+                SubArray raw = di.data();
+                for(; slot < (seg+1)*perSeg; slot += step) {
+                    Parser.putLong(raw.raw, raw.start+(slot-seg*perSeg)*8, b.uid);
+                    d.slots.set(slot, b.uid);
+                }
+            } finally {
+                di.after(TransactionManagerImpl.SUPER_XID);
+                di.release();
+            }
+        }
+    }
+
+    // 目录加倍：后一半的槽与前一半相同。段未满时写入一个两倍大小的新段，否则复制出一组新的段，
+    // 然后写入新的 Top，再原地修改 Boot。旧的 Top 和被替换的段在 Boot 修改之后释放
+    private void doubleDirectory() throws Exception {
+        Directory old = dir;
+        int n = 1 << old.depth;
+        Directory d = new Directory();
+        d.depth = old.depth+1;
+        d.slots = new AtomicLongArray(n*2);
+        for(int i = 0; i < n; i ++) {
+            d.slots.set(i, old.slots.get(i));
+            d.slots.set(i+n, old.slots.get(i));
+        }
+        if(d.depth <= SEGMENT_BITS) {
+            byte[] seg = new byte[n*2*8];
+            for(int i = 0; i < n*2; i ++) {
+                Parser.putLong(seg, i*8, d.slots.get(i));
+            }
+            d.segUids = new long[]{dm.insert(TransactionManagerImpl.SUPER_XID, seg)};
+        } else {
+            int noSegs = old.segUids.length;
+            d.segUids = new long[noSegs*2];
+            for(int i = 0; i < noSegs; i ++) {
+                byte[] seg = new byte[SEGMENT_SLOTS*8];
+                for(int j = 0; j < SEGMENT_SLOTS; j ++) {
+                    Parser.putLong(seg, j*8, old.slots.get(i*SEGMENT_SLOTS+j));
+                }
+                d.segUids[i] = old.segUids[i];
+                d.segUids[i+noSegs] = dm.insert(TransactionManagerImpl.SUPER_XID, seg);
+            }
+        }
+        d.topUid = dm.insert(TransactionManagerImpl.SUPER_XID, topRaw(d.depth, d.segUids));
+
+        DataItem bootDataItem = dm.read(bootUid);
+        bootDataItem.before();
+        try {
+            SubArray raw = bootDataItem.data();
+            Parser.putLong(raw.raw, raw.start, d.topUid);
+        } finally {
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            bootDataItem.release();
+        }
+        dir = d;
+
+        dm.free(old.topUid);
+        if(d.depth <= SEGMENT_BITS) {
+            dm.free(old.segUids[0]);
+        }
+    }
+
+    // 摘除 (key, uid) 对应的项，不存在时返回 false
+    public boolean delete(long key, long uid) throws Exception {
+        long hash = hash(key);
+        lock.lock();
+        try {
+            HashBucket head = locate(hash);
+            HashBucket b = head;
+            while(true) {
+                for(int i = 0; i < b.noKeys; i ++) {
+                    if(b.keys[i] == key && b.uids[i] == uid) {
+                        b.remove(i);
+                        b.write(dm);
+                        return true;
+                    }
+                }
+                if(b.next == 0) {
+                    return false;
+                }
+                b = HashBucket.load(dm, b.next);
+                if(!b.isOverflowOf(head)) {
+                    return false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package top.guoziyang.mydb.backend.im;
+
+/**
+ * IndexCursor 依次返回索引中 key 落在某个范围内的项。
+ * B+ 树的实现为 TreeCursor，按 key 有序返回；哈希索引的实现为 HashCursor，不保证顺序
+ */
+public interface IndexCursor {
+    boolean hasNext() throws Exception;
+
+    // 返回下一项的 uid，调用前需要先通过 hasNext() 确认还有下一项
+    long next() throws Exception;
+
+    // 上一次 next() 返回的项的 key
+    long key();
+}
@@ -0,0 +1,73 @@
+package top.guoziyang.mydb.backend.im;
+
+/**
+ * InnerNode 是内部节点解码后的只读快照，常驻在 BPlusTree 的缓存中
+ * keys 与 sons 一一对应，含义同 Node 中的 [SonN][KeyN]
+ *
+ * 快照不随节点修改而更新，节点被修改时由 BPlusTree 将其从缓存中删除。
+ * 叶子节点不解码，缓存中只记录一个 LEAF 标记，叶子节点不会变成内部节点，这个标记始终有效。
+ */
+class InnerNode {
+
+    static final InnerNode LEAF = new InnerNode(new long[0], new long[0], 0);
+
+    final long[] keys;
+    final long[] sons;
+    final long sibling;
+
+    InnerNode(long[] keys, long[] sons, long sibling) {
+        this.keys = keys;
+        this.sons = sons;
+        this.sibling = sibling;
+    }
+
+    boolean isLeaf() {
+        return this == LEAF;
+    }
+
+    static class SearchNextRes {
+        boolean isLeaf;
+        long uid;
+        long siblingUid;
+    }
+
+    // searchNext 寻找对应 key 的 UID, 如果找不到, 则返回兄弟节点的 UID
+    // leftmost 为 false 时返回第一个键值大于 key 的子节点，插入 key 时使用；
+    // 为 true 时返回第一个键值不小于 key 的子节点，重复的 key 可能分布在多个子节点中，查找时需要从最左边可能包含 key 的子节点开始
+    SearchNextRes searchNext(long key, boolean leftmost) {
+        SearchNextRes res = new SearchNextRes();
+        int kth = leftmost ? lowerBound(key) : upperBound(key);
+        if(kth < keys.length) {
+            res.uid = sons[kth];
+            return res;
+        }
+        res.siblingUid = sibling;
+        return res;
+    }
+
+    int lowerBound(long key) {
+        int lo = 0, hi = keys.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    int upperBound(long key) {
+        int lo = 0, hi = keys.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(keys[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
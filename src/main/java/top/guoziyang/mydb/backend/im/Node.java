@@ -1,8 +1,6 @@
 package top.guoziyang.mydb.backend.im;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.function.Supplier;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
@@ -17,6 +15,11 @@ import top.guoziyang.mydb.backend.utils.Parser;
  * 其中 LeafFlag 标记了该节点是否是个叶子节点；KeyNumber 为该节点中 key 的个数；
  * SiblingUid 是其兄弟节点存储在 DM 中的 UID。后续是穿插的子节点（SonN）和 KeyN。(Keyn记录Sonn+1页的最小值？)
  * 最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找
+ *
+ * 查找不加读锁，而是乐观读：记下节点的版本戳，读完后校验期间节点没有被修改，否则重读。
+ * 节点只会通过 before()/after() 修改，修改期间持有版本戳的写锁。
+ * 读到的子节点或兄弟节点可能已经过时（例如刚刚发生了分裂），但分裂只会把项移到右边的新节点，
+ * 并由兄弟指针串起来（B-link），所以沿兄弟指针向右就能找到目标，不需要从根重新查找。
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
@@ -25,7 +28,13 @@ public class Node {
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
     static final int BALANCE_NUMBER = 32;
+    // 删除后项数少于 MIN_KEYS 的节点视为下溢，与相邻节点合并后的项数不超过 MERGE_LIMIT 时才合并，
+    // 给合并后的节点留出插入的余量，避免刚合并又分裂
+    static final int MIN_KEYS = BALANCE_NUMBER/2;
+    static final int MERGE_LIMIT = BALANCE_NUMBER*3/2;
     static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+    // 乐观读连续失败的次数超过该值后，加读锁读取
+    static final int OPTIMISTIC_RETRIES = 4;
 
     //Node 类持有了其 B+ 树结构的引用，DataItem 的引用和 SubArray 的引用，用于方便快速修改数据和释放数据
     BPlusTree tree;
@@ -46,39 +55,39 @@ public class Node {
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)Parser.parseShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.parseLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -86,12 +95,34 @@ public class Node {
         System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
     }
 
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+    // 将第 kth 项到第 noKeys-1 项整体后移一项，空出第 kth 项
+    static void shiftRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        int end = raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+        System.arraycopy(raw.raw, begin, raw.raw, begin+(8*2), end-begin);
+    }
+
+    static int indexOfSon(SubArray raw, int noKeys, long son) {
+        for(int i = 0; i < noKeys; i ++) {
+            if(getRawKthSon(raw, i) == son) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 二分查找第一个不小于 key 的项，不存在时返回 noKeys
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(getRawKthKey(raw, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
         }
+        return lo;
     }
 
     // 生成一个根节点的数据
@@ -110,6 +141,21 @@ public class Node {
         return raw.raw;
     }
 
+    // 生成一个由 keys、sons 中 [begin, end) 项组成的节点数据，用于批量建树
+    static byte[] newNodeRaw(boolean isLeaf, long sibling, long[] keys, long[] sons, int begin, int end) {
+        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, end-begin);
+        setRawSibling(raw, sibling);
+        for(int i = begin; i < end; i ++) {
+            setRawKthSon(raw, sons[i], i-begin);
+            setRawKthKey(raw, keys[i], i-begin);
+        }
+
+        return raw.raw;
+    }
+
     // 生成一个空的根节点数据
     static byte[] newNilRootRaw()  {
         SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
@@ -136,83 +182,181 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
+    // 乐观地执行只读操作 reader，校验失败时重试，多次失败后加读锁执行。
+    // 并发修改时 reader 可能读到不一致的数据而越界，此时的结果同样作废
+    private <T> T read(Supplier<T> reader) {
+        for(int i = 0; i < OPTIMISTIC_RETRIES; i ++) {
+            long stamp = dataItem.tryOptimisticRead();
+            if(stamp == 0) {
+                continue;
+            }
+            T res;
+            try {
+                res = reader.get();
+            } catch(IndexOutOfBoundsException | NegativeArraySizeException e) {
+                continue;
+            }
+            if(dataItem.validate(stamp)) {
+                return res;
+            }
+        }
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return reader.get();
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    class SearchNextRes {
-        long uid;
-        long siblingUid;
+    // 将节点解码为 InnerNode 快照，叶子节点返回 InnerNode.LEAF
+    InnerNode decode() {
+        return read(() -> {
+            if(getRawIfLeaf(raw)) {
+                return InnerNode.LEAF;
+            }
+            int noKeys = getRawNoKeys(raw);
+            long[] keys = new long[noKeys];
+            long[] sons = new long[noKeys];
+            for(int i = 0; i < noKeys; i ++) {
+                keys[i] = getRawKthKey(raw, i);
+                sons[i] = getRawKthSon(raw, i);
+            }
+            return new InnerNode(keys, sons, getRawSibling(raw));
+        });
     }
 
+    int getNoKeys() {
+        return read(() -> getRawNoKeys(raw));
+    }
 
-    // searchNext 寻找对应 key 的 UID, 如果找不到, 则返回兄弟节点的 UID
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
+    long getSibling() {
+        return read(() -> getRawSibling(raw));
+    }
+
+    // 合并：将右兄弟 right 的所有项追加到当前节点之后，并接管它的兄弟指针
+    // 调用方需保证合并后的项数不超过节点容量
+    void absorb(Node right) {
+        dataItem.before();
         try {
-            SearchNextRes res = new SearchNextRes();
             int noKeys = getRawNoKeys(raw);
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i);
-                if(key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
-            }
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
+            int rightKeys = getRawNoKeys(right.raw);
+            int from = right.raw.start+NODE_HEADER_SIZE;
+            int to = raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+            System.arraycopy(right.raw.raw, from, raw.raw, to, rightKeys*(8*2));
+            setRawNoKeys(raw, noKeys+rightKeys);
+            setRawSibling(raw, getRawSibling(right.raw));
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
 
+    // 第 kth+1 个子节点被合并进第 kth 个子节点：第 kth 项接管第 kth+1 项的键值，删除第 kth+1 项
+    void removeSon(int kth) {
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            setRawKthKey(raw, getRawKthKey(raw, kth+1), kth);
+            int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
+            int end = raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+            System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, end-begin-(8*2));
+            setRawNoKeys(raw, noKeys-1);
         } finally {
-            dataItem.rUnLock();
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
         }
     }
 
     class LeafSearchRangeRes {
-        List<Long> uids;
+        long[] keys;
+        long[] uids;
+        int size;
         long siblingUid;
     }
 
     // leafSearchRange 方法在当前节点进行范围查找，范围是 [leftKey, rightKey]，
     // 这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点
     public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
+        return read(() -> {
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
-                }
-                kth ++;
-            }
-            List<Long> uids = new ArrayList<>();
+            int kth = lowerBound(raw, noKeys, leftKey);
+            LeafSearchRangeRes res = new LeafSearchRangeRes();
+            res.keys = new long[noKeys - kth];
+            res.uids = new long[noKeys - kth];
             while(kth < noKeys) {
                 long ik = getRawKthKey(raw, kth);
                 if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
+                    res.keys[res.size] = ik;
+                    res.uids[res.size] = getRawKthSon(raw, kth);
+                    res.size ++;
                     kth ++;
                 } else {
                     break;
                 }
             }
-            long siblingUid = 0;
             if(kth == noKeys) {
-                siblingUid = getRawSibling(raw);
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        });
+    }
+
+    class LeafLookupRes {
+        boolean found;
+        long uid;
+        long siblingUid;
+    }
+
+    // leafLookup 返回叶子中第一个等于 key 的项，叶子中的 key 都小于 key 时返回兄弟节点的 UID
+    public LeafLookupRes leafLookup(long key) {
+        return read(() -> {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            LeafLookupRes res = new LeafLookupRes();
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            } else if(getRawKthKey(raw, kth) == key) {
+                res.found = true;
+                res.uid = getRawKthSon(raw, kth);
+            }
+            return res;
+        });
+    }
+
+    class LeafDeleteRes {
+        boolean deleted;
+        boolean underflow;
+        long siblingUid;
+    }
+
+    // leafDelete 在叶子节点中删除 (key, uid) 这一项。
+    // 没找到且当前节点的 key 都不大于 key 时，返回兄弟节点的 UID，重复的 key 可能延续到兄弟节点中
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            while(kth < noKeys && getRawKthKey(raw, kth) == key) {
+                if(getRawKthSon(raw, kth) == uid) {
+                    int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+                    int end = raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+                    System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, end-begin-(8*2));
+                    setRawNoKeys(raw, noKeys-1);
+                    res.deleted = true;
+                    res.underflow = noKeys-1 < MIN_KEYS;
+                    return res;
+                }
+                kth ++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
             }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
             return res;
         } finally {
-            dataItem.rUnLock();
+            if(res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
         }
     }
 
@@ -220,14 +364,15 @@ public class Node {
         long siblingUid, newSon, newKey;
     }
 
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    // 在内部节点中插入时，leftSon 为刚刚分裂的子节点，新的子节点 uid 紧跟在它之后
+    public InsertAndSplitRes insertAndSplit(long uid, long key, long leftSon) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            success = insert(uid, key, leftSon);
             if(!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
@@ -254,29 +399,31 @@ public class Node {
         }
     }
 
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, long key, long leftSon) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
+        int kth = lowerBound(raw, noKeys, key);
+        if(!getRawIfLeaf(raw) && leftSon != 0) {
+            // 存在重复的 key 时，按 key 定位可能落在分裂节点的左边，按子节点定位
+            int son = indexOfSon(raw, noKeys, leftSon);
+            if(son == -1 && getRawSibling(raw) != 0) {
+                return false;
+            }
+            if(son != -1) {
+                kth = son;
             }
         }
         if(kth == noKeys && getRawSibling(raw) != 0)
             return false;
 
         if(getRawIfLeaf(raw)) {
-            shiftRawKth(raw, kth);
+            shiftRawKth(raw, kth, noKeys);
             setRawKthKey(raw, key, kth);
             setRawKthSon(raw, uid, kth);
             setRawNoKeys(raw, noKeys+1);
         } else {
             long kk = getRawKthKey(raw, kth);
             setRawKthKey(raw, key, kth);
-            shiftRawKth(raw, kth+1);
+            shiftRawKth(raw, kth+1, noKeys);
             setRawKthKey(raw, kk, kth+1);
             setRawKthSon(raw, uid, kth+1);
             setRawNoKeys(raw, noKeys+1);
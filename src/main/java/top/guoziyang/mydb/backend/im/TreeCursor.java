@@ -0,0 +1,137 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import top.guoziyang.mydb.backend.im.Node.LeafSearchRangeRes;
+
+/**
+ * TreeCursor 沿叶子链表依次返回 [leftKey, rightKey] 中的项，每次从一个叶子中读取一批，
+ * 占用的内存只与叶子的大小有关，与结果的数量无关。
+ *
+ * 两批之间不持有任何锁，下一个叶子在此期间可能分裂，分裂不会释放节点，沿兄弟指针仍能读到全部的项；
+ * 但也可能被合并释放，所以读取前检查树的 rebalances 计数，发生过合并时从上次返回的 key 重新向下查找。
+ * 重复的 key 可能跨越多个叶子，重新查找时要跳过已经返回过的、key 等于上次的 key 的项，
+ * 这些项的 uid 记录在 seen 中，key 变化时清空。
+ */
+public class TreeCursor implements IndexCursor {
+    private BPlusTree tree;
+    private long leftKey;
+    private long rightKey;
+
+    private long[] keys = new long[0];
+    private long[] uids = new long[0];
+    private int pos;
+    private int size;
+
+    private boolean started;
+    private long nextLeaf;
+    private long rebalances;
+
+    private long lastKey;
+    private long[] seen = new long[4];
+    private int noSeen;
+
+    TreeCursor(BPlusTree tree, long leftKey, long rightKey) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.lastKey = leftKey;
+    }
+
+    @Override
+    public boolean hasNext() throws Exception {
+        while(pos == size) {
+            if(!fetch()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long next() throws Exception {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        long key = keys[pos];
+        if(key != lastKey) {
+            lastKey = key;
+            noSeen = 0;
+        }
+        if(noSeen == seen.length) {
+            seen = Arrays.copyOf(seen, noSeen * 2);
+        }
+        seen[noSeen ++] = uids[pos];
+        return uids[pos ++];
+    }
+
+    @Override
+    public long key() {
+        return lastKey;
+    }
+
+    // 读取下一个叶子中的项，已经读完时返回 false
+    private boolean fetch() throws Exception {
+        if(leftKey > rightKey || (started && nextLeaf == 0)) {
+            return false;
+        }
+        tree.structureLock.readLock().lock();
+        try {
+            long leafUid;
+            boolean resume = false;
+            if(!started) {
+                leafUid = tree.searchLeaf(tree.rootUid(), leftKey);
+                started = true;
+            } else if(rebalances != tree.rebalances) {
+                leafUid = tree.searchLeaf(tree.rootUid(), lastKey);
+                resume = true;
+            } else {
+                leafUid = nextLeaf;
+            }
+            rebalances = tree.rebalances;
+            while(true) {
+                Node leaf = Node.loadNode(tree, leafUid);
+                LeafSearchRangeRes res = leaf.leafSearchRange(resume ? lastKey : leftKey, rightKey);
+                leaf.release();
+                keys = res.keys;
+                uids = res.uids;
+                pos = 0;
+                size = resume ? skipSeen(res.size) : res.size;
+                nextLeaf = res.siblingUid;
+                if(size > 0) {
+                    return true;
+                }
+                if(nextLeaf == 0) {
+                    return false;
+                }
+                leafUid = nextLeaf;
+            }
+        } finally {
+            tree.structureLock.readLock().unlock();
+        }
+    }
+
+    // 去掉 key 等于 lastKey 且已经返回过的项
+    private int skipSeen(int n) {
+        int size = 0;
+        for(int i = 0; i < n; i ++) {
+            if(keys[i] == lastKey && isSeen(uids[i])) {
+                continue;
+            }
+            keys[size] = keys[i];
+            uids[size] = uids[i];
+            size ++;
+        }
+        return size;
+    }
+
+    private boolean isSeen(long uid) {
+        for(int i = 0; i < noSeen; i ++) {
+            if(seen[i] == uid) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
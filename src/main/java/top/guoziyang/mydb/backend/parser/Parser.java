@@ -4,12 +4,16 @@ import java.util.ArrayList;
 import java.util.List;
 
 import top.guoziyang.mydb.backend.parser.statement.Abort;
+import top.guoziyang.mydb.backend.parser.statement.Analyze;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
 import top.guoziyang.mydb.backend.parser.statement.Commit;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Drop;
+import top.guoziyang.mydb.backend.parser.statement.Explain;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
+import top.guoziyang.mydb.backend.parser.statement.Join;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Show;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
@@ -60,6 +64,12 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "explain":
+                    stat = parseExplain(tokenizer);
+                    break;
+                case "analyze":
+                    stat = parseAnalyze(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -83,6 +93,44 @@ public class Parser {
         return stat;
     }
 
+    private static Analyze parseAnalyze(Tokenizer tokenizer) throws Exception {
+        Analyze analyze = new Analyze();
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        analyze.tableName = tableName;
+        tokenizer.pop();
+        return analyze;
+    }
+
+    // explain 之后是一条 select、update 或 delete 语句
+    private static Explain parseExplain(Tokenizer tokenizer) throws Exception {
+        Explain explain = new Explain();
+        String token = tokenizer.peek();
+        tokenizer.pop();
+        switch(token) {
+            case "select":
+                Select read = parseSelect(tokenizer);
+                explain.tableName = read.tableName;
+                explain.statement = read;
+                break;
+            case "update":
+                Update update = parseUpdate(tokenizer);
+                explain.tableName = update.tableName;
+                explain.statement = update;
+                break;
+            case "delete":
+                Delete delete = parseDelete(tokenizer);
+                explain.tableName = delete.tableName;
+                explain.statement = delete;
+                break;
+            default:
+                throw Error.InvalidCommandException;
+        }
+        return explain;
+    }
+
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -175,13 +223,17 @@ public class Parser {
         return insert;
     }
 
+    // select 的每一项是字段名、* 或聚合函数 func(field)，count 还可以是 count(*)
     private static Select parseSelect(Tokenizer tokenizer) throws Exception {
         Select read = new Select();
 
         List<String> fields = new ArrayList<>();
+        List<String> aggregates = new ArrayList<>();
+        boolean aggregated = false;
         String asterisk = tokenizer.peek();
         if("*".equals(asterisk)) {
             fields.add(asterisk);
+            aggregates.add(null);
             tokenizer.pop();
         } else {
             while(true) {
@@ -189,8 +241,26 @@ public class Parser {
                 if(!isName(field)) {
                     throw Error.InvalidCommandException;
                 }
-                fields.add(field);
                 tokenizer.pop();
+                // 函数名之后是 ( 时为聚合，否则是字段名
+                if(isAggregate(field) && "(".equals(tokenizer.peek())) {
+                    tokenizer.pop();
+                    String arg = tokenizer.peek();
+                    if(!("count".equals(field) && "*".equals(arg)) && !isName(arg)) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    if(!")".equals(tokenizer.peek())) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    fields.add(arg);
+                    aggregates.add(field);
+                    aggregated = true;
+                } else {
+                    fields.add(field);
+                    aggregates.add(null);
+                }
                 if(",".equals(tokenizer.peek())) {
                     tokenizer.pop();
                 } else {
@@ -199,6 +269,9 @@ public class Parser {
             }
         }
         read.fields = fields.toArray(new String[fields.size()]);
+        if(aggregated) {
+            read.aggregates = aggregates.toArray(new String[aggregates.size()]);
+        }
 
         if(!"from".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -212,16 +285,113 @@ public class Parser {
         read.tableName = tableName;
         tokenizer.pop();
 
-        String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
-            read.where = null;
-            return read;
+        if("join".equals(tokenizer.peek()) || "inner".equals(tokenizer.peek())) {
+            read.join = parseJoin(tokenizer);
+        }
+        if("where".equals(tokenizer.peek())) {
+            read.where = parseWhere(tokenizer);
+        }
+        if("group".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"by".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            read.groupBy = parseNames(tokenizer);
+        }
+        if("order".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"by".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            parseOrderBy(tokenizer, read);
+        }
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            try {
+                read.limit = Integer.parseInt(tokenizer.peek());
+            } catch(NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(read.limit < 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
         }
-
-        read.where = parseWhere(tokenizer);
         return read;
     }
 
+    // 解析 [inner] join table on field1 = field2
+    private static Join parseJoin(Tokenizer tokenizer) throws Exception {
+        if("inner".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"join".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        tokenizer.pop();
+        Join join = new Join();
+        join.tableName = tokenizer.peek();
+        if(!isName(join.tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        join.leftField = tokenizer.peek();
+        if(!isName(join.leftField)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        join.rightField = tokenizer.peek();
+        if(!isName(join.rightField)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return join;
+    }
+
+    // 解析 field1 [asc|desc], field2 [asc|desc], ...
+    private static void parseOrderBy(Tokenizer tokenizer, Select read) throws Exception {
+        List<String> names = new ArrayList<>();
+        List<Boolean> desc = new ArrayList<>();
+        while(true) {
+            String name = tokenizer.peek();
+            if(!isName(name)) {
+                throw Error.InvalidCommandException;
+            }
+            names.add(name);
+            tokenizer.pop();
+            String dir = tokenizer.peek();
+            desc.add("desc".equals(dir));
+            if("asc".equals(dir) || "desc".equals(dir)) {
+                tokenizer.pop();
+            }
+            if(",".equals(tokenizer.peek())) {
+                tokenizer.pop();
+            } else {
+                break;
+            }
+        }
+        read.orderBy = names.toArray(new String[names.size()]);
+        read.desc = new boolean[desc.size()];
+        for(int i = 0; i < read.desc.length; i ++) {
+            read.desc[i] = desc.get(i);
+        }
+    }
+
+    private static boolean isAggregate(String func) {
+        return "count".equals(func) || "sum".equals(func) || "min".equals(func)
+            || "max".equals(func) || "avg".equals(func);
+    }
+
     private static Where parseWhere(Tokenizer tokenizer) throws Exception {
         Where where = new Where();
 
@@ -233,23 +403,17 @@ public class Parser {
         SingleExpression exp1 = parseSingleExp(tokenizer);
         where.singleExp1 = exp1;
 
+        // 条件之后还可以有 group by 等子句，多余的 token 由 Parse 检查
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
-            return where;
-        }
         if(!isLogicOp(logicOp)) {
-            throw Error.InvalidCommandException;
+            where.logicOp = "";
+            return where;
         }
         where.logicOp = logicOp;
         tokenizer.pop();
 
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
-
-        if(!"".equals(tokenizer.peek())) {
-            throw Error.InvalidCommandException;
-        }
         return where;
     }
 
@@ -276,7 +440,7 @@ public class Parser {
     }
 
     private static boolean isCmpOp(String op) {
-        return ("=".equals(op) || ">".equals(op) || "<".equals(op));
+        return ("=".equals(op) || ">".equals(op) || "<".equals(op) || "like".equals(op));
     }
 
     private static boolean isLogicOp(String op) {
@@ -304,7 +468,94 @@ public class Parser {
         return drop;
     }
 
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    // create index on tableName (fieldName1, fieldName2, ...) [include (fieldName3, ...)]
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        CreateIndex create = new CreateIndex();
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        create.tableName = tableName;
+        tokenizer.pop();
+
+        create.fieldName = parseNameList(tokenizer);
+        create.included = new String[0];
+        if("include".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            create.included = parseNameList(tokenizer);
+        }
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return create;
+    }
+
+    // 解析 (name1, name2, ...) 形式的字段列表
+    private static String[] parseNameList(Tokenizer tokenizer) throws Exception {
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String[] names = parseNames(tokenizer);
+
+        if(!")".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return names;
+    }
+
+    // 解析 name1, name2, ... 形式的字段列表
+    private static String[] parseNames(Tokenizer tokenizer) throws Exception {
+        List<String> names = new ArrayList<>();
+        while(true) {
+            String name = tokenizer.peek();
+            if(!isName(name)) {
+                throw Error.InvalidCommandException;
+            }
+            names.add(name);
+            tokenizer.pop();
+            if(",".equals(tokenizer.peek())) {
+                tokenizer.pop();
+            } else {
+                break;
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if("unique".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"index".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            CreateIndex create = parseCreateIndex(tokenizer);
+            create.unique = true;
+            return create;
+        }
+        if("hash".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"index".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            CreateIndex create = parseCreateIndex(tokenizer);
+            create.hash = true;
+            return create;
+        }
+        if("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return parseCreateIndex(tokenizer);
+        }
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -343,7 +594,7 @@ public class Parser {
             if(",".equals(next)) {
                 continue;
             } else if("".equals(next)) {
-                throw Error.TableNoIndexException;
+                break;
             } else if("(".equals(next)) {
                 break;
             } else {
@@ -353,26 +604,39 @@ public class Parser {
         create.fieldName = fNames.toArray(new String[fNames.size()]);
         create.fieldType = fTypes.toArray(new String[fTypes.size()]);
 
-        tokenizer.pop();
-        if(!"index".equals(tokenizer.peek())) {
-            throw Error.InvalidCommandException;
-        }
-
+        // 可选的 (index field1 field2 ...)、(unique field1 field2 ...) 和 (hash field1 field2 ...)，
+        // 其中的字段分别建立普通索引、唯一索引和哈希索引。没有索引的表通过扫描存放记录的页面查询
         List<String> indexes = new ArrayList<>();
-        while(true) {
+        List<String> unique = new ArrayList<>();
+        List<String> hash = new ArrayList<>();
+        while("(".equals(tokenizer.peek())) {
             tokenizer.pop();
-            String field = tokenizer.peek();
-            if(")".equals(field)) {
-                break;
-            }
-            if(!isName(field)) {
-                throw Error.InvalidCommandException;
+            List<String> names;
+            if("index".equals(tokenizer.peek())) {
+                names = indexes;
+            } else if("unique".equals(tokenizer.peek())) {
+                names = unique;
+            } else if("hash".equals(tokenizer.peek())) {
+                names = hash;
             } else {
-                indexes.add(field);
+                throw Error.InvalidCommandException;
+            }
+            while(true) {
+                tokenizer.pop();
+                String field = tokenizer.peek();
+                if(")".equals(field)) {
+                    break;
+                }
+                if(!isName(field)) {
+                    throw Error.InvalidCommandException;
+                }
+                names.add(field);
             }
+            tokenizer.pop();
         }
         create.index = indexes.toArray(new String[indexes.size()]);
-        tokenizer.pop();
+        create.unique = unique.toArray(new String[unique.size()]);
+        create.hash = hash.toArray(new String[hash.size()]);
 
         if(!"".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
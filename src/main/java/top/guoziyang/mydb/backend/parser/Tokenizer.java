@@ -98,7 +98,8 @@ public class Tokenizer {
         StringBuilder sb = new StringBuilder();
         while(true) {
             Byte b = peekByte();
-            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_')) {
+            // 表名.字段名 作为一个 token
+            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_' || b == '.')) {
                 if(b != null && isBlank(b)) {
                     popByte();
                 }
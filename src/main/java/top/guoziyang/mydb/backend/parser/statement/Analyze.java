@@ -0,0 +1,5 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class Analyze {
+    public String tableName;
+}
@@ -0,0 +1,9 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class CreateIndex {
+    public String tableName;
+    public String[] fieldName;
+    public String[] included;
+    public boolean unique;
+    public boolean hash;
+}
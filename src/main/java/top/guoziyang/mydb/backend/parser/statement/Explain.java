@@ -0,0 +1,7 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class Explain {
+    public String tableName;
+    // Select、Update 或 Delete
+    public Object statement;
+}
@@ -0,0 +1,8 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+// select ... from t1 join t2 on leftField = rightField，字段名可以写成 表名.字段名
+public class Join {
+    public String tableName;
+    public String leftField;
+    public String rightField;
+}
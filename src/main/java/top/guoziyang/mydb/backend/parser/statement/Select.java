@@ -3,5 +3,17 @@ package top.guoziyang.mydb.backend.parser.statement;
 public class Select {
     public String tableName;
     public String[] fields;
+    // 与 fields 一一对应的聚合函数（count、sum、min、max、avg），不是聚合的项为 null；
+    // count(*) 的字段为 *。没有任何聚合时为 null
+    public String[] aggregates;
+    // 没有 group by 时为 null
+    public String[] groupBy;
+    // 没有 join 时为 null
+    public Join join;
     public Where where;
+    // 没有 order by 时为 null，desc 与 orderBy 一一对应
+    public String[] orderBy;
+    public boolean[] desc;
+    // 没有 limit 时为 -1
+    public int limit = -1;
 }
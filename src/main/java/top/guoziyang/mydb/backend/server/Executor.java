@@ -1,11 +1,16 @@
 package top.guoziyang.mydb.backend.server;
 
+import java.io.ByteArrayOutputStream;
+
 import top.guoziyang.mydb.backend.parser.Parser;
 import top.guoziyang.mydb.backend.parser.statement.Abort;
+import top.guoziyang.mydb.backend.parser.statement.Analyze;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
 import top.guoziyang.mydb.backend.parser.statement.Commit;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
+import top.guoziyang.mydb.backend.parser.statement.Explain;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Show;
@@ -13,6 +18,7 @@ import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.tbm.BeginRes;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.common.Error;
+import top.guoziyang.mydb.common.ResultSink;
 
 // Executor 调用 Parser 获取到对应语句的结构化信息对象，并根据对象的类型，调用 TBM 的不同方法进行处理
 public class Executor {
@@ -32,6 +38,13 @@ public class Executor {
     }
 
     public byte[] execute(byte[] sql) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        execute(sql, out::write);
+        return out.toByteArray();
+    }
+
+    // 结果按块写入 sink：select 的结果每批一块，随读随写，其余语句的结果只有一块
+    public void execute(byte[] sql, ResultSink sink) throws Exception {
         System.out.println("Execute: " + new String(sql));
         Object stat = Parser.Parse(sql);
         if(Begin.class.isInstance(stat)) {
@@ -40,27 +53,27 @@ public class Executor {
             }
             BeginRes r = tbm.begin((Begin)stat);
             xid = r.xid;
-            return r.result;
+            sink.write(r.result);
         } else if(Commit.class.isInstance(stat)) {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
             byte[] res = tbm.commit(xid);
             xid = 0;
-            return res;
+            sink.write(res);
         } else if(Abort.class.isInstance(stat)) {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
             byte[] res = tbm.abort(xid);
             xid = 0;
-            return res;
+            sink.write(res);
         } else {
-            return execute2(stat);
+            execute2(stat, sink);
         }
     }
 
-    private byte[] execute2(Object stat) throws Exception {
+    private void execute2(Object stat, ResultSink sink) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
@@ -74,16 +87,25 @@ public class Executor {
                 res = tbm.show(xid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
+            } else if(CreateIndex.class.isInstance(stat)) {
+                res = tbm.createIndex(xid, (CreateIndex)stat);
             } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
+                tbm.read(xid, (Select)stat, sink);
+                return;
             } else if(Insert.class.isInstance(stat)) {
                 res = tbm.insert(xid, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
                 res = tbm.delete(xid, (Delete)stat);
             } else if(Update.class.isInstance(stat)) {
                 res = tbm.update(xid, (Update)stat);
+            } else if(Explain.class.isInstance(stat)) {
+                res = tbm.explain(xid, (Explain)stat);
+            } else if(Analyze.class.isInstance(stat)) {
+                res = tbm.analyze(xid, (Analyze)stat);
+            }
+            if(res != null) {
+                sink.write(res);
             }
-            return res;
         } catch(Exception e1) {
             e = e1;
             throw e;
@@ -96,15 +96,20 @@ class HandleSocket implements Runnable {
                 break;
             }
             byte[] sql = pkg.getData();
-            byte[] result = null;
             Exception e = null;
+            // 结果的每一块先作为部分结果发出，最后发送一个空的数据包或错误表示结束
+            Packager p = packager;
             try {
-                result = exe.execute(sql);
+                exe.execute(sql, chunk -> {
+                    if(chunk.length > 0) {
+                        p.send(Package.partial(chunk));
+                    }
+                });
             } catch (Exception e1) {
                 e = e1;
                 e.printStackTrace();
             }
-            pkg = new Package(result, e);
+            pkg = new Package(new byte[0], e);
             try {
                 packager.send(pkg);
             } catch (Exception e1) {
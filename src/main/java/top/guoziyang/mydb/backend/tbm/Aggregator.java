@@ -0,0 +1,409 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * Aggregator 是哈希聚合：按 group by 列的值将记录分组，每组维护一组累加器，读完全部记录后每组输出一行。
+ * 累加器都是 long：count、sum 各占一个，avg 占两个（和与个数），int32、int64 的 min、max 占一个；
+ * 只有 string 的 min、max 放在 String 数组中。每组还记录行数，行数为 0 时 sum、min、max、avg 输出 null。
+ *
+ * 组占用的内存按 key 和累加器的大小估计，超过 budget 时溢出：将内存中的全部组按 key 的哈希值写入
+ * SPILL_PARTITIONS 个临时文件并清空，之后继续聚合。累加器可以合并（count、sum、avg 相加，min、max 取较小、较大者），
+ * 同一组的部分结果总在同一个分区中，所以读完全部记录后将内存中的组也写入分区，再逐个分区合并输出。
+ * 分区合并时仍然超过 budget 的，取哈希值的另外几位继续划分
+ */
+class Aggregator {
+    static final long MEMORY_BUDGET = 16 << 20;
+    static final int SPILL_PARTITIONS = 16;
+    // 每一层划分使用哈希值的 4 位，32 位用完后不再溢出
+    private static final int MAX_LEVEL = 8;
+
+    static final byte COUNT = 0;
+    static final byte SUM = 1;
+    static final byte MIN = 2;
+    static final byte MAX = 3;
+    static final byte AVG = 4;
+
+    private byte[] types;
+    private int[] groupCols;
+    private byte[] funcs;
+    // 聚合的列，count(*) 为 -1
+    private int[] aggCols;
+    // 每个聚合在 long 累加器中的位置
+    private int[] slots;
+    private int width;
+    // 输出的每一项：不小于 0 时为第几个聚合，否则 -(k+1) 为第 k 个 group by 列
+    private int[] items;
+    private long budget;
+    private int level;
+
+    private Map<Group, Group> groups = new HashMap<>();
+    private Group probe;
+    private long memory;
+    private File[] files;
+    private DataOutputStream[] outs;
+
+    Aggregator(byte[] types, int[] groupCols, byte[] funcs, int[] aggCols, int[] items, long budget) {
+        this.types = types;
+        this.groupCols = groupCols;
+        this.funcs = funcs;
+        this.aggCols = aggCols;
+        this.items = items;
+        this.budget = budget;
+        slots = new int[funcs.length];
+        for(int a = 0; a < funcs.length; a ++) {
+            slots[a] = width;
+            width += funcs[a] == AVG ? 2 : 1;
+        }
+        probe = new Group();
+    }
+
+    // 检查 select 的每一项：不是聚合的字段必须出现在 group by 中，sum、avg 只用于整数字段
+    static Aggregator compile(Table tb, Select read, long budget) throws Exception {
+        int[] groupCols = new int[read.groupBy == null ? 0 : read.groupBy.length];
+        for(int k = 0; k < groupCols.length; k ++) {
+            groupCols[k] = tb.column(read.groupBy[k]);
+        }
+        int noAggs = 0;
+        if(read.aggregates != null) {
+            for (String func : read.aggregates) {
+                if(func != null) noAggs ++;
+            }
+        }
+        byte[] funcs = new byte[noAggs];
+        int[] aggCols = new int[noAggs];
+        int[] items = new int[read.fields.length];
+        for(int i = 0, a = 0; i < items.length; i ++) {
+            String func = read.aggregates == null ? null : read.aggregates[i];
+            if(func == null) {
+                int col = "*".equals(read.fields[i]) ? -1 : tb.column(read.fields[i]);
+                int k = indexOf(groupCols, col);
+                if(k < 0) {
+                    throw Error.NotGroupedException;
+                }
+                items[i] = -(k+1);
+                continue;
+            }
+            funcs[a] = func2Byte(func);
+            aggCols[a] = "*".equals(read.fields[i]) ? -1 : tb.column(read.fields[i]);
+            if((funcs[a] == SUM || funcs[a] == AVG) && tb.codec.types[aggCols[a]] == RowCodec.STRING) {
+                throw Error.AggregateTypeException;
+            }
+            items[i] = a ++;
+        }
+        return new Aggregator(tb.codec.types, groupCols, funcs, aggCols, items, budget);
+    }
+
+    private static int indexOf(int[] a, int v) {
+        for(int i = 0; i < a.length; i ++) {
+            if(a[i] == v) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte func2Byte(String func) {
+        switch(func) {
+            case "count":
+                return COUNT;
+            case "sum":
+                return SUM;
+            case "min":
+                return MIN;
+            case "max":
+                return MAX;
+            default:
+                return AVG;
+        }
+    }
+
+    // 需要解码的列：group by 的列和聚合的列
+    boolean[] needed() {
+        boolean[] needed = new boolean[types.length];
+        for (int col : groupCols) {
+            needed[col] = true;
+        }
+        for (int col : aggCols) {
+            if(col >= 0) needed[col] = true;
+        }
+        return needed;
+    }
+
+    /**
+     * 一个组：group by 列的值作为 key，整数放在 longs 中，string 放在 strs 中
+     */
+    private class Group {
+        long[] longs = new long[groupCols.length];
+        String[] strs = new String[groupCols.length];
+        long rows;
+        long[] acc = new long[width];
+        String[] strAcc = new String[funcs.length];
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(longs) + Arrays.hashCode(strs);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            Group g = (Group)o;
+            return Arrays.equals(longs, g.longs) && Arrays.equals(strs, g.strs);
+        }
+
+        long size() {
+            long size = 64 + 16L * groupCols.length + 8L * width + 8L * funcs.length;
+            for (String s : strs) {
+                if(s != null) size += 40 + 2L * s.length();
+            }
+            for (String s : strAcc) {
+                if(s != null) size += 40 + 2L * s.length();
+            }
+            return size;
+        }
+    }
+
+    void add(Row row) throws Exception {
+        for(int k = 0; k < groupCols.length; k ++) {
+            boolean str = types[groupCols[k]] == RowCodec.STRING;
+            probe.longs[k] = str ? 0 : row.longs[groupCols[k]];
+            probe.strs[k] = str ? row.strs[groupCols[k]] : null;
+        }
+        Group g = groups.get(probe);
+        if(g == null) {
+            g = new Group();
+            System.arraycopy(probe.longs, 0, g.longs, 0, groupCols.length);
+            System.arraycopy(probe.strs, 0, g.strs, 0, groupCols.length);
+            groups.put(g, g);
+            memory += g.size();
+        }
+        g.rows ++;
+        for(int a = 0; a < funcs.length; a ++) {
+            int col = aggCols[a];
+            int slot = slots[a];
+            switch(funcs[a]) {
+                case COUNT:
+                    g.acc[slot] ++;
+                    break;
+                case SUM:
+                    g.acc[slot] += row.longs[col];
+                    break;
+                case AVG:
+                    g.acc[slot] += row.longs[col];
+                    g.acc[slot+1] ++;
+                    break;
+                default:
+                    if(types[col] == RowCodec.STRING) {
+                        String v = row.strs[col];
+                        if(g.strAcc[a] == null || better(funcs[a], Parser.compareStr(v, g.strAcc[a]))) {
+                            memory += g.strAcc[a] == null ? 40 + 2L * v.length() : 2L * (v.length() - g.strAcc[a].length());
+                            g.strAcc[a] = v;
+                        }
+                    } else if(g.rows == 1 || better(funcs[a], Long.compare(row.longs[col], g.acc[slot]))) {
+                        g.acc[slot] = row.longs[col];
+                    }
+            }
+        }
+        if(memory > budget && level < MAX_LEVEL) {
+            spill();
+        }
+    }
+
+    // 新值与当前值比较的结果为 c 时，是否替换当前值
+    private static boolean better(byte func, int c) {
+        return func == MIN ? c < 0 : c > 0;
+    }
+
+    // 将部分结果 g 合并到内存中的组
+    private void merge(Group g) throws Exception {
+        Group cur = groups.get(g);
+        if(cur == null) {
+            groups.put(g, g);
+            memory += g.size();
+        } else {
+            for(int a = 0; a < funcs.length; a ++) {
+                int slot = slots[a];
+                switch(funcs[a]) {
+                    case COUNT:
+                    case SUM:
+                        cur.acc[slot] += g.acc[slot];
+                        break;
+                    case AVG:
+                        cur.acc[slot] += g.acc[slot];
+                        cur.acc[slot+1] += g.acc[slot+1];
+                        break;
+                    default:
+                        if(types[aggCols[a]] == RowCodec.STRING) {
+                            if(better(funcs[a], Parser.compareStr(g.strAcc[a], cur.strAcc[a]))) {
+                                cur.strAcc[a] = g.strAcc[a];
+                            }
+                        } else if(better(funcs[a], Long.compare(g.acc[slot], cur.acc[slot]))) {
+                            cur.acc[slot] = g.acc[slot];
+                        }
+                }
+            }
+            cur.rows += g.rows;
+        }
+        if(memory > budget && level < MAX_LEVEL) {
+            spill();
+        }
+    }
+
+    private int partition(Group g) {
+        return Integer.rotateLeft(g.hashCode() * 0x9E3779B9, 4 * level) >>> 28;
+    }
+
+    private void spill() throws Exception {
+        if(outs == null) {
+            files = new File[SPILL_PARTITIONS];
+            outs = new DataOutputStream[SPILL_PARTITIONS];
+            for(int p = 0; p < SPILL_PARTITIONS; p ++) {
+                files[p] = File.createTempFile("mydb-agg", ".spill");
+                outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[p])));
+            }
+        }
+        for (Group g : groups.values()) {
+            writeGroup(outs[partition(g)], g);
+        }
+        groups.clear();
+        memory = 0;
+    }
+
+    private void writeGroup(DataOutputStream out, Group g) throws Exception {
+        for(int k = 0; k < groupCols.length; k ++) {
+            if(types[groupCols[k]] == RowCodec.STRING) {
+                writeString(out, g.strs[k]);
+            } else {
+                out.writeLong(g.longs[k]);
+            }
+        }
+        out.writeLong(g.rows);
+        for (long v : g.acc) {
+            out.writeLong(v);
+        }
+        for(int a = 0; a < funcs.length; a ++) {
+            if(aggCols[a] >= 0 && types[aggCols[a]] == RowCodec.STRING && (funcs[a] == MIN || funcs[a] == MAX)) {
+                writeString(out, g.strAcc[a]);
+            }
+        }
+    }
+
+    private Group readGroup(DataInputStream in) throws Exception {
+        Group g = new Group();
+        for(int k = 0; k < groupCols.length; k ++) {
+            if(types[groupCols[k]] == RowCodec.STRING) {
+                g.strs[k] = readString(in);
+            } else {
+                g.longs[k] = in.readLong();
+            }
+        }
+        g.rows = in.readLong();
+        for(int i = 0; i < width; i ++) {
+            g.acc[i] = in.readLong();
+        }
+        for(int a = 0; a < funcs.length; a ++) {
+            if(aggCols[a] >= 0 && types[aggCols[a]] == RowCodec.STRING && (funcs[a] == MIN || funcs[a] == MAX)) {
+                g.strAcc[a] = readString(in);
+            }
+        }
+        return g;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws Exception {
+        byte[] raw = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(raw.length);
+        out.write(raw);
+    }
+
+    static String readString(DataInputStream in) throws Exception {
+        byte[] raw = new byte[in.readInt()];
+        in.readFully(raw);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    // 输出全部的组。没有 group by 且没有记录时也输出一行
+    void finish(RowOutput out) throws Exception {
+        if(outs == null) {
+            if(groupCols.length == 0 && groups.isEmpty() && level == 0) {
+                out.write(values(new Group()));
+            }
+            for (Group g : groups.values()) {
+                out.write(values(g));
+            }
+            return;
+        }
+        spill();
+        for (DataOutputStream o : outs) {
+            o.close();
+        }
+        try {
+            for (File file : files) {
+                Aggregator sub = new Aggregator(types, groupCols, funcs, aggCols, items, budget);
+                sub.level = level + 1;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    while(true) {
+                        Group g;
+                        try {
+                            g = readGroup(in);
+                        } catch(EOFException e) {
+                            break;
+                        }
+                        sub.merge(g);
+                    }
+                }
+                file.delete();
+                sub.finish(out);
+            }
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private String[] values(Group g) {
+        String[] values = new String[items.length];
+        for(int i = 0; i < items.length; i ++) {
+            if(items[i] < 0) {
+                int k = -items[i] - 1;
+                values[i] = types[groupCols[k]] == RowCodec.STRING ? g.strs[k] : String.valueOf(g.longs[k]);
+            } else {
+                values[i] = printAggregate(g, items[i]);
+            }
+        }
+        return values;
+    }
+
+    private String printAggregate(Group g, int a) {
+        int slot = slots[a];
+        if(funcs[a] == COUNT) {
+            return String.valueOf(g.acc[slot]);
+        }
+        if(g.rows == 0) {
+            return "null";
+        }
+        switch(funcs[a]) {
+            case SUM:
+                return String.valueOf(g.acc[slot]);
+            case AVG:
+                return String.valueOf((double)g.acc[slot] / g.acc[slot+1]);
+            default:
+                return types[aggCols[a]] == RowCodec.STRING ? g.strAcc[a] : String.valueOf(g.acc[slot]);
+        }
+    }
+}
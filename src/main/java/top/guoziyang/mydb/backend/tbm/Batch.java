@@ -0,0 +1,128 @@
+package top.guoziyang.mydb.backend.tbm;
+
+/**
+ * Batch 是算子之间传递的一批行，按列存放：int32、int64 的列是 long 数组，string 的列是 String 数组，
+ * 第 i 行第 col 列的值为 longs[col][i] 或 strs[col][i]。没有解码的列不能读取。
+ *
+ * 选择向量 sel[0..count) 是这批行中仍然有效的行号，按行号递增。Filter 只缩短选择向量，不移动数据，
+ * Project 只重新排列列数组的引用，都不拷贝值
+ */
+class Batch {
+    static final int CAPACITY = 1024;
+
+    byte[] types;
+    long[][] longs;
+    String[][] strs;
+    // 已写入的行数
+    int size;
+    int[] sel = new int[CAPACITY];
+    int count;
+
+    Batch(byte[] types) {
+        this.types = types;
+        longs = new long[types.length][];
+        strs = new String[types.length][];
+        for(int col = 0; col < types.length; col ++) {
+            if(types[col] == RowCodec.STRING) {
+                strs[col] = new String[CAPACITY];
+            } else {
+                longs[col] = new long[CAPACITY];
+            }
+        }
+    }
+
+    private Batch(byte[] types, long[][] longs, String[][] strs) {
+        this.types = types;
+        this.longs = longs;
+        this.strs = strs;
+    }
+
+    boolean isFull() {
+        return size == CAPACITY;
+    }
+
+    void clear() {
+        size = 0;
+        count = 0;
+    }
+
+    // 追加一行，row 中解码了的列拷贝到这批行中
+    void add(Row row) {
+        put(row, 0);
+        next();
+    }
+
+    // 把 row 中解码了的列拷贝到正在写入的行中从第 offset 列开始的位置，写完一行的全部列后调用 next()
+    void put(Row row, int offset) {
+        for(int i = 0; i < row.decoded.length; i ++) {
+            if(!row.decoded[i]) continue;
+            int col = offset + i;
+            if(types[col] == RowCodec.STRING) {
+                strs[col][size] = row.strs[i];
+            } else {
+                longs[col][size] = row.longs[i];
+            }
+        }
+    }
+
+    void next() {
+        sel[count ++] = size ++;
+    }
+
+    // 追加一行已经是文本的值，只用于全部是 string 的 Batch
+    void add(String[] values) {
+        for(int col = 0; col < types.length; col ++) {
+            strs[col][size] = values[col];
+        }
+        sel[count ++] = size ++;
+    }
+
+    // 把第 i 行的全部列取到 row 中，用于还需要按行处理的算子
+    void get(int i, Row row) {
+        for(int col = 0; col < types.length; col ++) {
+            if(types[col] == RowCodec.STRING) {
+                row.strs[col] = strs[col][i];
+            } else {
+                row.longs[col] = longs[col][i];
+            }
+            row.decoded[col] = true;
+        }
+    }
+
+    String print(int col, int i) {
+        return types[col] == RowCodec.STRING ? strs[col][i] : String.valueOf(longs[col][i]);
+    }
+
+    // 只有列数组的引用，由 project() 填入
+    static Batch view(byte[] types) {
+        return new Batch(types, new long[types.length][], new String[types.length][]);
+    }
+
+    // 让 view 的第 k 列引用这批行的第 cols[k] 列，选择向量也直接引用
+    void project(int[] cols, Batch view) {
+        for(int k = 0; k < cols.length; k ++) {
+            view.longs[k] = longs[cols[k]];
+            view.strs[k] = strs[cols[k]];
+        }
+        view.sel = sel;
+        view.count = count;
+        view.size = size;
+    }
+
+    // 每一行输出为 [v1, v2, ...] 加换行
+    byte[] print() {
+        StringBuilder sb = new StringBuilder();
+        for(int j = 0; j < count; j ++) {
+            int i = sel[j];
+            sb.append("[");
+            for(int col = 0; col < types.length; col ++) {
+                if(col > 0) {
+                    sb.append(", ");
+                }
+                sb.append(print(col, i));
+            }
+            sb.append("]\n");
+        }
+        return sb.toString().getBytes();
+    }
+}
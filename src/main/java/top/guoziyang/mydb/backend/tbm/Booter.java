@@ -5,16 +5,23 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 // 由于 TBM 的表管理，使用的是链表串起的 Table 结构，所以就必须保存一个链表的头节点，即第一个表的 UID，
 // 这样在 MYDB 启动时，才能快速找到表信息
 // 记录第一个表的uid，管理启动信息
+// 文件格式为 [FirstTableUid][FormatVersion]，FormatVersion 为 4 字节，记录 Entry 头、页面布局等磁盘格式的版本，
+// 打开时版本不同（包括没有版本的旧文件）则拒绝打开，避免按新格式解析旧文件
 public class Booter {
     public static final String BOOTER_SUFFIX = ".bt";
     public static final String BOOTER_TMP_SUFFIX = ".bt_tmp";
+    // 磁盘格式改变时增加
+    public static final int FORMAT_VERSION = 2;
+    private static final int LEN_UID = 8;
 
     String path;
     File file;
@@ -44,7 +51,22 @@ public class Booter {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
-        return new Booter(path, f);
+        Booter booter = new Booter(path, f);
+        booter.checkVersion();
+        return booter;
+    }
+
+    // 在恢复和读取其他文件之前检查格式版本
+    public static void checkFormat(String path) {
+        open(path);
+    }
+
+    private void checkVersion() {
+        byte[] buf = read();
+        if(buf.length != LEN_UID + 4 ||
+            Parser.parseInt(buf, LEN_UID) != FORMAT_VERSION) {
+            Panic.panic(Error.BadFormatVersionException);
+        }
     }
 
     private static void removeBadTmp(String path) {
@@ -57,6 +79,10 @@ public class Booter {
     }
 
     public byte[] load() {
+        return Arrays.copyOf(read(), LEN_UID);
+    }
+
+    private byte[] read() {
         byte[] buf = null;
         try {
             buf = Files.readAllBytes(file.toPath());
@@ -82,6 +108,7 @@ public class Booter {
         }
         try(FileOutputStream out = new FileOutputStream(tmp)) {
             out.write(data);
+            out.write(Parser.int2Byte(FORMAT_VERSION));
             out.flush();
         } catch(IOException e) {
             Panic.panic(e);
@@ -1,35 +1,68 @@
 package top.guoziyang.mydb.backend.tbm;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.Overflow;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.im.BPlusTree;
+import top.guoziyang.mydb.backend.im.BPlusTree.Liveness;
+import top.guoziyang.mydb.backend.im.HashIndex;
+import top.guoziyang.mydb.backend.im.IndexCursor;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * field 表示字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
- * 如果这个字段有索引，那个 IndexUid 指向了索引二叉树的根
+ * [FieldName][TypeName][IndexUid][Flags]
+ * 如果这个字段有索引，那个 IndexUid 指向了索引二叉树的根，哈希索引则指向哈希索引的 Boot
  * 如果field无索引，IndexUid为0
+ * Flags 为 1 个字节，FLAG_UNIQUE 位表示索引是唯一索引，FLAG_HASH 位表示索引是哈希索引。
  * 这里 FieldName 和 TypeName，存储的都是字节形式的字符串。
  * 这里规定一个字符串的存储方式，以明确其存储边界
  * [StringLength][StringData]
+ *
+ * 索引的 key 为 64 位整数，int32、int64 直接作为 key；string 取前 8 个字节作为 key（见 Parser.str2Key），
+ * 前缀相同的字符串 key 相同，所以 string 索引只能给出候选记录，查询时需要用完整的值重新检查条件。
+ *
+ * 记录中 string 类型的值超过 TOAST_THRESHOLD 时，数据通过 Overflow 存储在溢出页中，记录内只保存指针：
+ * [Marker][OverflowUid]
+ * Marker 为负数，TOAST_PLAIN 表示原样存储，TOAST_DEFLATE 表示使用 Deflater 压缩后存储
  */
 public class Field {
+    static final int TOAST_THRESHOLD = PageCache.PAGE_SIZE / 4;
+    // 为已有数据建索引时，节点只装入部分项，为之后的插入留出空间
+    static final double INDEX_FILL_FACTOR = 0.8;
+    private static final int TOAST_PLAIN = -1;
+    private static final int TOAST_DEFLATE = -2;
+    private static final byte FLAG_UNIQUE = 1;
+    private static final byte FLAG_HASH = 2;
+
     long uid;
     private Table tb;
     String fieldName;
     String fieldType;
     private long index;
+    private boolean unique;
+    private boolean hash;
     private BPlusTree bt;
+    private HashIndex hi;
 
     // 通过一个 UID 从 VM 中读取并解析
     public static Field loadField(Table tb, long uid) {
@@ -64,9 +97,12 @@ public class Field {
         fieldType = res.str;
         position += res.next;
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        position += 8;
+        unique = (raw[position] & FLAG_UNIQUE) != 0;
+        hash = (raw[position] & FLAG_HASH) != 0;
         if(index != 0) {
             try {
-                bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+                loadIndex(index);
             } catch(Exception e) {
                 Panic.panic(e);
             }
@@ -74,14 +110,30 @@ public class Field {
         return this;
     }
 
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    private void loadIndex(long index) throws Exception {
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        if(hash) {
+            hi = HashIndex.load(index, dm);
+        } else {
+            bt = BPlusTree.load(index, dm);
+        }
+    }
+
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, boolean unique, boolean hash) throws Exception {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
-        if(indexed) {
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
-            f.index = index;
-            f.bt = bt;
+        if(unique && hash) {
+            throw Error.HashIndexException;
+        }
+        if(unique) {
+            f.uniqueCheck();
+            f.unique = true;
+        }
+        f.hash = hash;
+        if(indexed || unique || hash) {
+            DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+            f.index = hash ? HashIndex.create(dm) : BPlusTree.create(dm);
+            f.loadIndex(f.index);
         }
         f.persistSelf(xid);
         return f;
@@ -90,10 +142,57 @@ public class Field {
 
     // 创建一个字段时，将相关的信息通过 VM 持久化
     private void persistSelf(long xid) throws Exception {
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, selfRaw(index));
+    }
+
+    private byte[] selfRaw(long index) {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        byte flags = (byte)((unique ? FLAG_UNIQUE : 0) | (hash ? FLAG_HASH : 0));
+        return Bytes.concat(nameRaw, typeRaw, indexRaw, new byte[]{flags});
+    }
+
+    // 为已有的字段建立索引：由按 key 有序的 keys、uids 批量建树，或逐条插入哈希索引，再原地更新字段记录中的 IndexUid
+    public void createIndex(long xid, long[] keys, long[] uids, boolean unique, boolean hash) throws Exception {
+        if(unique && hash) {
+            throw Error.HashIndexException;
+        }
+        if(unique) {
+            uniqueCheck();
+            for(int i = 1; i < keys.length; i ++) {
+                if(keys[i] == keys[i-1]) {
+                    throw Error.DuplicatedKeyException;
+                }
+            }
+        }
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        long index;
+        if(hash) {
+            index = HashIndex.create(dm);
+            HashIndex hi = HashIndex.load(index, dm);
+            for(int i = 0; i < keys.length; i ++) {
+                hi.insert(keys[i], uids[i]);
+            }
+        } else {
+            index = BPlusTree.bulkLoad(dm, keys, uids, INDEX_FILL_FACTOR);
+        }
+        this.unique = unique;
+        this.hash = hash;
+        if(((TableManagerImpl)tb.tbm).vm.update(xid, uid, selfRaw(index)) == 0) {
+            this.unique = false;
+            this.hash = false;
+            throw Error.ConcurrentUpdateException;
+        }
+        loadIndex(index);
+        this.index = index;
+    }
+
+    // 唯一索引按 key 判断重复，只有 key 能完整表示值的类型才能建立唯一索引
+    private void uniqueCheck() throws Exception {
+        if(!exactKey()) {
+            throw Error.UniqueIndexTypeException;
+        }
     }
 
     private static void typeCheck(String fieldType) throws Exception {
@@ -106,13 +205,103 @@ public class Field {
         return index != 0;
     }
 
-    public void insert(Object key, long uid) throws Exception {
+    public boolean isUnique() {
+        return unique;
+    }
+
+    public boolean isHash() {
+        return hash;
+    }
+
+    // 唯一索引中已经有 xid 看来仍然存在的相同的值时，抛出 DuplicatedKeyException
+    public void insert(long xid, Object key, long uid) throws Exception {
         long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+        if(hash) {
+            hi.insert(uKey, uid);
+            return;
+        }
+        if(!unique) {
+            bt.insert(uKey, uid);
+            return;
+        }
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        if(!bt.insertUnique(uKey, uid, u -> vm.isLive(xid, u))) {
+            throw Error.DuplicatedKeyException;
+        }
+    }
+
+    // 唯一索引中是否已经有 xid 看来仍然存在的值 key，与 insert 的检查相同
+    public boolean isTaken(long xid, Object key) throws Exception {
+        long uKey = value2Uid(key);
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        IndexCursor cursor = bt.cursor(uKey, uKey);
+        while(cursor.hasNext()) {
+            if(vm.isLive(xid, cursor.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 唯一索引的点查，返回 key 对应的第一个 uid，没有时返回 0
+    public long lookupUnique(Object key) throws Exception {
+        return bt.lookupUnique(value2Uid(key));
+    }
+
+    // B+ 树索引中第一个和最后一个满足 liveness 的项，返回 {key, uid}，没有时返回 null
+    public long[] firstLive(Liveness liveness) throws Exception {
+        return bt.firstLive(liveness);
+    }
+
+    public long[] lastLive(Liveness liveness) throws Exception {
+        return bt.lastLive(liveness);
+    }
+
+    public void delete(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key);
+        if(hash) {
+            hi.delete(uKey, uid);
+            return;
+        }
+        bt.delete(uKey, uid);
     }
 
     public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+        List<Long> uids = new ArrayList<>();
+        IndexCursor cursor = cursor(left, right);
+        while(cursor.hasNext()) {
+            uids.add(cursor.next());
+        }
+        return uids;
+    }
+
+    // 哈希索引上的等值查找只读取 key 所在的桶，范围查找需要读取所有的桶，返回的项没有顺序
+    public IndexCursor cursor(long left, long right) {
+        if(hash) {
+            return hi.cursor(left, right);
+        }
+        return bt.cursor(left, right);
+    }
+
+    // 估计 [left, right] 中的索引项数。哈希索引只能估计等值查找，数出 key 所在区域中的项；
+    // 哈希索引上的范围查找需要读取所有的桶，返回 -1 表示不适用
+    public long estimate(long left, long right) throws Exception {
+        if(!hash) {
+            return bt.estimate(left, right);
+        }
+        if(left > right) {
+            return 0;
+        }
+        if(left != right) {
+            return -1;
+        }
+        long n = 0;
+        IndexCursor cursor = hi.cursor(left, right);
+        while(cursor.hasNext()) {
+            cursor.next();
+            n ++;
+        }
+        return n;
     }
 
     public Object string2Value(String str) {
@@ -132,7 +321,7 @@ public class Field {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = Parser.str2Key((String)key);
                 break;
             case "int32":
                 int uint = (int)key;
@@ -144,7 +333,34 @@ public class Field {
         return uid;
     }
 
-    public byte[] value2Raw(Object v) {
+    // 字段在组合索引的 key 中最多占的位数
+    int keyWidth() {
+        return "int32".equals(fieldType) ? 32 : 64;
+    }
+
+    // 能否从 key 中完整还原出字段的值，string 的 key 只是前缀
+    boolean exactKey() {
+        return !"string".equals(fieldType);
+    }
+
+    // 将 value2Uid 得到的 key 转为 keyWidth() 位的无符号保序编码，int32 的 key 先截断到 int 的范围内
+    long orderedKey(long key) {
+        if("int32".equals(fieldType)) {
+            key = Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, key));
+            return key - Integer.MIN_VALUE;
+        }
+        return key ^ Long.MIN_VALUE;
+    }
+
+    // orderedKey 的逆运算，只对 exactKey() 的字段有效
+    Object orderedKey2Value(long ordered) {
+        if("int32".equals(fieldType)) {
+            return (int)(ordered + Integer.MIN_VALUE);
+        }
+        return ordered ^ Long.MIN_VALUE;
+    }
+
+    public byte[] value2Raw(long xid, Object v) throws Exception {
         byte[] raw = null;
         switch(fieldType) {
             case "int32":
@@ -154,35 +370,96 @@ public class Field {
                 raw = Parser.long2Byte((long)v);
                 break;
             case "string":
-                raw = Parser.string2Byte((String)v);
+                byte[] data = ((String)v).getBytes(StandardCharsets.UTF_8);
+                if(4 + data.length > TOAST_THRESHOLD) {
+                    raw = toast(xid, data);
+                } else {
+                    raw = Bytes.concat(Parser.int2Byte(data.length), data);
+                }
                 break;
         }
         return raw;
     }
 
-    class ParseValueRes {
-        Object v;
-        int shift;
+    // 将过长的字符串写入溢出页，压缩后更短时存储压缩后的数据
+    private byte[] toast(long xid, byte[] data) throws Exception {
+        int marker = TOAST_PLAIN;
+        byte[] compressed = deflate(data);
+        if(compressed.length < data.length) {
+            marker = TOAST_DEFLATE;
+            data = compressed;
+        }
+        long overflowUid = Overflow.insert(((TableManagerImpl)tb.tbm).dm, xid, data);
+        ((TableManagerImpl)tb.tbm).vm.attachOverflow(xid, overflowUid);
+        return Bytes.concat(Parser.int2Byte(marker), Parser.long2Byte(overflowUid));
+    }
+
+    // 拷贝一份溢出数据，记录中的 Marker 不变
+    long copyToast(long xid, long overflowUid) throws Exception {
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        long uid = Overflow.insert(dm, xid, Overflow.read(dm, overflowUid));
+        ((TableManagerImpl)tb.tbm).vm.attachOverflow(xid, uid);
+        return uid;
+    }
+
+    // raw 的 pos 处的 string 存储在溢出页中时返回溢出数据的 UID，否则返回 0
+    long overflowUid(byte[] raw, int pos) {
+        return Parser.parseInt(raw, pos) < 0 ? Parser.parseLong(raw, pos+4) : 0;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        byte[] buf = new byte[1024];
+        while(!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    // 以流的形式读回溢出页中的字符串，压缩的数据边读边解压
+    private String detoast(int marker, long overflowUid) throws Exception {
+        InputStream in = Overflow.open(((TableManagerImpl)tb.tbm).dm, overflowUid);
+        if(marker == TOAST_DEFLATE) {
+            in = new InflaterInputStream(in);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
     }
 
-    public ParseValueRes parserValue(byte[] raw) {
-        ParseValueRes res = new ParseValueRes();
+    // 值在记录中占用的字节数，不读取溢出页
+    public int valueSize(byte[] raw, int pos) {
         switch(fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
-                res.shift = 4;
-                break;
+                return 4;
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
-                res.shift = 8;
-                break;
-            case "string":
-                ParseStringRes r = Parser.parseString(raw);
-                res.v = r.str;
-                res.shift = r.next;
-                break;
+                return 8;
+            default:
+                int length = Parser.parseInt(raw, pos);
+                return length < 0 ? 4+8 : 4+length;
         }
-        return res;
+    }
+
+    // 从 raw 的 pos 处解析出一个 string 的值，存储在溢出页中时读回完整的值
+    String parseString(byte[] raw, int pos) throws Exception {
+        int length = Parser.parseInt(raw, pos);
+        if(length < 0) {
+            return detoast(length, Parser.parseLong(raw, pos+4));
+        }
+        return new String(raw, pos+4, length, StandardCharsets.UTF_8);
     }
 
     public String printValue(Object v) {
@@ -207,32 +484,104 @@ public class Field {
             .append(fieldName)
             .append(", ")
             .append(fieldType)
-            .append(index!=0?", Index":", NoIndex")
+            .append(index!=0?(unique?", Unique":(hash?", Hash":", Index")):", NoIndex")
             .append(")")
             .toString();
     }
 
+    // 比较同一字段的两个值
+    public int compare(Object a, Object b) {
+        switch(fieldType) {
+            case "int32":
+                return Integer.compare((int)a, (int)b);
+            case "int64":
+                return Long.compare((long)a, (long)b);
+            default:
+                return Parser.compareStr((String)a, (String)b);
+        }
+    }
+
+    // 字段的值 v 是否满足条件 v op literal
+    public boolean match(Object v, String op, String literal) {
+        if("like".equals(op)) {
+            return "string".equals(fieldType) && like((String)v, literal);
+        }
+        int c = compare(v, string2Value(literal));
+        switch(op) {
+            case "<":
+                return c < 0;
+            case "=":
+                return c == 0;
+            case ">":
+                return c > 0;
+        }
+        return false;
+    }
+
+    private static boolean like(String v, String pattern) {
+        return likePattern(pattern).matcher(v).matches();
+    }
+
+    // % 匹配任意个字符，_ 匹配一个字符
+    static Pattern likePattern(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for(char c : pattern.toCharArray()) {
+            if(c == '%') {
+                regex.append(".*");
+            } else if(c == '_') {
+                regex.append(".");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    // 计算条件在索引上的查找范围，范围为空时 left > right。
+    // string 的 key 只是前缀，边界上前缀相同的值需要包含在范围内
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
         FieldCalRes res = new FieldCalRes();
+        res.left = Long.MIN_VALUE;
+        res.right = Long.MAX_VALUE;
+        if("like".equals(exp.compareOp)) {
+            if(!"string".equals(fieldType)) {
+                throw Error.InvalidValuesException;
+            }
+            // 只有 % 或 _ 之前的前缀能用来缩小范围
+            String prefix = exp.value.split("[%_]", -1)[0];
+            if(!"".equals(prefix)) {
+                byte[] raw = prefix.getBytes(StandardCharsets.UTF_8);
+                res.left = Parser.bytes2Key(raw, (byte)0);
+                res.right = Parser.bytes2Key(raw, (byte)0xff);
+            }
+            return res;
+        }
+        boolean exact = !"string".equals(fieldType);
+        long key = value2Uid(string2Value(exp.value));
         switch(exp.compareOp) {
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    res.right --;
+                if(!exact) {
+                    res.right = key;
+                } else if(key == Long.MIN_VALUE) {
+                    res.left = 0;
+                    res.right = -1;
+                } else {
+                    res.right = key - 1;
                 }
                 break;
             case "=":
-                v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = key;
+                res.right = key;
                 break;
             case ">":
-                res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                if(!exact) {
+                    res.left = key;
+                } else if(key == Long.MAX_VALUE) {
+                    res.left = 0;
+                    res.right = -1;
+                } else {
+                    res.left = key + 1;
+                }
                 break;
         }
         return res;
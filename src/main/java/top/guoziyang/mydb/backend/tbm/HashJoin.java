@@ -0,0 +1,219 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import top.guoziyang.mydb.backend.tbm.Table.RowConsumer;
+
+/**
+ * HashJoin 是等值连接的哈希连接：先读入构建侧的全部行，按连接列的值建立哈希表，再逐行读取探测侧，
+ * 取出哈希表中连接值相等的行。int32 与 int64 的值都放在 longs 中，可以相互连接。
+ *
+ * 构建侧的行只保留 needed 中的列，占用的内存按列的大小估计，超过 budget 时溢出（grace hash join）：
+ * 将内存中的行按连接值的哈希值写入 SPILL_PARTITIONS 个临时文件，构建侧之后的行也直接写入分区；
+ * 探测侧的行同样按哈希值写入分区，连接值相等的行总在同一个分区中，最后逐个分区连接。
+ * 分区仍然超过 budget 的，取哈希值的另外几位继续划分，与 Aggregator 相同
+ */
+class HashJoin {
+    static final long MEMORY_BUDGET = 16 << 20;
+    static final int SPILL_PARTITIONS = 16;
+    // 每一层划分使用哈希值的 4 位，32 位用完后不再溢出
+    private static final int MAX_LEVEL = 8;
+
+    // 两侧依次为构建侧和探测侧
+    private byte[][] types;
+    private int[] cols;
+    private boolean[][] needed;
+    private long budget;
+    private int level;
+
+    private Map<Object, List<Row>> table = new HashMap<>();
+    private long memory;
+    private File[][] files;
+    private DataOutputStream[][] outs;
+
+    interface RowSource {
+        void forEach(RowConsumer consumer) throws Exception;
+    }
+
+    // 返回 false 时停止连接
+    interface PairOutput {
+        boolean write(Row build, Row probe) throws Exception;
+    }
+
+    HashJoin(byte[] buildTypes, int buildCol, boolean[] buildNeeded,
+             byte[] probeTypes, int probeCol, boolean[] probeNeeded, long budget) {
+        types = new byte[][]{buildTypes, probeTypes};
+        cols = new int[]{buildCol, probeCol};
+        needed = new boolean[][]{buildNeeded, probeNeeded};
+        this.budget = budget;
+    }
+
+    // 连接 build 和 probe 的行，out 返回 false 时提前结束并返回 false
+    boolean join(RowSource build, RowSource probe, PairOutput out) throws Exception {
+        try {
+            build.forEach(row -> {
+                if(outs != null) {
+                    writeRow(0, row);
+                    return true;
+                }
+                Row copy = copy(0, row);
+                table.computeIfAbsent(key(0, copy), k -> new ArrayList<>()).add(copy);
+                memory += size(0, copy);
+                if(memory > budget && level < MAX_LEVEL) {
+                    spill();
+                }
+                return true;
+            });
+            if(outs == null) {
+                boolean[] going = {true};
+                probe.forEach(row -> {
+                    List<Row> matched = table.get(key(1, row));
+                    if(matched != null) {
+                        for (Row b : matched) {
+                            if(!out.write(b, row)) {
+                                going[0] = false;
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                });
+                return going[0];
+            }
+            probe.forEach(row -> {
+                writeRow(1, row);
+                return true;
+            });
+            for (DataOutputStream[] o : outs) {
+                for (DataOutputStream p : o) {
+                    p.close();
+                }
+            }
+            for(int p = 0; p < SPILL_PARTITIONS; p ++) {
+                HashJoin sub = new HashJoin(types[0], cols[0], needed[0], types[1], cols[1], needed[1], budget);
+                sub.level = level + 1;
+                if(!sub.join(fileSource(0, files[0][p]), fileSource(1, files[1][p]), out)) {
+                    return false;
+                }
+                files[0][p].delete();
+                files[1][p].delete();
+            }
+            return true;
+        } finally {
+            if(files != null) {
+                for (DataOutputStream[] o : outs) {
+                    for (DataOutputStream p : o) {
+                        p.close();
+                    }
+                }
+                for (File[] fs : files) {
+                    for (File f : fs) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    // 整数以 Long 作为哈希表的 key，int32 与 int64 的值相等时 key 也相等
+    private Object key(int side, Row row) {
+        int col = cols[side];
+        return types[side][col] == RowCodec.STRING ? row.strs[col] : (Object)row.longs[col];
+    }
+
+    private int partition(int side, Row row) {
+        return Integer.rotateLeft(key(side, row).hashCode() * 0x9E3779B9, 4 * level) >>> 28;
+    }
+
+    private Row copy(int side, Row row) {
+        Row copy = new Row(types[side]);
+        for(int i = 0; i < types[side].length; i ++) {
+            if(needed[side][i]) {
+                copy.longs[i] = row.longs[i];
+                copy.strs[i] = row.strs[i];
+                copy.decoded[i] = true;
+            }
+        }
+        return copy;
+    }
+
+    private long size(int side, Row row) {
+        long size = 64;
+        for(int i = 0; i < types[side].length; i ++) {
+            if(!needed[side][i]) continue;
+            size += types[side][i] == RowCodec.STRING ? 48 + 2L * row.strs[i].length() : 8;
+        }
+        return size;
+    }
+
+    private void spill() throws Exception {
+        files = new File[2][SPILL_PARTITIONS];
+        outs = new DataOutputStream[2][SPILL_PARTITIONS];
+        for(int side = 0; side < 2; side ++) {
+            for(int p = 0; p < SPILL_PARTITIONS; p ++) {
+                files[side][p] = File.createTempFile("mydb-join", ".spill");
+                outs[side][p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[side][p])));
+            }
+        }
+        for (List<Row> rows : table.values()) {
+            for (Row row : rows) {
+                writeRow(0, row);
+            }
+        }
+        table.clear();
+        memory = 0;
+    }
+
+    private void writeRow(int side, Row row) throws Exception {
+        DataOutputStream out = outs[side][partition(side, row)];
+        for(int i = 0; i < types[side].length; i ++) {
+            if(!needed[side][i]) continue;
+            if(types[side][i] == RowCodec.STRING) {
+                Aggregator.writeString(out, row.strs[i]);
+            } else {
+                out.writeLong(row.longs[i]);
+            }
+        }
+    }
+
+    private RowSource fileSource(int side, File file) {
+        return consumer -> {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                Row row = new Row(types[side]);
+                while(true) {
+                    try {
+                        readRow(side, in, row);
+                    } catch(EOFException e) {
+                        break;
+                    }
+                    if(!consumer.accept(row)) {
+                        break;
+                    }
+                }
+            }
+        };
+    }
+
+    private void readRow(int side, DataInputStream in, Row row) throws Exception {
+        for(int i = 0; i < types[side].length; i ++) {
+            if(!needed[side][i]) continue;
+            if(types[side][i] == RowCodec.STRING) {
+                row.strs[i] = Aggregator.readString(in);
+            } else {
+                row.longs[i] = in.readLong();
+            }
+            row.decoded[i] = true;
+        }
+    }
+}
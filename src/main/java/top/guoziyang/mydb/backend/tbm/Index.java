@@ -0,0 +1,291 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.im.BPlusTree;
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
+import top.guoziyang.mydb.backend.parser.statement.Where;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.ParseStringRes;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * Index 表示建立在多个字段上的组合索引，还可以附带 include 字段的值
+ * 二进制格式为：
+ * [NextIndex][Columns][Included][BootUid]
+ * Columns 和 Included 为逗号分隔的字段名，同一张表的组合索引通过 NextIndex 串成链表，链表头记录在 Table 中
+ *
+ * B+ 树的 key 只有 64 位，组合索引的 key 由各列的保序编码（Field.orderedKey）从高位到低位依次拼接而成：
+ * int32 占 32 位，int64 和 string 占 64 位，剩余位数不够的列只保留编码的高位，位数用完之后的列不进入 key。
+ * 高位相同时低位仍然有序，所以前面的列取等值时，后面的列上的条件可以继续缩小查找范围。
+ * include 字段拼接在索引列之后，必须完整地放入 key 中，查询用到的列都能从 key 中还原时，不必读取和解析记录。
+ */
+public class Index {
+    long uid;
+    private Table tb;
+    long nextUid;
+    List<Field> columns = new ArrayList<>();
+    List<Field> included = new ArrayList<>();
+    // 每一列在 key 中占的位数，columns 在前，included 在后
+    private int[] bits;
+    // 每一列在表中的列号
+    private int[] cols;
+    private long boot;
+    private BPlusTree bt;
+
+    public static Index loadIndex(Table tb, long uid) {
+        byte[] raw = null;
+        try {
+            raw = ((TableManagerImpl)tb.tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        assert raw != null;
+        Index index = new Index(tb);
+        index.uid = uid;
+        try {
+            index.parseSelf(raw);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return index;
+    }
+
+    // 生成组合索引的定义，调用方计算出已有记录的 key 后再通过 persist 建树并持久化
+    public static Index newIndex(Table tb, long nextUid, String[] columns, String[] included) throws Exception {
+        Index index = new Index(tb);
+        index.nextUid = nextUid;
+        for (String name : columns) {
+            index.columns.add(tb.field(name));
+        }
+        for (String name : included) {
+            index.included.add(tb.field(name));
+        }
+        index.allocBits();
+        for(int i = 0; i < index.included.size(); i ++) {
+            if(!index.exact(index.columns.size() + i)) {
+                throw Error.IncludedFieldTooWideException;
+            }
+        }
+        return index;
+    }
+
+    private Index(Table tb) {
+        this.tb = tb;
+    }
+
+    private void parseSelf(byte[] raw) throws Exception {
+        int position = 0;
+        nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        position += 8;
+        ParseStringRes res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        position += res.next;
+        for (String name : res.str.split(",")) {
+            columns.add(tb.field(name));
+        }
+        res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        position += res.next;
+        if(!"".equals(res.str)) {
+            for (String name : res.str.split(",")) {
+                included.add(tb.field(name));
+            }
+        }
+        boot = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        allocBits();
+        bt = BPlusTree.load(boot, ((TableManagerImpl)tb.tbm).dm);
+    }
+
+    // 批量建树，再通过 VM 持久化索引的信息
+    void persist(long xid, long[] keys, long[] uids) throws Exception {
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        boot = BPlusTree.bulkLoad(dm, keys, uids, Field.INDEX_FILL_FACTOR);
+        bt = BPlusTree.load(boot, dm);
+        byte[] nextRaw = Parser.long2Byte(nextUid);
+        byte[] columnsRaw = Parser.string2Byte(names(columns));
+        byte[] includedRaw = Parser.string2Byte(names(included));
+        byte[] bootRaw = Parser.long2Byte(boot);
+        uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nextRaw, columnsRaw, includedRaw, bootRaw));
+    }
+
+    private static String names(List<Field> fields) {
+        StringBuilder sb = new StringBuilder();
+        for (Field f : fields) {
+            if(sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(f.fieldName);
+        }
+        return sb.toString();
+    }
+
+    private void allocBits() {
+        bits = new int[columns.size() + included.size()];
+        cols = new int[bits.length];
+        int remain = 64;
+        for(int i = 0; i < bits.length; i ++) {
+            cols[i] = tb.fields.indexOf(field(i));
+            bits[i] = Math.min(field(i).keyWidth(), remain);
+            remain -= bits[i];
+        }
+    }
+
+    private Field field(int i) {
+        return i < columns.size() ? columns.get(i) : included.get(i - columns.size());
+    }
+
+    // 第 i 列能否从 key 中完整还原
+    private boolean exact(int i) {
+        return field(i).exactKey() && bits[i] == field(i).keyWidth();
+    }
+
+    // 查询用到字段 name 时，能否只从 key 中取得它的值
+    boolean covers(String name) {
+        for(int i = 0; i < bits.length; i ++) {
+            if(field(i).fieldName.equals(name)) {
+                return exact(i);
+            }
+        }
+        return false;
+    }
+
+    boolean contains(Field fd) {
+        return columns.contains(fd) || included.contains(fd);
+    }
+
+    // 取第 i 列编码的高 bits[i] 位
+    private long slice(int i, long key) {
+        Field f = field(i);
+        if(bits[i] == 0) {
+            return 0;
+        }
+        return f.orderedKey(key) >>> (f.keyWidth() - bits[i]);
+    }
+
+    // 将各列的片段从高位到低位拼接，再翻转符号位，使其按有符号数比较时保持无符号的顺序
+    private long pack(long[] slices) {
+        long key = 0;
+        int used = 0;
+        for(int i = 0; i < bits.length; i ++) {
+            if(bits[i] == 64) {
+                key = slices[i];
+            } else if(bits[i] > 0) {
+                key = (key << bits[i]) | slices[i];
+            }
+            used += bits[i];
+        }
+        if(used < 64) {
+            key <<= 64 - used;
+        }
+        return key ^ Long.MIN_VALUE;
+    }
+
+    long key(Row row) {
+        long[] slices = new long[bits.length];
+        for(int i = 0; i < bits.length; i ++) {
+            slices[i] = slice(i, row.key(cols[i]));
+        }
+        return pack(slices);
+    }
+
+    // 从 key 中还原能完整还原的字段的值，其余的列标记为没有解码
+    void decode(long key, Row row) {
+        key ^= Long.MIN_VALUE;
+        Arrays.fill(row.decoded, false);
+        int shift = 64;
+        for(int i = 0; i < bits.length; i ++) {
+            shift -= bits[i];
+            if(exact(i)) {
+                long ordered = bits[i] == 64 ? key : (key >>> shift) & ((1L << bits[i]) - 1);
+                row.set(cols[i], field(i).orderedKey2Value(ordered));
+            }
+        }
+    }
+
+    // 计算 Where 在索引上的查找范围，每一项为 [left, right]，范围为空时不返回该项
+    List<long[]> calWhere(Where where) throws Exception {
+        List<long[]> ranges = new ArrayList<>();
+        long[] r;
+        switch(where.logicOp) {
+            case "":
+                r = range(Arrays.asList(where.singleExp1));
+                if(r != null) ranges.add(r);
+                break;
+            case "or":
+                r = range(Arrays.asList(where.singleExp1));
+                if(r != null) ranges.add(r);
+                r = range(Arrays.asList(where.singleExp2));
+                if(r != null) ranges.add(r);
+                break;
+            case "and":
+                r = range(Arrays.asList(where.singleExp1, where.singleExp2));
+                if(r != null) ranges.add(r);
+                break;
+            default:
+                throw Error.InvalidLogOpException;
+        }
+        return ranges;
+    }
+
+    // and 连接的一组条件在索引上的查找范围。
+    // 依次处理每个索引列，该列的片段取单个值时才能继续用下一列缩小范围，之后的列取全部范围
+    private long[] range(List<SingleExpression> exps) throws Exception {
+        long[] lo = new long[bits.length];
+        long[] hi = new long[bits.length];
+        for(int i = 0; i < bits.length; i ++) {
+            hi[i] = bits[i] == 64 ? -1L : (1L << bits[i]) - 1;
+        }
+        for(int i = 0; i < columns.size(); i ++) {
+            Field f = columns.get(i);
+            long left = Long.MIN_VALUE, right = Long.MAX_VALUE;
+            for (SingleExpression exp : exps) {
+                if(f.fieldName.equals(exp.field)) {
+                    FieldCalRes res = f.calExp(exp);
+                    left = Math.max(left, res.left);
+                    right = Math.min(right, res.right);
+                }
+            }
+            if(left > right) {
+                return null;
+            }
+            lo[i] = slice(i, left);
+            hi[i] = slice(i, right);
+            if(lo[i] != hi[i]) {
+                break;
+            }
+        }
+        return new long[]{pack(lo), pack(hi)};
+    }
+
+    void insert(Row row, long uid) throws Exception {
+        bt.insert(key(row), uid);
+    }
+
+    void delete(Row row, long uid) throws Exception {
+        bt.delete(key(row), uid);
+    }
+
+    public IndexCursor cursor(long left, long right) {
+        return bt.cursor(left, right);
+    }
+
+    public long estimate(long left, long right) throws Exception {
+        return bt.estimate(left, right);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(Index ").append(names(columns));
+        if(!included.isEmpty()) {
+            sb.append(" Include ").append(names(included));
+        }
+        return sb.append(")").toString();
+    }
+}
@@ -0,0 +1,318 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
+import top.guoziyang.mydb.backend.parser.statement.Where;
+import top.guoziyang.mydb.backend.vm.EntryReader;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * Joiner 执行两个表的等值内连接：select ... from t1 join t2 on f1 = f2 [where ...] [limit n]。
+ * 字段名可以写成 表名.字段名，不写表名时只能在其中一个表中出现，select * 先输出 t1 的全部列，再输出 t2 的全部列。
+ *
+ * 条件中只涉及一个表的部分下推到该表，由该表的 Planner 选择读取方式；or 连接两个表上的条件时，连接之后再检查。
+ * 连接的方式按代价选择：
+ * IndexNestedLoopJoin：内表的连接字段有索引，外表的每一行在索引上查找一次连接值，读取记录后重新检查连接条件
+ * （string 的 key 只是前缀）和内表的条件，代价为外表的读取代价加上每行一次查找和读取匹配的记录；
+ * HashJoin：两个表各读取一次，估计行数较少的一侧作为构建侧，见 HashJoin。
+ * 两侧的行都只解码查询、条件和连接用到的列
+ */
+class Joiner {
+    // 在索引上查找一个值，包括从根向下的一次随机读取
+    private static final double LOOKUP_COST = Planner.FETCH_COST;
+
+    private Table[] tables;
+    private int[] joinCols = new int[2];
+    // 下推到每个表的条件，字段名不带表名
+    private Where[] pushed = new Where[2];
+    // or 连接两个表上的条件时，连接之后检查的两个条件和它们所在的表
+    private SingleExpression[] residual;
+    private int[] residualSides;
+    private Where where;
+    // 输出的每一列所在的表和列号
+    private int[] outSides;
+    private int[] outCols;
+    private boolean[][] needed = new boolean[2][];
+    private int limit;
+    private long budget;
+
+    private Planner.Plan[] plans = new Planner.Plan[2];
+    // 使用 IndexNestedLoopJoin 时内表的序号，使用 HashJoin 时为 -1
+    private int inner = -1;
+    // 使用 HashJoin 时构建侧的序号
+    private int build;
+    private double cost;
+
+    Joiner(Table left, Table right, Select read, long budget) throws Exception {
+        if(read.aggregates != null || read.groupBy != null || read.orderBy != null) {
+            throw Error.JoinUnsupportedException;
+        }
+        tables = new Table[]{left, right};
+        this.limit = read.limit;
+        this.budget = budget;
+        this.where = read.where;
+        needed[0] = new boolean[left.fields.size()];
+        needed[1] = new boolean[right.fields.size()];
+
+        int[] l = resolve(read.join.leftField);
+        int[] r = resolve(read.join.rightField);
+        if(l[0] == r[0]) {
+            throw Error.InvalidCommandException;
+        }
+        joinCols[l[0]] = l[1];
+        joinCols[r[0]] = r[1];
+        if((left.codec.types[joinCols[0]] == RowCodec.STRING) != (right.codec.types[joinCols[1]] == RowCodec.STRING)) {
+            throw Error.JoinTypeException;
+        }
+        needed[0][joinCols[0]] = true;
+        needed[1][joinCols[1]] = true;
+
+        if(read.fields.length == 1 && "*".equals(read.fields[0])) {
+            int n = left.fields.size() + right.fields.size();
+            outSides = new int[n];
+            outCols = new int[n];
+            for(int i = 0; i < n; i ++) {
+                outSides[i] = i < left.fields.size() ? 0 : 1;
+                outCols[i] = i < left.fields.size() ? i : i - left.fields.size();
+            }
+        } else {
+            outSides = new int[read.fields.length];
+            outCols = new int[read.fields.length];
+            for(int i = 0; i < read.fields.length; i ++) {
+                int[] at = resolve(read.fields[i]);
+                outSides[i] = at[0];
+                outCols[i] = at[1];
+            }
+        }
+        for(int i = 0; i < outSides.length; i ++) {
+            needed[outSides[i]][outCols[i]] = true;
+        }
+
+        if(where != null) {
+            pushDown(where);
+        }
+        choose();
+    }
+
+    // 返回 {表的序号, 列号}
+    private int[] resolve(String name) throws Exception {
+        int dot = name.indexOf('.');
+        if(dot >= 0) {
+            String tableName = name.substring(0, dot);
+            String fieldName = name.substring(dot + 1);
+            if(tables[0].name.equals(tables[1].name)) {
+                throw Error.AmbiguousFieldException;
+            }
+            for(int side = 0; side < 2; side ++) {
+                if(tables[side].name.equals(tableName)) {
+                    return new int[]{side, tables[side].column(fieldName)};
+                }
+            }
+            throw Error.TableNotFoundException;
+        }
+        int[] found = null;
+        for(int side = 0; side < 2; side ++) {
+            for(int i = 0; i < tables[side].fields.size(); i ++) {
+                if(tables[side].fields.get(i).fieldName.equals(name)) {
+                    if(found != null) {
+                        throw Error.AmbiguousFieldException;
+                    }
+                    found = new int[]{side, i};
+                }
+            }
+        }
+        if(found == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return found;
+    }
+
+    private void pushDown(Where where) throws Exception {
+        int[] at1 = resolve(where.singleExp1.field);
+        SingleExpression e1 = bare(where.singleExp1, at1);
+        needed[at1[0]][at1[1]] = true;
+        if(where.singleExp2 == null) {
+            pushed[at1[0]] = where(e1, "", null);
+            return;
+        }
+        int[] at2 = resolve(where.singleExp2.field);
+        SingleExpression e2 = bare(where.singleExp2, at2);
+        needed[at2[0]][at2[1]] = true;
+        if(at1[0] == at2[0]) {
+            pushed[at1[0]] = where(e1, where.logicOp, e2);
+        } else if("and".equals(where.logicOp)) {
+            pushed[at1[0]] = where(e1, "", null);
+            pushed[at2[0]] = where(e2, "", null);
+        } else if("or".equals(where.logicOp)) {
+            residual = new SingleExpression[]{e1, e2};
+            residualSides = new int[]{at1[0], at2[0]};
+        } else {
+            throw Error.InvalidLogOpException;
+        }
+    }
+
+    private SingleExpression bare(SingleExpression exp, int[] at) {
+        SingleExpression e = new SingleExpression();
+        e.field = tables[at[0]].fields.get(at[1]).fieldName;
+        e.compareOp = exp.compareOp;
+        e.value = exp.value;
+        return e;
+    }
+
+    private static Where where(SingleExpression e1, String logicOp, SingleExpression e2) {
+        Where where = new Where();
+        where.singleExp1 = e1;
+        where.logicOp = logicOp;
+        where.singleExp2 = e2;
+        return where;
+    }
+
+    // 比较 HashJoin 与以每一侧为内表的 IndexNestedLoopJoin 的代价，代价相同时取 HashJoin
+    private void choose() throws Exception {
+        for(int side = 0; side < 2; side ++) {
+            plans[side] = new Planner(tables[side]).plan(pushed[side]);
+        }
+        build = plans[1].rows <= plans[0].rows ? 1 : 0;
+        cost = plans[0].cost + plans[1].cost;
+        for(int side = 0; side < 2; side ++) {
+            Field fd = tables[side].fields.get(joinCols[side]);
+            if(!fd.isIndexed()) continue;
+            Planner.Plan outer = plans[1 - side];
+            double c = outer.cost + outer.rows * (LOOKUP_COST + rowsPerValue(side) * (Planner.ENTRY_COST + Planner.FETCH_COST));
+            if(c < cost) {
+                cost = c;
+                inner = side;
+            }
+        }
+    }
+
+    // 内表中与一个连接值相等的平均行数，唯一索引或没有统计信息时取 1
+    private double rowsPerValue(int side) {
+        Statistics stats = tables[side].stats;
+        if(stats == null || tables[side].fields.get(joinCols[side]).isUnique()) {
+            return 1;
+        }
+        long distinct = stats.distinct[joinCols[side]];
+        return distinct == 0 ? 0 : stats.rows() / distinct;
+    }
+
+    // 连接的结果依次为 t1、t2 的全部列，再选出输出的列
+    Operator operator(long xid) {
+        int[] cols = new int[outCols.length];
+        for(int i = 0; i < cols.length; i ++) {
+            cols[i] = (outSides[i] == 0 ? 0 : tables[0].fields.size()) + outCols[i];
+        }
+        Operator op = new Operator.Project(new Join(xid), cols);
+        return limit >= 0 ? new Operator.Limit(op, limit) : op;
+    }
+
+    private class Join extends Operator {
+        private long xid;
+
+        Join(long xid) {
+            this.xid = xid;
+            byte[] l = tables[0].codec.types, r = tables[1].codec.types;
+            types = new byte[l.length + r.length];
+            System.arraycopy(l, 0, types, 0, l.length);
+            System.arraycopy(r, 0, types, l.length, r.length);
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            Batch batch = new Batch(types);
+            Row[] pair = new Row[2];
+            if(inner >= 0) {
+                nestedLoop(xid, (o, i) -> {
+                    pair[1 - inner] = o;
+                    pair[inner] = i;
+                    return emit(pair, batch, out);
+                });
+            } else {
+                HashJoin join = new HashJoin(tables[build].codec.types, joinCols[build], needed[build],
+                    tables[1 - build].codec.types, joinCols[1 - build], needed[1 - build], budget);
+                join.join(c -> tables[build].scan(xid, pushed[build], needed[build], c),
+                    c -> tables[1 - build].scan(xid, pushed[1 - build], needed[1 - build], c),
+                    (b, p) -> {
+                        pair[build] = b;
+                        pair[1 - build] = p;
+                        return emit(pair, batch, out);
+                    });
+            }
+            if(batch.count > 0) {
+                out.accept(batch);
+            }
+        }
+    }
+
+    // 检查连接之后的条件，把两侧的行拼成一行，攒够一批交给 out，out 返回 false 时停止连接
+    private boolean emit(Row[] pair, Batch batch, Operator.BatchConsumer out) throws Exception {
+        if(residual != null && !tables[residualSides[0]].matchExp(residual[0], pair[residualSides[0]])
+            && !tables[residualSides[1]].matchExp(residual[1], pair[residualSides[1]])) {
+            return true;
+        }
+        batch.put(pair[0], 0);
+        batch.put(pair[1], tables[0].fields.size());
+        batch.next();
+        if(!batch.isFull()) {
+            return true;
+        }
+        boolean going = out.accept(batch);
+        batch.clear();
+        return going;
+    }
+
+    private void nestedLoop(long xid, HashJoin.PairOutput out) throws Exception {
+        int outer = 1 - inner;
+        Field fd = tables[inner].fields.get(joinCols[inner]);
+        boolean string = tables[inner].codec.types[joinCols[inner]] == RowCodec.STRING;
+        VersionManager vm = ((TableManagerImpl)tables[inner].tbm).vm;
+        RowCodec codec = tables[inner].codec;
+        Row row = codec.newRow();
+        boolean[] innerNeeded = needed[inner];
+        EntryReader reader = (raw, start, end) -> codec.decode(raw, start, innerNeeded, row);
+        tables[outer].scan(xid, pushed[outer], needed[outer], o -> {
+            long key = o.key(joinCols[outer]);
+            IndexCursor cursor = fd.cursor(key, key);
+            while(cursor.hasNext()) {
+                if(!vm.read(xid, cursor.next(), reader)) continue;
+                if(string && !row.strs[joinCols[inner]].equals(o.strs[joinCols[outer]])) continue;
+                if(pushed[inner] != null && !tables[inner].matchWhere(pushed[inner], row)) continue;
+                if(!out.write(o, row)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    // 第一行为连接的方式，之后依次为外表（探测侧）和内表（构建侧）的读取方式
+    byte[] explain() {
+        StringBuilder sb = new StringBuilder();
+        String on = tables[0].name + "." + tables[0].fields.get(joinCols[0]).fieldName + " = "
+            + tables[1].name + "." + tables[1].fields.get(joinCols[1]).fieldName;
+        if(inner >= 0) {
+            sb.append("IndexNestedLoopJoin ").append(on).append(": inner ").append(tables[inner].name);
+        } else {
+            sb.append("HashJoin ").append(on).append(": build ").append(tables[build].name);
+        }
+        if(residual != null) {
+            sb.append(", filter ").append(Planner.describe(where));
+        }
+        sb.append(String.format(" (cost=%.2f)", cost)).append("\n");
+        if(inner >= 0) {
+            plans[1 - inner].explain(sb, "  ");
+            Field fd = tables[inner].fields.get(joinCols[inner]);
+            sb.append("  IndexLookup ").append(tables[inner].name).append(".").append(fd.fieldName);
+            if(pushed[inner] != null) {
+                sb.append(": ").append(Planner.describe(pushed[inner]));
+            }
+            sb.append("\n");
+        } else {
+            plans[1 - build].explain(sb, "  ");
+            plans[build].explain(sb, "  ");
+        }
+        return sb.toString().getBytes();
+    }
+}
@@ -0,0 +1,293 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.List;
+
+import top.guoziyang.mydb.backend.tbm.Table.RowScan;
+import top.guoziyang.mydb.backend.tbm.Table.WhereScan;
+import top.guoziyang.mydb.backend.vm.EntryReader;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * Operator 是查询的执行算子，由 Table 按查询组成一棵树，结果按批（Batch）从叶子推向根：
+ * run() 把全部结果逐批交给 out，out 返回 false 时算子停止产生结果并返回，Limit 由此提前结束整棵树。
+ * 交给 out 的 Batch 只在这次调用中有效，算子会重复使用它。
+ *
+ * 算子有：
+ * Scan：按 RowScan 给出的 uid 读取对 xid 可见的记录，只解码 needed 中的列；
+ * IndexScan：只扫描组合索引，值从 key 中解码，记录只用于判断可见性；
+ * Filter：按列检查编译后的条件（Predicate），缩短选择向量；
+ * Project：按输出的顺序选出列；
+ * Aggregate、Sort：读完下层的全部结果后，由 Aggregator、Sorter 输出，结果的列都是文本；
+ * Limit：输出够 n 行后停止；
+ * Values：输出事先算好的行，用于 count(*) 等不需要读取记录的查询。
+ */
+abstract class Operator {
+    // 输出的列的类型
+    byte[] types;
+
+    interface BatchConsumer {
+        boolean accept(Batch batch) throws Exception;
+    }
+
+    abstract void run(BatchConsumer out) throws Exception;
+
+    static class Scan extends Operator {
+        private Table tb;
+        private long xid;
+        private RowScan scan;
+        private boolean[] needed;
+
+        Scan(Table tb, long xid, RowScan scan, boolean[] needed) {
+            this.tb = tb;
+            this.xid = xid;
+            this.scan = scan;
+            this.needed = needed;
+            types = tb.codec.types;
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+            Batch batch = new Batch(types);
+            EntryReader reader = (raw, start, end) -> tb.codec.decode(raw, start, needed, batch);
+            long uid;
+            while((uid = scan.next()) != 0) {
+                if(!vm.read(xid, uid, reader)) continue;
+                if(batch.isFull()) {
+                    if(!out.accept(batch)) {
+                        return;
+                    }
+                    batch.clear();
+                }
+            }
+            if(batch.count > 0) {
+                out.accept(batch);
+            }
+        }
+    }
+
+    static class IndexScan extends Operator {
+        private Table tb;
+        private long xid;
+        private Index index;
+        private WhereScan scan;
+
+        IndexScan(Table tb, long xid, Index index, WhereScan scan) {
+            this.tb = tb;
+            this.xid = xid;
+            this.index = index;
+            this.scan = scan;
+            types = tb.codec.types;
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+            Batch batch = new Batch(types);
+            Row row = tb.codec.newRow();
+            long uid;
+            while((uid = scan.next()) != 0) {
+                if(!vm.isVisible(xid, uid)) continue;
+                index.decode(scan.key(), row);
+                batch.add(row);
+                if(batch.isFull()) {
+                    if(!out.accept(batch)) {
+                        return;
+                    }
+                    batch.clear();
+                }
+            }
+            if(batch.count > 0) {
+                out.accept(batch);
+            }
+        }
+    }
+
+    static class Filter extends Operator {
+        private Operator child;
+        private Predicate predicate;
+
+        Filter(Operator child, Predicate predicate) {
+            this.child = child;
+            this.predicate = predicate;
+            types = child.types;
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            child.run(batch -> {
+                batch.count = predicate.filter(batch, batch.sel, batch.count);
+                return batch.count == 0 || out.accept(batch);
+            });
+        }
+    }
+
+    static class Project extends Operator {
+        private Operator child;
+        private int[] cols;
+
+        Project(Operator child, int[] cols) {
+            this.child = child;
+            this.cols = cols;
+            types = new byte[cols.length];
+            for(int k = 0; k < cols.length; k ++) {
+                types[k] = child.types[cols[k]];
+            }
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            Batch view = Batch.view(types);
+            child.run(batch -> {
+                batch.project(cols, view);
+                return out.accept(view);
+            });
+        }
+    }
+
+    // 结果的列都是文本
+    private static byte[] strings(int n) {
+        byte[] types = new byte[n];
+        for(int i = 0; i < n; i ++) {
+            types[i] = RowCodec.STRING;
+        }
+        return types;
+    }
+
+    // 收集 Aggregator、Sorter 输出的行，攒够一批交给 out。out 返回 false 之后丢弃剩下的行
+    private static class Collector implements RowOutput {
+        private Batch batch;
+        private BatchConsumer out;
+        private boolean stopped;
+
+        Collector(byte[] types, BatchConsumer out) {
+            batch = new Batch(types);
+            this.out = out;
+        }
+
+        @Override
+        public void write(String[] values) throws Exception {
+            if(stopped) {
+                return;
+            }
+            batch.add(values);
+            if(batch.isFull()) {
+                stopped = !out.accept(batch);
+                batch.clear();
+            }
+        }
+
+        void flush() throws Exception {
+            if(!stopped && batch.count > 0) {
+                out.accept(batch);
+            }
+        }
+    }
+
+    static class Aggregate extends Operator {
+        private Operator child;
+        private Aggregator agg;
+
+        Aggregate(Operator child, Aggregator agg, int width) {
+            this.child = child;
+            this.agg = agg;
+            types = strings(width);
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            Row row = new Row(child.types);
+            child.run(batch -> {
+                for(int j = 0; j < batch.count; j ++) {
+                    batch.get(batch.sel[j], row);
+                    agg.add(row);
+                }
+                return true;
+            });
+            Collector collector = new Collector(types, out);
+            agg.finish(collector);
+            collector.flush();
+        }
+    }
+
+    // 输出的列在送入 Sorter 之前就转为文本，Sorter 只保存排序列和输出列
+    static class Sort extends Operator {
+        private Operator child;
+        private Sorter sorter;
+        private int[] cols;
+
+        Sort(Operator child, Sorter sorter, int[] cols) {
+            this.child = child;
+            this.sorter = sorter;
+            this.cols = cols;
+            types = strings(cols.length);
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            Row row = new Row(child.types);
+            child.run(batch -> {
+                for(int j = 0; j < batch.count; j ++) {
+                    int i = batch.sel[j];
+                    batch.get(i, row);
+                    if(!sorter.wants(row)) continue;
+                    String[] values = new String[cols.length];
+                    for(int k = 0; k < cols.length; k ++) {
+                        values[k] = batch.print(cols[k], i);
+                    }
+                    sorter.add(row, values);
+                }
+                return true;
+            });
+            Collector collector = new Collector(types, out);
+            sorter.finish(collector);
+            collector.flush();
+        }
+    }
+
+    static class Limit extends Operator {
+        private Operator child;
+        private int limit;
+
+        Limit(Operator child, int limit) {
+            this.child = child;
+            this.limit = limit;
+            types = child.types;
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            if(limit == 0) {
+                return;
+            }
+            int[] n = {0};
+            child.run(batch -> {
+                if(n[0] + batch.count >= limit) {
+                    batch.count = limit - n[0];
+                    out.accept(batch);
+                    return false;
+                }
+                n[0] += batch.count;
+                return out.accept(batch);
+            });
+        }
+    }
+
+    static class Values extends Operator {
+        private List<String[]> rows;
+
+        Values(int width, List<String[]> rows) {
+            this.rows = rows;
+            types = strings(width);
+        }
+
+        @Override
+        void run(BatchConsumer out) throws Exception {
+            Collector collector = new Collector(types, out);
+            for (String[] values : rows) {
+                collector.write(values);
+            }
+            collector.flush();
+        }
+    }
+}
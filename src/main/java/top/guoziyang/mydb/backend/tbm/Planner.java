@@ -0,0 +1,336 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.im.IndexCursor;
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
+import top.guoziyang.mydb.backend.parser.statement.Where;
+import top.guoziyang.mydb.backend.tbm.Table.CalWhereRes;
+import top.guoziyang.mydb.backend.tbm.Table.HeapScan;
+import top.guoziyang.mydb.backend.tbm.Table.RowScan;
+import top.guoziyang.mydb.backend.tbm.Table.WhereScan;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * Planner 为 Where 选择读取候选记录的方式（访问路径），候选记录再由 Table 读取并检查条件。
+ *
+ * 候选的方式有：
+ * IndexScan：条件中出现的每个单列索引，以及第一列出现在条件中的每个组合索引，按整个 Where 计算查找范围；
+ * Intersect：and 连接两个不同字段上的条件时，分别取两个条件最好的索引，返回两侧都有的记录；
+ * Union：or 连接两个不同字段上的条件时，两个条件都有索引才能使用，返回两侧的全部记录；
+ * HeapScan：表有段时按页扫描段中的全部记录。
+ *
+ * 索引上的项数由 B+ 树从根向下查找一次估计（见 BPlusTree.estimate），哈希索引数出 key 所在区域的项；
+ * 表的记录数取 ANALYZE 收集的统计信息（见 Statistics），没有时由段中均匀抽取的几个页面估计。
+ * 有统计信息时，扫描段得到的记录数再乘以条件的选择率。代价以通过索引随机读取一条记录为单位，选择代价最小的方式。
+ */
+class Planner {
+    // 读取一个索引项
+    static final double ENTRY_COST = 0.05;
+    // 通过索引项随机读取一条记录
+    static final double FETCH_COST = 1;
+    // 按页扫描时读取一条记录，同一页中的记录一次读出
+    static final double HEAP_ROW_COST = 0.25;
+    static final int SAMPLE_PAGES = 4;
+
+    private Table tb;
+
+    Planner(Table tb) {
+        this.tb = tb;
+    }
+
+    abstract static class Plan {
+        double rows;
+        double cost;
+
+        abstract RowScan open() throws Exception;
+
+        abstract void explain(StringBuilder sb, String indent);
+
+        String estimates() {
+            return String.format(" (rows=%d, cost=%.2f)", Math.round(rows), cost);
+        }
+    }
+
+    class HeapPlan extends Plan {
+        @Override
+        RowScan open() {
+            return new HeapScan(((TableManagerImpl)tb.tbm).dm, tb.segment().pages());
+        }
+
+        @Override
+        void explain(StringBuilder sb, String indent) {
+            sb.append(indent).append("HeapScan ").append(tb.name).append(estimates()).append("\n");
+        }
+    }
+
+    // 单列索引时 fd 不为 null，组合索引时 index 不为 null
+    class IndexPlan extends Plan {
+        Field fd;
+        Index index;
+        List<long[]> ranges;
+        Where where;
+
+        @Override
+        RowScan open() {
+            List<IndexCursor> cursors = new ArrayList<>();
+            for (long[] range : ranges) {
+                cursors.add(fd != null ? fd.cursor(range[0], range[1]) : index.cursor(range[0], range[1]));
+            }
+            return new WhereScan(cursors, ranges);
+        }
+
+        @Override
+        void explain(StringBuilder sb, String indent) {
+            sb.append(indent).append("IndexScan ").append(tb.name);
+            if(fd != null) {
+                sb.append(".").append(fd.fieldName);
+            } else {
+                sb.append(index.toString());
+            }
+            if(where != null) {
+                sb.append(": ").append(describe(where));
+            }
+            sb.append(estimates()).append("\n");
+        }
+    }
+
+    class IntersectPlan extends Plan {
+        Plan small, large;
+
+        // 先读出估计项数较少的一侧的全部 uid，再遍历另一侧，只返回两侧都有的 uid
+        @Override
+        RowScan open() throws Exception {
+            Set<Long> build = new HashSet<>();
+            RowScan scan = small.open();
+            long uid;
+            while((uid = scan.next()) != 0) {
+                build.add(uid);
+            }
+            RowScan probe = large.open();
+            return () -> {
+                long u;
+                while((u = probe.next()) != 0) {
+                    if(build.remove(u)) {
+                        return u;
+                    }
+                }
+                return 0;
+            };
+        }
+
+        @Override
+        void explain(StringBuilder sb, String indent) {
+            sb.append(indent).append("Intersect").append(estimates()).append("\n");
+            small.explain(sb, indent + "  ");
+            large.explain(sb, indent + "  ");
+        }
+    }
+
+    class UnionPlan extends Plan {
+        Plan first, second;
+
+        // 先返回第一侧的记录并记下 uid，第二侧跳过已经返回过的 uid
+        @Override
+        RowScan open() throws Exception {
+            Set<Long> seen = new HashSet<>();
+            RowScan s1 = first.open();
+            RowScan s2 = second.open();
+            return () -> {
+                long u = s1.next();
+                if(u != 0) {
+                    seen.add(u);
+                    return u;
+                }
+                while((u = s2.next()) != 0) {
+                    if(!seen.contains(u)) {
+                        return u;
+                    }
+                }
+                return 0;
+            };
+        }
+
+        @Override
+        void explain(StringBuilder sb, String indent) {
+            sb.append(indent).append("Union").append(estimates()).append("\n");
+            first.explain(sb, indent + "  ");
+            second.explain(sb, indent + "  ");
+        }
+    }
+
+    Plan plan(Where where) throws Exception {
+        if(where == null) {
+            return planAll();
+        }
+        List<Plan> candidates = indexPlans(where);
+        Field f1 = tb.field(where.singleExp1.field);
+        Field f2 = where.singleExp2 == null ? f1 : tb.field(where.singleExp2.field);
+        if(f1 != f2) {
+            Plan p1 = bestOf(indexPlans(single(where.singleExp1)));
+            Plan p2 = bestOf(indexPlans(single(where.singleExp2)));
+            if(p1 != null && p2 != null) {
+                if("and".equals(where.logicOp)) {
+                    candidates.add(intersect(p1, p2));
+                } else if("or".equals(where.logicOp)) {
+                    candidates.add(union(p1, p2));
+                }
+            }
+        }
+        candidates.add(heapPlan(where));
+        Plan best = bestOf(candidates);
+        if(best == null) {
+            throw Error.FieldNotIndexedException;
+        }
+        return best;
+    }
+
+    // 没有条件时扫描段，读取全部记录
+    private Plan planAll() throws Exception {
+        return heapPlan(null);
+    }
+
+    private static Where single(SingleExpression exp) {
+        Where where = new Where();
+        where.singleExp1 = exp;
+        where.logicOp = "";
+        return where;
+    }
+
+    // 条件中出现的字段上的单列索引，以及第一列出现在条件中的组合索引
+    private List<Plan> indexPlans(Where where) throws Exception {
+        List<Plan> plans = new ArrayList<>();
+        List<Field> referred = new ArrayList<>();
+        referred.add(tb.field(where.singleExp1.field));
+        if(where.singleExp2 != null && !referred.contains(tb.field(where.singleExp2.field))) {
+            referred.add(tb.field(where.singleExp2.field));
+        }
+        for (Field fd : referred) {
+            if(!fd.isIndexed()) continue;
+            Plan p = fieldPlan(fd, where);
+            if(p != null) {
+                plans.add(p);
+            }
+        }
+        for (Index index : tb.indexes) {
+            if(!referred.contains(index.columns.get(0))) continue;
+            IndexPlan p = new IndexPlan();
+            p.index = index;
+            p.where = where;
+            p.ranges = index.calWhere(where);
+            if(estimate(p)) {
+                plans.add(p);
+            }
+        }
+        return plans;
+    }
+
+    // 在字段 fd 的索引上按整个 Where 计算查找范围，哈希索引不能用于范围查找时返回 null
+    Plan fieldPlan(Field fd, Where where) throws Exception {
+        IndexPlan p = new IndexPlan();
+        p.fd = fd;
+        p.where = where;
+        p.ranges = new ArrayList<>();
+        CalWhereRes res = tb.calWhere(fd, where);
+        p.ranges.add(new long[]{res.l0, res.r0});
+        if(!res.single) {
+            p.ranges.add(new long[]{res.l1, res.r1});
+        }
+        return estimate(p) ? p : null;
+    }
+
+    // 估计各个范围中的项数之和，有范围不能使用该索引时返回 false
+    private boolean estimate(IndexPlan p) throws Exception {
+        long entries = 0;
+        for (long[] range : p.ranges) {
+            long n = p.fd != null ? p.fd.estimate(range[0], range[1]) : p.index.estimate(range[0], range[1]);
+            if(n < 0) {
+                return false;
+            }
+            entries += n;
+        }
+        p.rows = entries;
+        p.cost = entries * (ENTRY_COST + FETCH_COST);
+        return true;
+    }
+
+    private Plan intersect(Plan p1, Plan p2) throws Exception {
+        IntersectPlan p = new IntersectPlan();
+        p.small = p1.rows <= p2.rows ? p1 : p2;
+        p.large = p.small == p1 ? p2 : p1;
+        // 假设两个条件相互独立
+        double total = tableRows();
+        p.rows = total > 0 ? Math.min(p1.rows * p2.rows / total, p.small.rows) : p.small.rows;
+        p.cost = (p1.rows + p2.rows) * ENTRY_COST + p.rows * FETCH_COST;
+        return p;
+    }
+
+    private Plan union(Plan p1, Plan p2) {
+        UnionPlan p = new UnionPlan();
+        p.first = p1;
+        p.second = p2;
+        p.rows = p1.rows + p2.rows;
+        p.cost = p1.cost + p2.cost;
+        return p;
+    }
+
+    private Plan heapPlan(Where where) throws Exception {
+        HeapPlan p = new HeapPlan();
+        double rows = tableRows();
+        p.cost = rows * HEAP_ROW_COST;
+        Statistics stats = tb.stats;
+        p.rows = stats == null ? rows : rows * stats.selectivity(tb, where);
+        return p;
+    }
+
+    // 代价相同时取先加入的，索引总是在扫描段之前加入
+    private static Plan bestOf(List<Plan> plans) {
+        Plan best = null;
+        for (Plan p : plans) {
+            if(best == null || p.cost < best.cost) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    // 段中的记录数：在段中均匀地抽取至多 SAMPLE_PAGES 个页面，以页面中的平均记录数乘以页面数
+    private double heapRows() throws Exception {
+        int[] pages = tb.segment().pages();
+        if(pages.length == 0) {
+            return 0;
+        }
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        int n = Math.min(SAMPLE_PAGES, pages.length);
+        long sum = 0;
+        for(int i = 0; i < n; i ++) {
+            sum += dm.scanPage(pages[(int)((long)i * pages.length / n)]).length;
+        }
+        return (double)sum / n * pages.length;
+    }
+
+    // 表中的记录数，没有统计信息时由段中的页面估计
+    private double tableRows() throws Exception {
+        Statistics stats = tb.stats;
+        if(stats != null) {
+            return stats.rows();
+        }
+        return heapRows();
+    }
+
+    static String describe(Where where) {
+        StringBuilder sb = new StringBuilder(describe(where.singleExp1));
+        if(where.singleExp2 != null) {
+            sb.append(" ").append(where.logicOp).append(" ").append(describe(where.singleExp2));
+        }
+        return sb.toString();
+    }
+
+    private static String describe(SingleExpression exp) {
+        return exp.field + " " + exp.compareOp + " " + exp.value;
+    }
+}
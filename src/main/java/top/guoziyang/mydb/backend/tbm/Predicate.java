@@ -0,0 +1,254 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.regex.Matcher;
+
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
+import top.guoziyang.mydb.backend.parser.statement.Where;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * Predicate 是编译后的条件，按列在一批行上求值，结果与 Table.matchWhere 逐行检查相同。
+ * 条件中的值在编译时解析一次：int32、int64 的值转为 long，like 的模式转为正则表达式。
+ *
+ * filter() 检查选择向量 sel[0..count) 中的行，把满足条件的行号按原来的顺序写回 sel 的前部，返回它们的个数。
+ * 比较只读取 long 数组或 String 数组，每种比较符各有一个循环，循环中不分支地写入选择向量。
+ *
+ * And 先用左边的条件缩短选择向量，右边的条件只检查剩下的行；
+ * Or 用右边的条件检查左边没有选中的行，再把两边选中的行号按顺序归并。
+ * And、Or 可以任意嵌套，目前 Where 最多只有两个条件
+ */
+abstract class Predicate {
+    private static final int LT = 0;
+    private static final int EQ = 1;
+    private static final int GT = 2;
+
+    abstract int filter(Batch batch, int[] sel, int count);
+
+    static Predicate compile(Table tb, Where where) throws Exception {
+        Predicate p1 = compile(tb, where.singleExp1);
+        switch(where.logicOp) {
+            case "":
+                return p1;
+            case "or":
+                return new Or(p1, compile(tb, where.singleExp2));
+            case "and":
+                return new And(p1, compile(tb, where.singleExp2));
+            default:
+                throw Error.InvalidLogOpException;
+        }
+    }
+
+    static Predicate compile(Table tb, SingleExpression exp) throws Exception {
+        int col = tb.column(exp.field);
+        Field fd = tb.fields.get(col);
+        boolean string = "string".equals(fd.fieldType);
+        if("like".equals(exp.compareOp)) {
+            return string ? new Like(col, exp.value) : new None();
+        }
+        int op = op(exp.compareOp);
+        if(op < 0) {
+            return new None();
+        }
+        Object value = fd.string2Value(exp.value);
+        if(string) {
+            return new StringCompare(col, op, (String)value);
+        }
+        return new LongCompare(col, op, ((Number)value).longValue());
+    }
+
+    private static int op(String compareOp) {
+        switch(compareOp) {
+            case "<":
+                return LT;
+            case "=":
+                return EQ;
+            case ">":
+                return GT;
+        }
+        return -1;
+    }
+
+    static class LongCompare extends Predicate {
+        private int col;
+        private int op;
+        private long value;
+
+        LongCompare(int col, String op, long value) {
+            this(col, op(op), value);
+        }
+
+        private LongCompare(int col, int op, long value) {
+            this.col = col;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        int filter(Batch batch, int[] sel, int count) {
+            long[] v = batch.longs[col];
+            long c = value;
+            int n = 0;
+            switch(op) {
+                case LT:
+                    for(int j = 0; j < count; j ++) {
+                        int i = sel[j];
+                        sel[n] = i;
+                        n += v[i] < c ? 1 : 0;
+                    }
+                    break;
+                case EQ:
+                    for(int j = 0; j < count; j ++) {
+                        int i = sel[j];
+                        sel[n] = i;
+                        n += v[i] == c ? 1 : 0;
+                    }
+                    break;
+                case GT:
+                    for(int j = 0; j < count; j ++) {
+                        int i = sel[j];
+                        sel[n] = i;
+                        n += v[i] > c ? 1 : 0;
+                    }
+                    break;
+            }
+            return n;
+        }
+    }
+
+    // 与 Field.compare 相同，按 UTF-8 的字节比较
+    static class StringCompare extends Predicate {
+        private int col;
+        private int op;
+        private String value;
+
+        StringCompare(int col, String op, String value) {
+            this(col, op(op), value);
+        }
+
+        private StringCompare(int col, int op, String value) {
+            this.col = col;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        int filter(Batch batch, int[] sel, int count) {
+            String[] v = batch.strs[col];
+            String c = value;
+            int n = 0;
+            switch(op) {
+                case LT:
+                    for(int j = 0; j < count; j ++) {
+                        int i = sel[j];
+                        sel[n] = i;
+                        n += Parser.compareStr(v[i], c) < 0 ? 1 : 0;
+                    }
+                    break;
+                case EQ:
+                    for(int j = 0; j < count; j ++) {
+                        int i = sel[j];
+                        sel[n] = i;
+                        n += c.equals(v[i]) ? 1 : 0;
+                    }
+                    break;
+                case GT:
+                    for(int j = 0; j < count; j ++) {
+                        int i = sel[j];
+                        sel[n] = i;
+                        n += Parser.compareStr(v[i], c) > 0 ? 1 : 0;
+                    }
+                    break;
+            }
+            return n;
+        }
+    }
+
+    static class Like extends Predicate {
+        private int col;
+        private Matcher matcher;
+
+        Like(int col, String pattern) {
+            this.col = col;
+            matcher = Field.likePattern(pattern).matcher("");
+        }
+
+        @Override
+        int filter(Batch batch, int[] sel, int count) {
+            String[] v = batch.strs[col];
+            int n = 0;
+            for(int j = 0; j < count; j ++) {
+                int i = sel[j];
+                sel[n] = i;
+                n += matcher.reset(v[i]).matches() ? 1 : 0;
+            }
+            return n;
+        }
+    }
+
+    // 不会满足的条件，如 int 字段上的 like
+    static class None extends Predicate {
+        @Override
+        int filter(Batch batch, int[] sel, int count) {
+            return 0;
+        }
+    }
+
+    static class And extends Predicate {
+        private Predicate left;
+        private Predicate right;
+
+        And(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int filter(Batch batch, int[] sel, int count) {
+            int n = left.filter(batch, sel, count);
+            return n == 0 ? 0 : right.filter(batch, sel, n);
+        }
+    }
+
+    static class Or extends Predicate {
+        private Predicate left;
+        private Predicate right;
+        // 左边选中的行和左边没有选中的行
+        private int[] matched = new int[Batch.CAPACITY];
+        private int[] rest = new int[Batch.CAPACITY];
+
+        Or(Predicate left, Predicate right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int filter(Batch batch, int[] sel, int count) {
+            int[] a = matched;
+            int[] b = rest;
+            System.arraycopy(sel, 0, a, 0, count);
+            int na = left.filter(batch, a, count);
+            if(na == count) {
+                return count;
+            }
+            // sel 与 a 都按行号递增，sel 中不在 a 里的行就是左边没有选中的
+            int nb = 0;
+            for(int j = 0, k = 0; j < count; j ++) {
+                int i = sel[j];
+                if(k < na && a[k] == i) {
+                    k ++;
+                } else {
+                    b[nb ++] = i;
+                }
+            }
+            nb = right.filter(batch, b, nb);
+            int n = 0, x = 0, y = 0;
+            while(x < na && y < nb) {
+                sel[n ++] = a[x] < b[y] ? a[x ++] : b[y ++];
+            }
+            while(x < na) sel[n ++] = a[x ++];
+            while(y < nb) sel[n ++] = b[y ++];
+            return n;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * Row 是由 RowCodec 解码出的一条记录，按表中字段的顺序以列号访问。
+ * int32、int64 的值放在 longs 中，string 的值放在 strs 中，decoded 标记已经解码的列，
+ * 没有解码的列不能读取。同一个 Row 可以重复用来解码多条记录
+ */
+class Row {
+    private byte[] types;
+    long[] longs;
+    String[] strs;
+    boolean[] decoded;
+
+    Row(byte[] types) {
+        this.types = types;
+        longs = new long[types.length];
+        strs = new String[types.length];
+        decoded = new boolean[types.length];
+    }
+
+    // 装箱后的值，类型与 Field.string2Value 相同
+    Object value(int i) {
+        switch(types[i]) {
+            case RowCodec.INT32:
+                return (int)longs[i];
+            case RowCodec.INT64:
+                return longs[i];
+            default:
+                return strs[i];
+        }
+    }
+
+    void set(int i, Object v) {
+        switch(types[i]) {
+            case RowCodec.INT32:
+                longs[i] = (int)v;
+                break;
+            case RowCodec.INT64:
+                longs[i] = (long)v;
+                break;
+            default:
+                strs[i] = (String)v;
+        }
+        decoded[i] = true;
+    }
+
+    // 与 Field.value2Uid 相同，整数不必装箱
+    long key(int i) {
+        return types[i] == RowCodec.STRING ? Parser.str2Key(strs[i]) : longs[i];
+    }
+
+    String print(int i) {
+        return types[i] == RowCodec.STRING ? strs[i] : String.valueOf(longs[i]);
+    }
+}
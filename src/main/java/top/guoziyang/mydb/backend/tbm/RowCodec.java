@@ -0,0 +1,227 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * RowCodec 是由表结构编译出的记录编解码器，记录的二进制格式不变：各字段的值按字段顺序依次排列，
+ * int32 占 4 个字节，int64 占 8 个字节，string 为 [StringLength][StringData] 或溢出指针 [Marker][OverflowUid]（见 Field）
+ *
+ * 编译时为每一列记下它之前最近的 string 列 base 和相对该列结束位置的固定偏移 delta，
+ * 之前没有 string 的列偏移在编译时就确定了（base 为 -1）。
+ * 解码一条记录时先依次读取各个 string 的长度，得到每个 string 的结束位置（偏移表），
+ * 之后任意一列的偏移都是 ends[base] + delta，只解析需要的列：整数直接读入 long 数组，
+ * 不需要的 string 不创建对象，也不读取溢出页
+ */
+class RowCodec {
+    static final byte INT32 = 0;
+    static final byte INT64 = 1;
+    static final byte STRING = 2;
+
+    private List<Field> fields;
+    byte[] types;
+    private int[] base;
+    private int[] delta;
+    // string 列的列号
+    private int[] vars;
+
+    RowCodec(List<Field> fields) {
+        this.fields = fields;
+        int n = fields.size();
+        types = new byte[n];
+        base = new int[n];
+        delta = new int[n];
+        int noVars = 0;
+        for(int i = 0; i < n; i ++) {
+            switch(fields.get(i).fieldType) {
+                case "int32":
+                    types[i] = INT32;
+                    break;
+                case "int64":
+                    types[i] = INT64;
+                    break;
+                default:
+                    types[i] = STRING;
+                    noVars ++;
+            }
+        }
+        vars = new int[noVars];
+        int b = -1, d = 0, v = 0;
+        for(int i = 0; i < n; i ++) {
+            base[i] = b;
+            delta[i] = d;
+            switch(types[i]) {
+                case INT32:
+                    d += 4;
+                    break;
+                case INT64:
+                    d += 8;
+                    break;
+                default:
+                    vars[v] = i;
+                    b = v ++;
+                    d = 0;
+            }
+        }
+    }
+
+    Row newRow() {
+        return new Row(types);
+    }
+
+    // 记录从 raw 的 start 处开始时，各个 string 在 raw 中的结束位置
+    private int[] ends(byte[] raw, int start) {
+        int[] ends = new int[vars.length];
+        for(int v = 0; v < vars.length; v ++) {
+            int pos = offset(ends, start, vars[v]);
+            ends[v] = pos + fields.get(vars[v]).valueSize(raw, pos);
+        }
+        return ends;
+    }
+
+    private int offset(int[] ends, int start, int i) {
+        return (base[i] < 0 ? start : ends[base[i]]) + delta[i];
+    }
+
+    private int offset(int[] ends, int i) {
+        return offset(ends, 0, i);
+    }
+
+    Row decode(byte[] raw, boolean[] needed) throws Exception {
+        return decode(raw, 0, needed);
+    }
+
+    // 记录从 raw 的 start 处开始，raw 可以是 VersionManager 交给 EntryReader 的页面数组
+    Row decode(byte[] raw, int start, boolean[] needed) throws Exception {
+        Row row = newRow();
+        decode(raw, start, needed, row);
+        return row;
+    }
+
+    void decode(byte[] raw, boolean[] needed, Row row) throws Exception {
+        decode(raw, 0, needed, row);
+    }
+
+    // 解码 needed 中的列，needed 为 null 时解码全部的列
+    void decode(byte[] raw, int start, boolean[] needed, Row row) throws Exception {
+        int[] ends = ends(raw, start);
+        for(int i = 0; i < types.length; i ++) {
+            row.decoded[i] = needed == null || needed[i];
+            if(!row.decoded[i]) continue;
+            int pos = offset(ends, start, i);
+            switch(types[i]) {
+                case INT32:
+                    row.longs[i] = Parser.parseInt(raw, pos);
+                    break;
+                case INT64:
+                    row.longs[i] = Parser.parseLong(raw, pos);
+                    break;
+                default:
+                    row.strs[i] = fields.get(i).parseString(raw, pos);
+            }
+        }
+    }
+
+    // 解码 needed 中的列，追加为 batch 的一行
+    void decode(byte[] raw, int start, boolean[] needed, Batch batch) throws Exception {
+        int[] ends = ends(raw, start);
+        int r = batch.size;
+        for(int i = 0; i < types.length; i ++) {
+            if(!needed[i]) continue;
+            int pos = offset(ends, start, i);
+            switch(types[i]) {
+                case INT32:
+                    batch.longs[i][r] = Parser.parseInt(raw, pos);
+                    break;
+                case INT64:
+                    batch.longs[i][r] = Parser.parseLong(raw, pos);
+                    break;
+                default:
+                    batch.strs[i][r] = fields.get(i).parseString(raw, pos);
+            }
+        }
+        batch.sel[batch.count ++] = batch.size ++;
+    }
+
+    // 先得到各个 string 的编码（过长的写入溢出页），计算出记录的长度后一次分配
+    byte[] encode(long xid, Row row) throws Exception {
+        byte[][] strRaws = new byte[vars.length][];
+        int size = 0;
+        for(int i = 0, v = 0; i < types.length; i ++) {
+            switch(types[i]) {
+                case INT32:
+                    size += 4;
+                    break;
+                case INT64:
+                    size += 8;
+                    break;
+                default:
+                    strRaws[v] = fields.get(i).value2Raw(xid, row.strs[i]);
+                    size += strRaws[v ++].length;
+            }
+        }
+        byte[] raw = new byte[size];
+        int pos = 0;
+        for(int i = 0, v = 0; i < types.length; i ++) {
+            switch(types[i]) {
+                case INT32:
+                    Parser.putInt(raw, pos, (int)row.longs[i]);
+                    pos += 4;
+                    break;
+                case INT64:
+                    Parser.putLong(raw, pos, row.longs[i]);
+                    pos += 8;
+                    break;
+                default:
+                    System.arraycopy(strRaws[v], 0, raw, pos, strRaws[v].length);
+                    pos += strRaws[v ++].length;
+            }
+        }
+        return raw;
+    }
+
+    // 记录中存储在溢出页中的值的 UID
+    long[] overflows(byte[] raw) {
+        int[] ends = ends(raw, 0);
+        long[] res = new long[vars.length];
+        int n = 0;
+        for(int v = 0; v < vars.length; v ++) {
+            long of = fields.get(vars[v]).overflowUid(raw, offset(ends, vars[v]));
+            if(of != 0) {
+                res[n ++] = of;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    // 拷贝除第 except 列以外存储在溢出页中的值，使新记录不与旧记录共用溢出数据。没有需要拷贝的值时返回 raw
+    byte[] copyOverflows(long xid, byte[] raw, int except) throws Exception {
+        int[] ends = ends(raw, 0);
+        byte[] res = raw;
+        for(int v = 0; v < vars.length; v ++) {
+            if(vars[v] == except) continue;
+            int pos = offset(ends, vars[v]);
+            long of = fields.get(vars[v]).overflowUid(raw, pos);
+            if(of == 0) continue;
+            if(res == raw) {
+                res = raw.clone();
+            }
+            Parser.putLong(res, pos+4, fields.get(vars[v]).copyToast(xid, of));
+        }
+        return res;
+    }
+
+    // 替换记录中第 i 列的值，其余的字节原样拷贝，存储在溢出页中的值不必重新写入
+    byte[] replace(byte[] raw, int i, byte[] valueRaw) {
+        int[] ends = ends(raw, 0);
+        int pos = offset(ends, i);
+        int size = fields.get(i).valueSize(raw, pos);
+        byte[] res = new byte[raw.length - size + valueRaw.length];
+        System.arraycopy(raw, 0, res, 0, pos);
+        System.arraycopy(valueRaw, 0, res, pos, valueRaw.length);
+        System.arraycopy(raw, pos + size, res, pos + valueRaw.length, raw.length - pos - size);
+        return res;
+    }
+}
@@ -0,0 +1,6 @@
+package top.guoziyang.mydb.backend.tbm;
+
+// 接收结果的一行，values 为各列输出的文本。Aggregator 和 Sorter 通过它输出结果
+interface RowOutput {
+    void write(String[] values) throws Exception;
+}
@@ -0,0 +1,240 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * Sorter 按 order by 的列对查询结果排序。每条结果只保存排序列的值和各个输出列的文本
+ *
+ * 有 limit 时只保留最前面的 limit 条：用一个大小不超过 limit 的堆，堆顶是已保留的结果中排在最后的，
+ * 新的结果排在堆顶之前时才替换堆顶，调用方可以先通过 wants() 判断，不必生成会被丢弃的结果的输出列。
+ *
+ * 没有 limit 时做外部归并排序：内存中的结果估计超过 budget 时排序后写入一个临时文件（一个有序段），
+ * 结束时逐段读取并用堆归并。段数超过 MERGE_FAN_IN 时先将每 MERGE_FAN_IN 个段归并成一个新段
+ */
+class Sorter {
+    static final long MEMORY_BUDGET = 16 << 20;
+    static final int MERGE_FAN_IN = 64;
+
+    private byte[] types;
+    private int[] orderCols;
+    private boolean[] desc;
+    private int limit;
+    private long budget;
+
+    private Comparator<Record> order;
+    private PriorityQueue<Record> heap;
+    private List<Record> records = new ArrayList<>();
+    private long memory;
+    private List<File> runs = new ArrayList<>();
+
+    private class Record {
+        long[] longs = new long[orderCols.length];
+        String[] strs = new String[orderCols.length];
+        String[] values;
+    }
+
+    private static class Head {
+        Record record;
+        DataInputStream in;
+    }
+
+    Sorter(byte[] types, int[] orderCols, boolean[] desc, int limit, long budget) {
+        this.types = types;
+        this.orderCols = orderCols;
+        this.desc = desc;
+        this.limit = limit;
+        this.budget = budget;
+        order = this::compare;
+        if(limit >= 0) {
+            heap = new PriorityQueue<>(Math.max(1, limit), order.reversed());
+        }
+    }
+
+    private int compare(Record a, Record b) {
+        for(int k = 0; k < orderCols.length; k ++) {
+            int c = types[orderCols[k]] == RowCodec.STRING ? Parser.compareStr(a.strs[k], b.strs[k]) : Long.compare(a.longs[k], b.longs[k]);
+            if(c != 0) {
+                return desc[k] ? -c : c;
+            }
+        }
+        return 0;
+    }
+
+    private Record record(Row row) {
+        Record r = new Record();
+        for(int k = 0; k < orderCols.length; k ++) {
+            if(types[orderCols[k]] == RowCodec.STRING) {
+                r.strs[k] = row.strs[orderCols[k]];
+            } else {
+                r.longs[k] = row.longs[orderCols[k]];
+            }
+        }
+        return r;
+    }
+
+    // 有 limit 时，row 是否会被保留
+    boolean wants(Row row) {
+        if(heap == null || heap.size() < limit) {
+            return true;
+        }
+        return limit > 0 && compare(record(row), heap.peek()) < 0;
+    }
+
+    void add(Row row, String[] values) throws Exception {
+        if(!wants(row)) {
+            return;
+        }
+        Record r = record(row);
+        r.values = values;
+        if(heap != null) {
+            if(heap.size() == limit) {
+                heap.poll();
+            }
+            heap.add(r);
+            return;
+        }
+        records.add(r);
+        memory += 64 + 16L * orderCols.length;
+        for (String s : r.strs) {
+            if(s != null) memory += 40 + 2L * s.length();
+        }
+        for (String v : values) {
+            memory += 40 + 2L * v.length();
+        }
+        if(memory > budget) {
+            runs.add(writeRun(records));
+            records.clear();
+            memory = 0;
+        }
+    }
+
+    void finish(RowOutput out) throws Exception {
+        if(heap != null) {
+            records.addAll(heap);
+        }
+        if(runs.isEmpty()) {
+            records.sort(order);
+            for (Record r : records) {
+                out.write(r.values);
+            }
+            return;
+        }
+        try {
+            if(!records.isEmpty()) {
+                runs.add(writeRun(records));
+                records.clear();
+            }
+            while(runs.size() > MERGE_FAN_IN) {
+                List<File> merged = new ArrayList<>();
+                for(int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+                    List<File> group = runs.subList(i, Math.min(runs.size(), i + MERGE_FAN_IN));
+                    File file = File.createTempFile("mydb-sort", ".run");
+                    try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                        merge(group, r -> writeRecord(o, r));
+                    }
+                    merged.add(file);
+                }
+                for (File file : runs) {
+                    file.delete();
+                }
+                runs = merged;
+            }
+            merge(runs, r -> out.write(r.values));
+        } finally {
+            for (File file : runs) {
+                file.delete();
+            }
+        }
+    }
+
+    private interface RecordOutput {
+        void write(Record r) throws Exception;
+    }
+
+    private void merge(List<File> files, RecordOutput out) throws Exception {
+        PriorityQueue<Head> heads = new PriorityQueue<>(files.size(), (a, b) -> compare(a.record, b.record));
+        List<DataInputStream> ins = new ArrayList<>();
+        try {
+            for (File file : files) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                ins.add(in);
+                Head h = new Head();
+                h.in = in;
+                h.record = readRecord(in);
+                if(h.record != null) {
+                    heads.add(h);
+                }
+            }
+            while(!heads.isEmpty()) {
+                Head h = heads.poll();
+                out.write(h.record);
+                h.record = readRecord(h.in);
+                if(h.record != null) {
+                    heads.add(h);
+                }
+            }
+        } finally {
+            for (DataInputStream in : ins) {
+                in.close();
+            }
+        }
+    }
+
+    private File writeRun(List<Record> records) throws Exception {
+        records.sort(order);
+        File file = File.createTempFile("mydb-sort", ".run");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (Record r : records) {
+                writeRecord(out, r);
+            }
+        }
+        return file;
+    }
+
+    // 每条记录之前写入一个字节 1，段的末尾写入 0
+    private void writeRecord(DataOutputStream out, Record r) throws Exception {
+        out.writeByte(1);
+        for(int k = 0; k < orderCols.length; k ++) {
+            if(types[orderCols[k]] == RowCodec.STRING) {
+                Aggregator.writeString(out, r.strs[k]);
+            } else {
+                out.writeLong(r.longs[k]);
+            }
+        }
+        out.writeInt(r.values.length);
+        for (String v : r.values) {
+            Aggregator.writeString(out, v);
+        }
+    }
+
+    private Record readRecord(DataInputStream in) throws Exception {
+        if(in.read() != 1) {
+            return null;
+        }
+        Record r = new Record();
+        for(int k = 0; k < orderCols.length; k ++) {
+            if(types[orderCols[k]] == RowCodec.STRING) {
+                r.strs[k] = Aggregator.readString(in);
+            } else {
+                r.longs[k] = in.readLong();
+            }
+        }
+        r.values = new String[in.readInt()];
+        for(int i = 0; i < r.values.length; i ++) {
+            r.values[i] = Aggregator.readString(in);
+        }
+        return r;
+    }
+}
@@ -0,0 +1,244 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
+import top.guoziyang.mydb.backend.parser.statement.Where;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * Statistics 是 ANALYZE 收集的表的统计信息，Planner 用它估计表的记录数和条件的选择率
+ * 二进制结构如下：
+ * [RowCount][NoFields][Field1Stats][Field2Stats]...[FieldNStats]
+ * FieldStats: [Distinct][NoBounds][Bound0][Bound1]...[BoundN]
+ * Bound 是字段的 key（Field.value2Uid，与索引的 key 相同）的等深直方图的边界：相邻两个边界之间的样本数相同，
+ * 第一个和最后一个边界是样本中最小和最大的 key。字段的顺序与表中字段的顺序相同。
+ *
+ * 从表的段中均匀地抽取至多 SAMPLE_PAGES 个页面，读取页面中对 xid 可见的记录。
+ * 不同值的个数由样本按 Duj1 估计：n*d / (n - f1 + f1*n/N)，d 为样本中不同值的个数，f1 为只出现一次的值的个数。
+ *
+ * 表的记录中的 StatsUid 指向一条 Boot，其中存放统计信息的 UID，与 B+ 树的 Boot 相同。重新收集时先插入新的统计信息，
+ * 再原地修改 Boot，最后释放旧的统计信息。统计信息只是估计，使用 SUPER_XID 写入，不随事务回滚。
+ *
+ * 两次 ANALYZE 之间，Table 的插入和删除累加到 delta 上，估计记录数时取 RowCount + delta。delta 不持久化。
+ */
+class Statistics {
+    static final int SAMPLE_PAGES = 64;
+    static final int HISTOGRAM_BUCKETS = 16;
+
+    long rowCount;
+    long[] distinct;
+    long[][] bounds;
+    AtomicLong delta = new AtomicLong();
+
+    static long createBoot(DataManager dm) throws Exception {
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(0));
+    }
+
+    // 读取 Boot 指向的统计信息，还没有收集过时返回 null
+    static Statistics load(DataManager dm, long bootUid) throws Exception {
+        DataItem boot = dm.read(bootUid);
+        SubArray raw = boot.data();
+        long uid = Parser.parseLong(raw.raw, raw.start);
+        boot.release();
+        if(uid == 0) {
+            return null;
+        }
+        DataItem di = dm.read(uid);
+        raw = di.data();
+        byte[] data = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
+        di.release();
+        return parse(data);
+    }
+
+    private static Statistics parse(byte[] raw) {
+        Statistics s = new Statistics();
+        int pos = 0;
+        s.rowCount = Parser.parseLong(raw, pos);
+        pos += 8;
+        int noFields = Parser.parseShort(raw, pos);
+        pos += 2;
+        s.distinct = new long[noFields];
+        s.bounds = new long[noFields][];
+        for(int i = 0; i < noFields; i ++) {
+            s.distinct[i] = Parser.parseLong(raw, pos);
+            pos += 8;
+            int noBounds = Parser.parseShort(raw, pos);
+            pos += 2;
+            s.bounds[i] = new long[noBounds];
+            for(int j = 0; j < noBounds; j ++) {
+                s.bounds[i][j] = Parser.parseLong(raw, pos);
+                pos += 8;
+            }
+        }
+        return s;
+    }
+
+    private byte[] raw() {
+        byte[] raw = Bytes.concat(Parser.long2Byte(rowCount), Parser.short2Byte((short)distinct.length));
+        for(int i = 0; i < distinct.length; i ++) {
+            byte[] fieldRaw = new byte[8 + 2 + bounds[i].length*8];
+            Parser.putLong(fieldRaw, 0, distinct[i]);
+            Parser.putShort(fieldRaw, 8, (short)bounds[i].length);
+            for(int j = 0; j < bounds[i].length; j ++) {
+                Parser.putLong(fieldRaw, 10 + j*8, bounds[i][j]);
+            }
+            raw = Bytes.concat(raw, fieldRaw);
+        }
+        return raw;
+    }
+
+    // 插入新的统计信息，再修改 Boot 指向它，最后释放旧的统计信息
+    void persist(DataManager dm, long bootUid) throws Exception {
+        long uid = dm.insert(TransactionManagerImpl.SUPER_XID, raw());
+        long old;
+        DataItem boot = dm.read(bootUid);
+        boot.before();
+        try {
+            SubArray raw = boot.data();
+            old = Parser.parseLong(raw.raw, raw.start);
+            Parser.putLong(raw.raw, raw.start, uid);
+        } finally {
+            boot.after(TransactionManagerImpl.SUPER_XID);
+            boot.release();
+        }
+        if(old != 0) {
+            dm.free(old);
+        }
+    }
+
+    // 抽样读取对 xid 可见的记录，计算记录数、各字段不同值的个数和直方图
+    static Statistics collect(Table tb, long xid) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        List<Row> sample = new ArrayList<>();
+        double rows;
+        int[] pages = tb.segment().pages();
+        int n = Math.min(SAMPLE_PAGES, pages.length);
+        for(int i = 0; i < n; i ++) {
+            for (long uid : dm.scanPage(pages[(int)((long)i * pages.length / n)])) {
+                vm.read(xid, uid, (raw, start, end) -> sample.add(tb.codec.decode(raw, start, null)));
+            }
+        }
+        rows = n == 0 ? 0 : (double)sample.size() / n * pages.length;
+
+        Statistics s = new Statistics();
+        s.rowCount = Math.round(rows);
+        s.distinct = new long[tb.fields.size()];
+        s.bounds = new long[tb.fields.size()][];
+        for(int i = 0; i < tb.fields.size(); i ++) {
+            long[] keys = new long[sample.size()];
+            for(int j = 0; j < keys.length; j ++) {
+                keys[j] = sample.get(j).key(i);
+            }
+            Arrays.sort(keys);
+            s.distinct[i] = distinct(keys, s.rowCount);
+            s.bounds[i] = histogram(keys);
+        }
+        return s;
+    }
+
+    // 由有序的样本按 Duj1 估计不同值的个数
+    private static long distinct(long[] keys, long rows) {
+        int n = keys.length;
+        if(n == 0) {
+            return 0;
+        }
+        int d = 0, f1 = 0;
+        for(int i = 0; i < n; ) {
+            int j = i;
+            while(j < n && keys[j] == keys[i]) j ++;
+            d ++;
+            if(j - i == 1) f1 ++;
+            i = j;
+        }
+        if(rows <= n) {
+            return d;
+        }
+        double est = (double)n * d / (n - f1 + (double)f1 * n / rows);
+        return Math.max(d, Math.min(rows, Math.round(est)));
+    }
+
+    private static long[] histogram(long[] keys) {
+        if(keys.length == 0) {
+            return new long[0];
+        }
+        long[] bounds = new long[HISTOGRAM_BUCKETS + 1];
+        for(int i = 0; i <= HISTOGRAM_BUCKETS; i ++) {
+            bounds[i] = keys[(int)((long)i * (keys.length-1) / HISTOGRAM_BUCKETS)];
+        }
+        return bounds;
+    }
+
+    void changed(long n) {
+        delta.addAndGet(n);
+    }
+
+    double rows() {
+        return Math.max(0, rowCount + delta.get());
+    }
+
+    // 条件的选择率：and 时假设两个条件相互独立
+    double selectivity(Table tb, Where where) throws Exception {
+        if(where == null) {
+            return 1;
+        }
+        double s1 = selectivity(tb, where.singleExp1);
+        switch(where.logicOp) {
+            case "and":
+                return s1 * selectivity(tb, where.singleExp2);
+            case "or":
+                double s2 = selectivity(tb, where.singleExp2);
+                return s1 + s2 - s1 * s2;
+            default:
+                return s1;
+        }
+    }
+
+    // 等值条件取不同值个数的倒数，其余的条件取查找范围在直方图中所占的比例
+    private double selectivity(Table tb, SingleExpression exp) throws Exception {
+        Field fd = tb.field(exp.field);
+        int i = tb.fields.indexOf(fd);
+        if("=".equals(exp.compareOp)) {
+            return distinct[i] == 0 ? 0 : 1.0 / distinct[i];
+        }
+        FieldCalRes r = fd.calExp(exp);
+        if(r.left > r.right) {
+            return 0;
+        }
+        return Math.max(0, fraction(bounds[i], r.right) - fraction(bounds[i], r.left));
+    }
+
+    // key 不大于 k 的样本所占的比例，桶内按均匀分布插值
+    private static double fraction(long[] bounds, long k) {
+        if(bounds.length == 0 || k < bounds[0]) {
+            return 0;
+        }
+        int last = bounds.length - 1;
+        if(k >= bounds[last]) {
+            return 1;
+        }
+        int j = 0;
+        while(bounds[j+1] <= k) j ++;
+        double width = (double)bounds[j+1] - (double)bounds[j];
+        return (j + ((double)k - (double)bounds[j]) / width) / last;
+    }
+
+    String describe(Table tb) {
+        StringBuilder sb = new StringBuilder(tb.name).append(": rows=").append(rowCount);
+        for(int i = 0; i < tb.fields.size(); i ++) {
+            sb.append(", ").append(tb.fields.get(i).fieldName).append(" distinct=").append(distinct[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -2,39 +2,68 @@ package top.guoziyang.mydb.backend.tbm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToLongFunction;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.Segment;
+import top.guoziyang.mydb.backend.im.IndexCursor;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
+import top.guoziyang.mydb.backend.parser.statement.Explain;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.parser.statement.Where;
-import top.guoziyang.mydb.backend.tbm.Field.ParseValueRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.EntryReader;
+import top.guoziyang.mydb.backend.vm.VacuumListener;
+import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
+import top.guoziyang.mydb.common.ResultSink;
 
 /**
  * Table 维护了表结构
  * 一个数据库中存在多张表，TBM 使用链表的形式将其组织起来，每一张表都保存一个指向下一张表的 UID
  * 二进制结构如下：
  * [TableName][NextTable]
- * [Field1Uid][Field2Uid]...[FieldNUid]
+ * [Field1Uid][Field2Uid]...[FieldNUid][0][FirstIndexUid][SegmentUid][StatsUid]
+ * FirstIndexUid 指向组合索引（见 Index）链表的头，UID 不会为 0，以 0 分隔字段和索引。
+ *
+ * SegmentUid 指向存放表中记录的段（见 Segment），没有可用的索引时按页扫描段中的记录。
+ *
+ * StatsUid 指向 ANALYZE 收集的统计信息（见 Statistics）
+ *
+ * 表中的记录被 vacuum 回收前会回调 purge()，由 Table 摘除该记录的索引项
+ *
+ * 记录由字段列表编译出的 RowCodec 编解码，读取时只解码查询和条件用到的列（见 RowCodec）
  */
-public class Table {
+public class Table implements VacuumListener {
     TableManager tbm;
     long uid;
     String name;
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    List<Index> indexes = new CopyOnWriteArrayList<>();
+    private long indexHead;
+    // 修改语句执行期间持有读锁，建立索引时持有写锁
+    final ReadWriteLock ddlLock = new ReentrantReadWriteLock();
+    private Segment seg;
+    private long statsBoot;
+    volatile Statistics stats;
+    RowCodec codec;
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -61,8 +90,11 @@ public class Table {
                     break;
                 }
             }
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            boolean unique = Arrays.asList(create.unique).contains(fieldName);
+            boolean hash = Arrays.asList(create.hash).contains(fieldName);
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, unique, hash));
         }
+        tb.codec = new RowCodec(tb.fields);
 
         return tb.persistSelf(xid);
     }
@@ -89,144 +121,888 @@ public class Table {
         while(position < raw.length) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
             position += 8;
+            if(uid == 0) {
+                indexHead = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+                position += 8;
+                long segUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+                position += 8;
+                statsBoot = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+                try {
+                    seg = ((TableManagerImpl)tbm).dm.loadSegment(segUid);
+                    stats = Statistics.load(((TableManagerImpl)tbm).dm, statsBoot);
+                } catch(Exception e) {
+                    Panic.panic(e);
+                }
+                break;
+            }
             fields.add(Field.loadField(this, uid));
         }
+        codec = new RowCodec(fields);
+        long indexUid = indexHead;
+        while(indexUid != 0) {
+            Index index = Index.loadIndex(this, indexUid);
+            indexes.add(index);
+            indexUid = index.nextUid;
+        }
         return this;
     }
 
     private Table persistSelf(long xid) throws Exception {
+        seg = ((TableManagerImpl)tbm).dm.createSegment();
+        statsBoot = Statistics.createBoot(((TableManagerImpl)tbm).dm);
+        uid = ((TableManagerImpl)tbm).vm.insert(xid, selfRaw(0));
+        return this;
+    }
+
+    private byte[] selfRaw(long indexHead) {
         byte[] nameRaw = Parser.string2Byte(name);
         byte[] nextRaw = Parser.long2Byte(nextUid);
         byte[] fieldRaw = new byte[0];
         for(Field field : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
-        uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
-        return this;
+        byte[] indexRaw = Bytes.concat(Parser.long2Byte(0), Parser.long2Byte(indexHead));
+        byte[] segRaw = Parser.long2Byte(seg.getUid());
+        return Bytes.concat(nameRaw, nextRaw, fieldRaw, indexRaw, segRaw, Parser.long2Byte(statsBoot));
+    }
+
+    Field field(String fieldName) throws Exception {
+        for (Field field : fields) {
+            if(field.fieldName.equals(fieldName)) {
+                return field;
+            }
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    Segment segment() {
+        return seg;
+    }
+
+    // 字段在表中的列号，与记录中值的顺序相同
+    int column(String fieldName) throws Exception {
+        for(int i = 0; i < fields.size(); i ++) {
+            if(fields.get(i).fieldName.equals(fieldName)) {
+                return i;
+            }
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    // 需要解码的列：selected 中的列和条件中的列，indexed 时还有出现在任何一个索引中的列
+    private boolean[] needed(List<Field> selected, Where where, boolean indexed) throws Exception {
+        boolean[] needed = new boolean[fields.size()];
+        if(selected != null) {
+            for (Field field : selected) {
+                needed[fields.indexOf(field)] = true;
+            }
+        }
+        if(where != null) {
+            needed[column(where.singleExp1.field)] = true;
+            if(where.singleExp2 != null) {
+                needed[column(where.singleExp2.field)] = true;
+            }
+        }
+        if(indexed) {
+            for(int i = 0; i < fields.size(); i ++) {
+                needed[i] |= inIndex(fields.get(i));
+            }
+        }
+        return needed;
     }
 
     public int delete(long xid, Delete delete) throws Exception {
         List<Long> uids = parseWhere(delete.where);
+        boolean[] needed = needed(null, delete.where, false);
+        Row row = codec.newRow();
+        EntryReader reader = (raw, start, end) -> codec.decode(raw, start, needed, row);
         int count = 0;
         for (Long uid : uids) {
+            if(delete.where != null) {
+                if(!((TableManagerImpl)tbm).vm.read(xid, uid, reader)) continue;
+                if(!matchWhere(delete.where, row)) continue;
+            }
             if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+                ((TableManagerImpl)tbm).vm.attach(xid, uid, this);
                 count ++;
             }
         }
+        Statistics s = stats;
+        if(s != null) {
+            s.changed(-count);
+        }
         return count;
     }
 
     public int update(long xid, Update update) throws Exception {
         List<Long> uids = parseWhere(update.where);
-        Field fd = null;
-        for (Field f : fields) {
-            if(f.fieldName.equals(update.fieldName)) {
-                fd = f;
-                break;
-            }
-        }
-        if(fd == null) {
-            throw Error.FieldNotFoundException;
-        }
+        int col = column(update.fieldName);
+        Field fd = fields.get(col);
         Object value = fd.string2Value(update.value);
-        int count = 0;
+        // 新版本的索引项由索引列的值计算
+        boolean[] needed = needed(null, update.where, true);
+        needed[col] = true;
+        // 先找出所有要修改的记录，修改任何一条之前检查唯一性
+        List<Long> targets = new ArrayList<>();
+        List<byte[]> raws = new ArrayList<>();
+        List<Row> rows = new ArrayList<>();
         for (Long uid : uids) {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) continue;
+            Row row = codec.decode(raw, needed);
+            if(update.where != null && !matchWhere(update.where, row)) continue;
+            targets.add(uid);
+            raws.add(raw);
+            rows.add(row);
+        }
+        // 多条记录的唯一字段被改为同一个值
+        if(fd.isUnique() && targets.size() > 1) {
+            throw Error.DuplicatedKeyException;
+        }
+        int count = 0;
+        try {
+            for(int i = 0; i < targets.size(); i ++) {
+                if(updateRow(xid, targets.get(i), raws.get(i), rows.get(i), col, value)) {
+                    count ++;
+                }
+            }
+        } catch(Exception e) {
+            // 唯一性冲突时出错的记录保持原样，但之前的记录已经修改，或者出错的记录只修改了一半（如部分索引项已插入），
+            // 都无法只撤销这条语句，回滚整个事务
+            if(count > 0 || e != Error.DuplicatedKeyException) {
+                ((TableManagerImpl)tbm).vm.autoAbort(xid, e);
+            }
+            throw e;
+        }
+        return count;
+    }
+
+    // 将一条记录的第 col 列改为 value，记录已被删除或无法修改时返回 false。
+    // 失败时这条记录保持原样：新值违反唯一性时旧记录还没有被删除，或者已经恢复
+    private boolean updateRow(long xid, long uid, byte[] raw, Row row, int col, Object value) throws Exception {
+        Field fd = fields.get(col);
+        boolean keyChanged = inIndex(fd) && !value.equals(row.value(col));
+        row.set(col, value);
+        raw = codec.replace(raw, col, fd.value2Raw(xid, value));
+
+        long uuid;
+        if(keyChanged) {
+            // 索引列被修改时，旧索引项仍指向旧版本，只能删除旧记录并插入新记录。
+            // 先检查新值的唯一性，违反时旧记录还没有被删除
+            if(fd.isUnique() && fd.isTaken(xid, value)) {
+                throw Error.DuplicatedKeyException;
+            }
+            if(!((TableManagerImpl)tbm).vm.delete(xid, uid)) return false;
+            // 旧记录被回收时会释放它引用的溢出数据，新记录使用拷贝
+            uuid = ((TableManagerImpl)tbm).vm.insert(xid, codec.copyOverflows(xid, raw, col), seg);
+        } else {
+            // 索引列未变化时原地更新，UID 不变则无需修改任何索引
+            uuid = ((TableManagerImpl)tbm).vm.update(xid, uid, raw, seg);
+            if(uuid == 0) return false;
+            if(uuid != uid) {
+                // 新数据放不下，记录被移到了新的位置，同样改用溢出数据的拷贝
+                byte[] copied = codec.copyOverflows(xid, raw, col);
+                if(copied != raw) {
+                    ((TableManagerImpl)tbm).vm.update(xid, uuid, copied, seg);
+                }
+            }
+        }
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+        ((TableManagerImpl)tbm).vm.attach(xid, uid, this);
+        if(uuid == uid) return true;
+        ((TableManagerImpl)tbm).vm.attach(xid, uuid, this);
+        try {
+            insertIndexes(xid, row, uuid);
+        } catch(Exception e) {
+            // 检查之后其他事务插入了相同的值，新记录已被删除，恢复旧记录
+            if(e == Error.DuplicatedKeyException && keyChanged) {
+                ((TableManagerImpl)tbm).vm.undelete(xid, uid);
+            }
+            throw e;
+        }
+        return true;
+    }
 
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-            
-            count ++;
+    // 字段是否出现在任何一个索引中，组合索引中 include 字段的值也保存在 key 里
+    private boolean inIndex(Field fd) {
+        if(fd.isIndexed()) {
+            return true;
+        }
+        for (Index index : indexes) {
+            if(index.contains(fd)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+    // 先插入唯一索引，违反唯一性时删除刚插入的记录，已经插入的索引项由 vacuum 摘除
+    private void insertIndexes(long xid, Row row, long uid) throws Exception {
+        try {
+            for(int i = 0; i < fields.size(); i ++) {
+                if(fields.get(i).isUnique()) {
+                    fields.get(i).insert(xid, row.value(i), uid);
                 }
             }
+        } catch(Exception e) {
+            if(e == Error.DuplicatedKeyException) {
+                ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            }
+            throw e;
         }
-        return count;
+        for(int i = 0; i < fields.size(); i ++) {
+            Field field = fields.get(i);
+            if(field.isIndexed() && !field.isUnique()) {
+                field.insert(xid, row.value(i), uid);
+            }
+        }
+        for (Index index : indexes) {
+            index.insert(row, uid);
+        }
+    }
+
+    // 候选记录通过索引游标逐条读取，只解码查询和条件用到的列，结果直接写入输出
+    // 按查询组成算子树，结果逐批写入 sink。有 limit 时输出够 limit 行就停止读取
+    public void read(long xid, Select read, ResultSink sink) throws Exception {
+        operator(xid, read).run(batch -> {
+            sink.write(batch.print());
+            return true;
+        });
     }
 
-    public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
+    private Operator operator(long xid, Select read) throws Exception {
+        Operator op;
+        if(read.aggregates != null || read.groupBy != null) {
+            if(read.orderBy != null) {
+                throw Error.OrderByAggregateException;
+            }
+            op = isCountAll(read) ? count(xid, read) : aggregate(xid, read);
+        } else {
+            List<Field> selected = selectFields(read.fields);
+            if(read.orderBy != null) {
+                op = readOrdered(xid, read, selected);
+            } else {
+                op = new Operator.Project(filter(source(xid, read, selected), read.where), columns(selected));
+            }
+        }
+        return read.limit >= 0 ? new Operator.Limit(op, read.limit) : op;
+    }
+
+    // 读取候选记录的算子：能只扫描组合索引时扫描索引，唯一索引上的等值查询只向下查找一次，其余的由 Planner 选择
+    private Operator source(long xid, Select read, List<Field> selected) throws Exception {
+        Index covering = coveringIndex(read, selected);
+        if(covering != null) {
+            return new Operator.IndexScan(this, xid, covering, coveringScan(covering, read.where));
+        }
+        boolean[] needed = needed(selected, read.where, false);
+        if(read.where != null && "".equals(read.where.logicOp) && "=".equals(read.where.singleExp1.compareOp)) {
+            RowScan scan = uniqueScan(xid, read.where);
+            if(scan != null) {
+                return new Operator.Scan(this, xid, scan, needed);
+            }
+        }
+        return new Operator.Scan(this, xid, scanWhere(read.where), needed);
+    }
+
+    private Operator filter(Operator child, Where where) throws Exception {
+        return where == null ? child : new Operator.Filter(child, Predicate.compile(this, where));
+    }
+
+    // order by 的列上有可用的 B+ 树索引时按索引的顺序读取，上层的 Limit 读够 limit 行即停止；
+    // 否则读取全部候选记录，交给 Sorter 排序，有 limit 时只保留最前面的 limit 行
+    private Operator readOrdered(long xid, Select read, List<Field> selected) throws Exception {
+        boolean[] needed = needed(selected, read.where, false);
+        int[] cols = columns(selected);
+        long[] range = orderRange(read);
+        if(range != null) {
+            IndexCursor cursor = field(read.orderBy[0]).cursor(range[0], range[1]);
+            RowScan scan = () -> cursor.hasNext() ? cursor.next() : 0;
+            return new Operator.Project(filter(new Operator.Scan(this, xid, scan, needed), read.where), cols);
+        }
+        int[] orderCols = new int[read.orderBy.length];
+        for(int k = 0; k < orderCols.length; k ++) {
+            orderCols[k] = column(read.orderBy[k]);
+            needed[orderCols[k]] = true;
+        }
+        Sorter sorter = new Sorter(codec.types, orderCols, read.desc, read.limit, Sorter.MEMORY_BUDGET);
+        Operator scan = new Operator.Scan(this, xid, scanWhere(read.where), needed);
+        return new Operator.Sort(filter(scan, read.where), sorter, cols);
+    }
+
+    // 只按一列升序排序，该列有 B+ 树索引且 key 能完整表示值，条件为空或只涉及该列且只有一个范围时，
+    // 返回要按顺序读取的索引范围，否则返回 null
+    private long[] orderRange(Select read) throws Exception {
+        if(read.orderBy.length != 1 || read.desc[0]) {
+            return null;
+        }
+        Field fd = field(read.orderBy[0]);
+        if(!fd.isIndexed() || fd.isHash() || !fd.exactKey()) {
+            return null;
+        }
+        Where where = read.where;
+        if(where == null) {
+            return new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+        }
+        if(!where.singleExp1.field.equals(fd.fieldName)
+            || where.singleExp2 != null && !where.singleExp2.field.equals(fd.fieldName)) {
+            return null;
+        }
+        CalWhereRes res = calWhere(fd, where);
+        return res.single ? new long[]{res.l0, res.r0} : null;
+    }
+
+    // 只有一项 count(*)，没有 group by
+    private static boolean isCountAll(Select read) {
+        return read.aggregates != null && read.groupBy == null && read.fields.length == 1
+            && "count".equals(read.aggregates[0]) && "*".equals(read.fields[0]);
+    }
+
+    // 聚合在服务端完成：候选记录只解码条件、分组和聚合用到的列，交给 Aggregator 做哈希聚合
+    private Operator aggregate(long xid, Select read) throws Exception {
+        Operator minMax = readMinMax(xid, read);
+        if(minMax != null) {
+            return minMax;
+        }
+        Aggregator agg = Aggregator.compile(this, read, Aggregator.MEMORY_BUDGET);
+        boolean[] needed = needed(null, read.where, false);
+        boolean[] aggNeeded = agg.needed();
+        for(int i = 0; i < needed.length; i ++) {
+            needed[i] |= aggNeeded[i];
+        }
+        Operator scan = new Operator.Scan(this, xid, scanWhere(read.where), needed);
+        return new Operator.Aggregate(filter(scan, read.where), agg, read.fields.length);
+    }
+
+    // 没有条件和分组，每一项都是整数字段的 B+ 树索引上的 min 或 max 时，直接从索引的两端取值，不读取记录。
+    // 不能这样处理时返回 null
+    private Operator readMinMax(long xid, Select read) throws Exception {
+        if(!isMinMax(read)) {
+            return null;
+        }
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        String[] values = new String[read.fields.length];
+        for(int i = 0; i < read.fields.length; i ++) {
+            Field fd = field(read.fields[i]);
+            long[] found = "min".equals(read.aggregates[i]) ? fd.firstLive(uid -> vm.isVisible(xid, uid))
+                : fd.lastLive(uid -> vm.isVisible(xid, uid));
+            // 整数字段的 key 就是值
+            values[i] = found == null ? "null" : String.valueOf(found[0]);
+        }
+        return new Operator.Values(values.length, Collections.singletonList(values));
+    }
+
+    private boolean isMinMax(Select read) throws Exception {
+        if(read.where != null || read.groupBy != null || read.aggregates == null) {
+            return false;
+        }
+        for(int i = 0; i < read.fields.length; i ++) {
+            if(!"min".equals(read.aggregates[i]) && !"max".equals(read.aggregates[i])) {
+                return false;
+            }
+            Field fd = field(read.fields[i]);
+            if(!fd.isIndexed() || fd.isHash() || !fd.exactKey()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // count(*) 不输出任何列：条件只涉及一个整数索引字段时，索引给出的范围是精确的，没有条件时读取全部记录，
+    // 这两种情况只判断记录的可见性，不读取记录。条件能从组合索引的 key 中还原时只扫描索引，其余情况只解码条件中的列
+    private Operator count(long xid, Select read) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        long n = 0;
+        long uid;
+        Planner.Plan exact = exactPlan(read.where);
+        Index covering;
+        if(exact != null || read.where == null) {
+            RowScan scan = (exact != null ? exact : new Planner(this).plan(null)).open();
+            while((uid = scan.next()) != 0) {
+                if(vm.isVisible(xid, uid)) n ++;
+            }
+        } else if((covering = coveringIndex(read, new ArrayList<>())) != null) {
+            WhereScan scan = coveringScan(covering, read.where);
+            Row row = codec.newRow();
+            while((uid = scan.next()) != 0) {
+                covering.decode(scan.key(), row);
+                if(matchWhere(read.where, row) && vm.isVisible(xid, uid)) n ++;
+            }
+        } else {
+            RowScan scan = scanWhere(read.where);
+            boolean[] needed = needed(null, read.where, false);
+            Row row = codec.newRow();
+            EntryReader reader = (raw, start, end) -> codec.decode(raw, start, needed, row);
+            while((uid = scan.next()) != 0) {
+                if(vm.read(xid, uid, reader) && matchWhere(read.where, row)) n ++;
+            }
+        }
+        return new Operator.Values(1, Collections.singletonList(new String[]{String.valueOf(n)}));
+    }
+
+    // 条件只涉及同一个索引字段，且字段的 key 能完整表示值时，索引范围内的项恰好满足条件
+    private Planner.Plan exactPlan(Where where) throws Exception {
+        if(where == null) {
+            return null;
+        }
+        Field fd = field(where.singleExp1.field);
+        if(where.singleExp2 != null && !where.singleExp2.field.equals(fd.fieldName)) {
+            return null;
+        }
+        if(!fd.isIndexed() || !fd.exactKey()) {
+            return null;
+        }
+        return new Planner(this).fieldPlan(fd, where);
+    }
+
+    // 唯一索引上的等值查询：只向下查找一次，取第一个项。
+    // 树中可能还留有尚未回收的失效项，第一个项对 xid 不可见时返回 null，由调用方扫描全部的项
+    private RowScan uniqueScan(long xid, Where where) throws Exception {
+        Field fd = field(where.singleExp1.field);
+        if(!fd.isUnique()) {
+            return null;
+        }
+        long uid = fd.lookupUnique(fd.string2Value(where.singleExp1.value));
+        if(uid != 0 && !((TableManagerImpl)tbm).vm.isVisible(xid, uid)) {
+            return null;
+        }
+        long[] next = {uid};
+        return () -> {
+            long u = next[0];
+            next[0] = 0;
+            return u;
+        };
+    }
+
+    // 按 read 的顺序给出查询实际使用的读取方式，不读取记录
+    public byte[] explain(Explain explain) throws Exception {
+        Where where;
+        if(explain.statement instanceof Select && isCountAll((Select)explain.statement)) {
+            return explainCount((Select)explain.statement);
+        }
+        if(explain.statement instanceof Select) {
+            Select read = (Select)explain.statement;
+            if(read.aggregates != null || read.groupBy != null) {
+                if(read.orderBy != null) {
+                    throw Error.OrderByAggregateException;
+                }
+                return explainAggregate(read);
+            }
+        }
+        if(explain.statement instanceof Select) {
+            Select read = (Select)explain.statement;
+            List<Field> selected = selectFields(read.fields);
+            if(read.orderBy != null) {
+                return explainOrdered(read);
+            }
+            Index covering = coveringIndex(read, selected);
+            if(covering != null) {
+                return ("CoveringIndexScan " + name + covering.toString() + "\n").getBytes();
+            }
+            where = read.where;
+            if(where != null && "".equals(where.logicOp) && "=".equals(where.singleExp1.compareOp)
+                && field(where.singleExp1.field).isUnique()) {
+                return ("UniqueLookup " + name + "." + where.singleExp1.field + ": " + Planner.describe(where) + "\n").getBytes();
+            }
+        } else if(explain.statement instanceof Update) {
+            where = ((Update)explain.statement).where;
+        } else {
+            where = ((Delete)explain.statement).where;
+        }
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        new Planner(this).plan(where).explain(sb, "");
+        return sb.toString().getBytes();
+    }
+
+    private byte[] explainAggregate(Select read) throws Exception {
+        if(isMinMax(read)) {
+            return ("IndexMinMax " + name + "\n").getBytes();
         }
-        return sb.toString();
+        Aggregator.compile(this, read, Aggregator.MEMORY_BUDGET);
+        StringBuilder sb = new StringBuilder("HashAggregate ").append(name);
+        if(read.groupBy != null) {
+            sb.append(": group by ").append(String.join(", ", read.groupBy));
+        }
+        sb.append("\n");
+        new Planner(this).plan(read.where).explain(sb, "  ");
+        return sb.toString().getBytes();
+    }
+
+    // IndexOrderScan 表示按索引顺序读取，TopN 表示有 limit 时用堆保留最前面的行，ExternalSort 表示全部排序，内存不足时写入临时文件
+    private byte[] explainOrdered(Select read) throws Exception {
+        StringBuilder order = new StringBuilder("order by ");
+        for(int k = 0; k < read.orderBy.length; k ++) {
+            column(read.orderBy[k]);
+            if(k > 0) {
+                order.append(", ");
+            }
+            order.append(read.orderBy[k]).append(read.desc[k] ? " desc" : "");
+        }
+        if(read.limit >= 0) {
+            order.append(" limit ").append(read.limit);
+        }
+        if(orderRange(read) != null) {
+            StringBuilder sb = new StringBuilder("IndexOrderScan ").append(name).append(".").append(read.orderBy[0]);
+            if(read.where != null) {
+                sb.append(": ").append(Planner.describe(read.where));
+            }
+            return sb.append(read.limit >= 0 ? " limit " + read.limit : "").append("\n").toString().getBytes();
+        }
+        StringBuilder sb = new StringBuilder(read.limit >= 0 ? "TopN " : "ExternalSort ").append(name).append(": ").append(order).append("\n");
+        new Planner(this).plan(read.where).explain(sb, "  ");
+        return sb.toString().getBytes();
+    }
+
+    // 与 count 的顺序相同，CountVisible 表示只判断可见性
+    private byte[] explainCount(Select read) throws Exception {
+        Planner.Plan exact = exactPlan(read.where);
+        if(exact != null || read.where == null) {
+            StringBuilder sb = new StringBuilder("CountVisible ").append(name).append("\n");
+            (exact != null ? exact : new Planner(this).plan(null)).explain(sb, "  ");
+            return sb.toString().getBytes();
+        }
+        StringBuilder sb = new StringBuilder("Count ").append(name).append("\n");
+        Index covering = coveringIndex(read, new ArrayList<>());
+        if(covering != null) {
+            sb.append("  CoveringIndexScan ").append(name).append(covering.toString()).append("\n");
+        } else {
+            new Planner(this).plan(read.where).explain(sb, "  ");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private int[] columns(List<Field> selected) {
+        int[] cols = new int[selected.size()];
+        for(int i = 0; i < cols.length; i ++) {
+            cols[i] = fields.indexOf(selected.get(i));
+        }
+        return cols;
+    }
+
+    private List<Field> selectFields(String[] names) throws Exception {
+        if(names.length == 1 && "*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> selected = new ArrayList<>();
+        for (String name : names) {
+            selected.add(field(name));
+        }
+        return selected;
+    }
+
+    // 查询的列和条件中的列都能从某个组合索引的 key 中还原时，返回该索引。
+    // 有条件时要求索引的第一列就是第一个条件的列，这样才能缩小查找范围
+    private Index coveringIndex(Select read, List<Field> selected) {
+        List<String> names = new ArrayList<>();
+        for (Field field : selected) {
+            names.add(field.fieldName);
+        }
+        if(read.where != null) {
+            names.add(read.where.singleExp1.field);
+            if(read.where.singleExp2 != null) {
+                names.add(read.where.singleExp2.field);
+            }
+        }
+        for (Index index : indexes) {
+            if(read.where != null && !index.columns.get(0).fieldName.equals(read.where.singleExp1.field)) {
+                continue;
+            }
+            boolean covered = true;
+            for (String name : names) {
+                if(!index.covers(name)) {
+                    covered = false;
+                    break;
+                }
+            }
+            if(covered) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private WhereScan coveringScan(Index index, Where where) throws Exception {
+        List<long[]> ranges;
+        if(where == null) {
+            ranges = new ArrayList<>();
+            ranges.add(new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+        } else {
+            ranges = index.calWhere(where);
+        }
+        List<IndexCursor> cursors = new ArrayList<>();
+        for (long[] range : ranges) {
+            cursors.add(index.cursor(range[0], range[1]));
+        }
+        return new WhereScan(cursors, ranges);
     }
 
     public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        for (Field field : fields) {
-            if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+        Row row = string2Row(insert.values);
+        byte[] raw = codec.encode(xid, row);
+        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw, seg);
+        ((TableManagerImpl)tbm).vm.attach(xid, uid, this);
+        try {
+            insertIndexes(xid, row, uid);
+        } catch(Exception e) {
+            // 唯一性冲突时新记录已被删除，其他错误时记录只插入了部分索引项，回滚整个事务
+            if(e != Error.DuplicatedKeyException) {
+                ((TableManagerImpl)tbm).vm.autoAbort(xid, e);
+            }
+            throw e;
+        }
+        Statistics s = stats;
+        if(s != null) {
+            s.changed(1);
+        }
+    }
+
+    // 重新收集统计信息，替换之前的统计信息
+    public synchronized byte[] analyze(long xid) throws Exception {
+        Statistics s = Statistics.collect(this, xid);
+        s.persist(((TableManagerImpl)tbm).dm, statsBoot);
+        stats = s;
+        return s.describe(this).getBytes();
+    }
+
+    // 为已有的字段建立索引。建立索引不属于 xid：在一个单独的事务中读取所有已提交的记录、写入索引和表结构后立即提交，
+    // xid 回滚时不会留下内存中有、磁盘上没有的索引。
+    // 建立期间持有写锁阻塞修改语句，并要求表上没有未提交的修改（包括 xid 自己的），否则它们不会出现在索引中
+    public void createIndex(long xid, CreateIndex create) throws Exception {
+        // 不等待正在执行的修改语句：它可能在等待另一个事务的记录锁，而那个事务的下一条语句会排在写锁之后
+        if(!ddlLock.writeLock().tryLock()) {
+            throw Error.TableBusyException;
+        }
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        try {
+            if(vm.hasWriter(this)) {
+                throw Error.TableBusyException;
             }
+            long ddl = vm.begin(0);
+            try {
+                buildIndex(ddl, create);
+            } catch(Exception e) {
+                vm.abort(ddl);
+                throw e;
+            }
+            vm.commit(ddl);
+        } finally {
+            ddlLock.writeLock().unlock();
         }
     }
 
-    private Map<String, Object> string2Entry(String[] values) throws Exception {
+    // 取出对 xid 可见的记录中索引列的值，排序后批量建树。
+    // 只有一列且没有 include 字段时索引建在 Field 上，否则建立组合索引，插入到索引链表的头部
+    private void buildIndex(long xid, CreateIndex create) throws Exception {
+        if(create.fieldName.length == 1 && create.included.length == 0) {
+            Field fd = field(create.fieldName[0]);
+            if(fd.isIndexed()) {
+                throw Error.FieldAlreadyIndexedException;
+            }
+            int col = fields.indexOf(fd);
+            boolean[] needed = new boolean[fields.size()];
+            needed[col] = true;
+            long[][] sorted = sortedKeys(xid, needed, row -> row.key(col));
+            fd.createIndex(xid, sorted[0], sorted[1], create.unique, create.hash);
+            return;
+        }
+        if(create.unique) {
+            throw Error.UniqueIndexTypeException;
+        }
+        if(create.hash) {
+            throw Error.HashIndexException;
+        }
+        Index index = Index.newIndex(this, indexHead, create.fieldName, create.included);
+        boolean[] needed = new boolean[fields.size()];
+        for(int i = 0; i < fields.size(); i ++) {
+            needed[i] = index.contains(fields.get(i));
+        }
+        long[][] sorted = sortedKeys(xid, needed, index::key);
+        index.persist(xid, sorted[0], sorted[1]);
+        // 记录长度不变，原地更新，表的 UID 不变
+        if(((TableManagerImpl)tbm).vm.update(xid, uid, selfRaw(index.uid)) != uid) {
+            throw Error.ConcurrentUpdateException;
+        }
+        indexHead = index.uid;
+        indexes.add(0, index);
+    }
+
+    // 扫描表中的所有记录，返回对 xid 可见的记录按 key 排序后的 key 和 uid
+    private long[][] sortedKeys(long xid, boolean[] needed, ToLongFunction<Row> keyOf) throws Exception {
+        List<long[]> pairs = new ArrayList<>();
+        Row row = codec.newRow();
+        EntryReader reader = (raw, start, end) -> codec.decode(raw, start, needed, row);
+        for (Long uid : parseWhere(null)) {
+            if(!((TableManagerImpl)tbm).vm.read(xid, uid, reader)) continue;
+            pairs.add(new long[]{keyOf.applyAsLong(row), uid});
+        }
+        pairs.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[][] sorted = new long[2][pairs.size()];
+        for(int i = 0; i < pairs.size(); i ++) {
+            sorted[0][i] = pairs.get(i)[0];
+            sorted[1][i] = pairs.get(i)[1];
+        }
+        return sorted;
+    }
+
+    // 记录已对所有事务不可见，摘除它在各个索引中的项
+    @Override
+    public void purge(long uid, byte[] raw) throws Exception {
+        Row row = codec.decode(raw, needed(null, null, true));
+        for(int i = 0; i < fields.size(); i ++) {
+            if(fields.get(i).isIndexed()) {
+                fields.get(i).delete(row.value(i), uid);
+            }
+        }
+        for (Index index : indexes) {
+            index.delete(row, uid);
+        }
+    }
+
+    @Override
+    public long[] overflows(byte[] raw) throws Exception {
+        return codec.overflows(raw);
+    }
+
+    private Row string2Row(String[] values) throws Exception {
         if(values.length != fields.size()) {
             throw Error.InvalidValuesException;
         }
-        Map<String, Object> entry = new HashMap<>();
+        Row row = codec.newRow();
         for (int i = 0; i < fields.size(); i++) {
-            Field f = fields.get(i);
-            Object v = f.string2Value(values[i]);
-            entry.put(f.fieldName, v);
+            row.set(i, fields.get(i).string2Value(values[i]));
         }
-        return entry;
+        return row;
     }
 
-    // 计算 Where 的范围:Table 类的 parseWhere() 和 calWhere() 方法，以及 Field 类的 calExp() 方法
+    // update 和 delete 先取出全部候选记录再修改，避免修改过程中新插入的索引项被再次扫描到
     private List<Long> parseWhere(Where where) throws Exception {
-        long l0=0, r0=0, l1=0, r1=0;
-        boolean single = false;
-        Field fd = null;
-        if(where == null) {
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
-                    break;
+        RowScan scan = scanWhere(where);
+        List<Long> uids = new ArrayList<>();
+        long uid;
+        while((uid = scan.next()) != 0) {
+            uids.add(uid);
+        }
+        return uids;
+    }
+
+    // 由 Planner 选择读取候选记录的方式，见 Planner
+    // 读取满足 where 的记录，只解码 needed 中的列。row 会被重复使用，consumer 返回 false 时停止读取
+    void scan(long xid, Where where, boolean[] needed, RowConsumer consumer) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        RowScan scan = scanWhere(where);
+        Row row = codec.newRow();
+        EntryReader reader = (raw, start, end) -> codec.decode(raw, start, needed, row);
+        long uid;
+        while((uid = scan.next()) != 0) {
+            if(!vm.read(xid, uid, reader)) continue;
+            if(where != null && !matchWhere(where, row)) continue;
+            if(!consumer.accept(row)) {
+                break;
+            }
+        }
+    }
+
+    interface RowConsumer {
+        boolean accept(Row row) throws Exception;
+    }
+
+    private RowScan scanWhere(Where where) throws Exception {
+        return new Planner(this).plan(where).open();
+    }
+
+    // 候选记录的来源，next() 返回下一条候选记录的 uid，遍历结束时返回 0
+    interface RowScan {
+        long next() throws Exception;
+    }
+
+    /**
+     * 按页号顺序扫描段中的页面，每次读出一页中所有有效的 DataItem。
+     * 段中只有表的记录，记录是否可见、是否满足条件由调用方判断
+     */
+    static class HeapScan implements RowScan {
+        private DataManager dm;
+        private int[] pages;
+        private int p;
+        private long[] uids = new long[0];
+        private int i;
+
+        HeapScan(DataManager dm, int[] pages) {
+            this.dm = dm;
+            this.pages = pages;
+        }
+
+        @Override
+        public long next() throws Exception {
+            while(i == uids.length) {
+                if(p == pages.length) {
+                    return 0;
                 }
+                uids = dm.scanPage(pages[p ++]);
+                i = 0;
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        } else {
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
+            return uids[i ++];
+        }
+    }
+
+    /**
+     * 依次遍历各个范围的索引游标。范围之间可能重叠，同一条记录在一个索引中只对应一个 key，
+     * key 落在前面的范围内的项已经返回过，直接跳过，不需要记录返回过的 uid
+     */
+    static class WhereScan implements RowScan {
+        private List<IndexCursor> cursors;
+        private List<long[]> ranges;
+        private int i;
+
+        WhereScan(List<IndexCursor> cursors, List<long[]> ranges) {
+            this.cursors = cursors;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public long next() throws Exception {
+            for(; i < cursors.size(); i ++) {
+                IndexCursor cursor = cursors.get(i);
+                while(cursor.hasNext()) {
+                    long uid = cursor.next();
+                    if(!inPrevRanges(cursor.key())) {
+                        return uid;
                     }
-                    fd = field;
-                    break;
                 }
             }
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
+            return 0;
+        }
+
+        long key() {
+            return cursors.get(i).key();
+        }
+
+        private boolean inPrevRanges(long key) {
+            for(int j = 0; j < i; j ++) {
+                if(ranges.get(j)[0] <= key && key <= ranges.get(j)[1]) {
+                    return true;
+                }
             }
-            CalWhereRes res = calWhere(fd, where);  // 计算Where的范围
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
+            return false;
         }
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+    }
+
+    // 索引只给出候选记录（string 的 key 只是前缀），需要用记录中完整的值重新检查条件
+    boolean matchWhere(Where where, Row row) throws Exception {
+        boolean m1 = matchExp(where.singleExp1, row);
+        switch(where.logicOp) {
+            case "":
+                return m1;
+            case "or":
+                return m1 || matchExp(where.singleExp2, row);
+            case "and":
+                return m1 && matchExp(where.singleExp2, row);
+            default:
+                throw Error.InvalidLogOpException;
         }
-        return uids;
+    }
+
+    boolean matchExp(SingleExpression exp, Row row) throws Exception {
+        int col = column(exp.field);
+        return fields.get(col).match(row.value(col), exp.compareOp, exp.value);
     }
 
     class CalWhereRes {
@@ -235,26 +1011,26 @@ public class Table {
     }
 
     // 目前，Where只支持两个条件的"and" 和 "or"
-    private CalWhereRes calWhere(Field fd, Where where) throws Exception {
+    CalWhereRes calWhere(Field fd, Where where) throws Exception {
         CalWhereRes res = new CalWhereRes();
         switch(where.logicOp) {
             case "":
                 res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
+                FieldCalRes r = calExp(fd, where.singleExp1);
                 res.l0 = r.left; res.r0 = r.right;
                 break;
             case "or":
                 res.single = false;
-                r = fd.calExp(where.singleExp1);
+                r = calExp(fd, where.singleExp1);
                 res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
+                r = calExp(fd, where.singleExp2);
                 res.l1 = r.left; res.r1 = r.right;
                 break;
             case "and":
                 res.single = true;
-                r = fd.calExp(where.singleExp1);
+                r = calExp(fd, where.singleExp1);
                 res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
+                r = calExp(fd, where.singleExp2);
                 res.l1 = r.left; res.r1 = r.right;
                 if(res.l1 > res.l0) res.l0 = res.l1;
                 if(res.r1 < res.r0) res.r0 = res.r1;
@@ -265,38 +1041,17 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
-                sb.append("]");
-            } else {
-                sb.append(", ");
-            }
-        }
-        return sb.toString();
-    }
-
-    private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
-        Map<String, Object> entry = new HashMap<>();
-        for (Field field : fields) {
-            ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
+    // 条件不在索引字段上时无法缩小范围，取全部范围，由 matchWhere 过滤
+    private FieldCalRes calExp(Field fd, SingleExpression exp) throws Exception {
+        if(fd.fieldName.equals(exp.field)) {
+            return fd.calExp(exp);
         }
-        return entry;
+        FieldCalRes res = new FieldCalRes();
+        res.left = Long.MIN_VALUE;
+        res.right = Long.MAX_VALUE;
+        return res;
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
-        }
-        return raw;
-    }
 
     @Override
     public String toString() {
@@ -310,6 +1065,9 @@ public class Table {
                 sb.append(", ");
             }
         }
+        for (Index index : indexes) {
+            sb.append(" ").append(index.toString());
+        }
         return sb.toString();
     }
 }
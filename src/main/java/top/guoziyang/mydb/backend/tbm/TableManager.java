@@ -1,14 +1,18 @@
 package top.guoziyang.mydb.backend.tbm;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.parser.statement.Analyze;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
+import top.guoziyang.mydb.backend.parser.statement.Explain;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.vm.VersionManager;
+import top.guoziyang.mydb.common.ResultSink;
 
 public interface TableManager {
     BeginRes begin(Begin begin);
@@ -17,11 +21,14 @@ public interface TableManager {
 
     byte[] show(long xid);
     byte[] create(long xid, Create create) throws Exception;
+    byte[] createIndex(long xid, CreateIndex create) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
-    byte[] read(long xid, Select select) throws Exception;
+    void read(long xid, Select select, ResultSink sink) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
+    byte[] explain(long xid, Explain explain) throws Exception;
+    byte[] analyze(long xid, Analyze analyze) throws Exception;
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
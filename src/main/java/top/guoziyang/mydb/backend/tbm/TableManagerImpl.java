@@ -8,15 +8,19 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.parser.statement.Analyze;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
+import top.guoziyang.mydb.backend.parser.statement.Explain;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Update;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
+import top.guoziyang.mydb.common.ResultSink;
 
 
 /**
@@ -47,6 +51,7 @@ public class TableManagerImpl implements TableManager {
             Table tb = Table.loadTable(this, uid);
             uid = tb.nextUid;
             tableCache.put(tb.name, tb);
+            vm.vacuumSegment(tb.segment(), tb);
         }
     }
 
@@ -118,6 +123,17 @@ public class TableManagerImpl implements TableManager {
         }
     }
     @Override
+    public byte[] createIndex(long xid, CreateIndex create) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(create.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        table.createIndex(xid, create);
+        return ("create index on " + create.tableName).getBytes();
+    }
+    @Override
     public byte[] insert(long xid, Insert insert) throws Exception {
         lock.lock();
         Table table = tableCache.get(insert.tableName);
@@ -125,18 +141,32 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        table.insert(xid, insert);
+        Lock l = table.ddlLock.readLock();
+        l.lock();
+        try {
+            table.insert(xid, insert);
+        } finally {
+            l.unlock();
+        }
         return "insert".getBytes();
     }
     @Override
-    public byte[] read(long xid, Select read) throws Exception {
+    public void read(long xid, Select read, ResultSink sink) throws Exception {
         lock.lock();
         Table table = tableCache.get(read.tableName);
+        Table joined = read.join == null ? null : tableCache.get(read.join.tableName);
         lock.unlock();
-        if(table == null) {
+        if(table == null || read.join != null && joined == null) {
             throw Error.TableNotFoundException;
         }
-        return table.read(xid, read).getBytes();
+        if(joined != null) {
+            new Joiner(table, joined, read, HashJoin.MEMORY_BUDGET).operator(xid).run(batch -> {
+                sink.write(batch.print());
+                return true;
+            });
+            return;
+        }
+        table.read(xid, read, sink);
     }
     @Override
     public byte[] update(long xid, Update update) throws Exception {
@@ -146,7 +176,14 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        int count = table.update(xid, update);
+        int count;
+        Lock l = table.ddlLock.readLock();
+        l.lock();
+        try {
+            count = table.update(xid, update);
+        } finally {
+            l.unlock();
+        }
         return ("update " + count).getBytes();
     }
     @Override
@@ -157,7 +194,39 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        int count = table.delete(xid, delete);
+        int count;
+        Lock l = table.ddlLock.readLock();
+        l.lock();
+        try {
+            count = table.delete(xid, delete);
+        } finally {
+            l.unlock();
+        }
         return ("delete " + count).getBytes();
     }
+    @Override
+    public byte[] explain(long xid, Explain explain) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(explain.tableName);
+        Select read = explain.statement instanceof Select ? (Select)explain.statement : null;
+        Table joined = read == null || read.join == null ? null : tableCache.get(read.join.tableName);
+        lock.unlock();
+        if(table == null || read != null && read.join != null && joined == null) {
+            throw Error.TableNotFoundException;
+        }
+        if(joined != null) {
+            return new Joiner(table, joined, read, HashJoin.MEMORY_BUDGET).explain();
+        }
+        return table.explain(explain);
+    }
+    @Override
+    public byte[] analyze(long xid, Analyze analyze) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(analyze.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        return table.analyze(xid);
+    }
 }
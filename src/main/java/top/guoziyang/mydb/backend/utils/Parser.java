@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.utils;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import com.google.common.primitives.Bytes;
@@ -34,6 +35,40 @@ public class Parser {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
 
+    // 以下方法直接在 buf 的 off 处按大端序读写，不分配临时数组，用于页面、DataItem 等热点路径
+
+    public static short parseShort(byte[] buf, int off) {
+        return (short)(((buf[off] & 0xff) << 8) | (buf[off+1] & 0xff));
+    }
+
+    public static int parseInt(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 24)
+            | ((buf[off+1] & 0xff) << 16)
+            | ((buf[off+2] & 0xff) << 8)
+            | (buf[off+3] & 0xff);
+    }
+
+    public static long parseLong(byte[] buf, int off) {
+        return ((long)parseInt(buf, off) << 32) | (parseInt(buf, off+4) & 0xffffffffL);
+    }
+
+    public static void putShort(byte[] buf, int off, short value) {
+        buf[off] = (byte)(value >>> 8);
+        buf[off+1] = (byte)value;
+    }
+
+    public static void putInt(byte[] buf, int off, int value) {
+        buf[off] = (byte)(value >>> 24);
+        buf[off+1] = (byte)(value >>> 16);
+        buf[off+2] = (byte)(value >>> 8);
+        buf[off+3] = (byte)value;
+    }
+
+    public static void putLong(byte[] buf, int off, long value) {
+        putInt(buf, off, (int)(value >>> 32));
+        putInt(buf, off+4, (int)value);
+    }
+
     public static ParseStringRes parseString(byte[] raw) {
         int length = parseInt(Arrays.copyOf(raw, 4));
         String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
@@ -45,13 +80,34 @@ public class Parser {
         return Bytes.concat(l, str.getBytes());
     }
 
-    public static long str2Uid(String key) {
-        long seed = 13331;
+    // 取字符串 UTF-8 编码的前 8 个字节作为索引的 key，key 的大小顺序与字符串的字典序一致。
+    // 前缀相同的字符串 key 相同，需要再比较完整的值
+    public static long str2Key(String str) {
+        return bytes2Key(str.getBytes(StandardCharsets.UTF_8), (byte)0);
+    }
+
+    // raw 的前 8 个字节按无符号大端解释，不足的部分以 pad 补齐，再翻转符号位，使其按有符号数比较时保持字节序
+    public static long bytes2Key(byte[] raw, byte pad) {
         long res = 0;
-        for(byte b : key.getBytes()) {
-            res = res * seed + (long)b;
+        for(int i = 0; i < 8; i ++) {
+            byte b = i < raw.length ? raw[i] : pad;
+            res = (res << 8) | (b & 0xff);
+        }
+        return res ^ Long.MIN_VALUE;
+    }
+
+    // 按 UTF-8 编码逐字节无符号比较，与 str2Key 的顺序一致
+    public static int compareStr(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(x.length, y.length);
+        for(int i = 0; i < n; i ++) {
+            int c = (x[i] & 0xff) - (y[i] & 0xff);
+            if(c != 0) {
+                return c;
+            }
         }
-        return res;
+        return x.length - y.length;
     }
 
 }
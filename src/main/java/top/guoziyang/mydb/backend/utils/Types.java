@@ -1,10 +1,18 @@
 package top.guoziyang.mydb.backend.utils;
 
 public class Types {
-    // DataItem 存储的 key，是由页号和页内偏移组成的一个 8 字节无符号整数，页号和偏移各占 4 字节
-    public static long addressToUid(int pgno, short offset) {
+    // DataItem 存储的 key，是由页号和页内槽号组成的一个 8 字节无符号整数，页号和槽号各占 4 字节
+    public static long addressToUid(int pgno, short slot) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)slot;
         return u0 << 32 | u1;
     }
+
+    public static int uidToPgno(long uid) {
+        return (int)((uid >>> 32) & ((1L << 32) - 1));
+    }
+
+    public static short uidToSlot(long uid) {
+        return (short)(uid & ((1L << 16) - 1));
+    }
 }
@@ -11,18 +11,22 @@ import top.guoziyang.mydb.backend.utils.Parser;
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [PREV] [SIZE] [data]
  * XMIN 是创建该条记录（版本）的事务编号，而 XMAX 则是删除该条记录（版本）的事务编号
+ * PREV 指向上一个版本（undo 记录）的 UID，为 0 表示没有更早的版本
+ * SIZE 为 data 的实际长度，DataItem 的容量可能大于 SIZE（原地更新为更短的数据时）
  */
 
 // 对于一条记录来说，MYDB 使用 Entry 类维护了其结构。
-// 虽然理论上，MVCC 实现了多版本，但是在实现中，VM 并没有提供 Update 操作，对于字段的更新操作由后面的表和字段管理（TBM）实现。
-// 所以在 VM 的实现中，一条记录只有一个版本
+// 记录的 UID 始终指向最新版本（版本头），更新时将旧版本拷贝为一条新的 undo 记录，再原地覆盖版本头，
+// 所以记录的 UID 在更新后保持不变，旧版本通过 PREV 串成一条从新到旧的版本链
 public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_PREV = OF_XMAX+8;
+    private static final int OF_SIZE = OF_PREV+8;
+    private static final int OF_DATA = OF_SIZE+2;
 
     private long uid;
     private DataItem dataItem;
@@ -45,9 +49,20 @@ public class Entry {
     }
 
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
-        byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        return wrapEntryRaw(xid, 0, 0, data);
+    }
+
+    public static byte[] wrapEntryRaw(long xmin, long xmax, long prev, byte[] data) {
+        byte[] xminRaw = Parser.long2Byte(xmin);
+        byte[] xmaxRaw = Parser.long2Byte(xmax);
+        byte[] prevRaw = Parser.long2Byte(prev);
+        byte[] sizeRaw = Parser.short2Byte((short)data.length);
+        return Bytes.concat(xminRaw, xmaxRaw, prevRaw, sizeRaw, data);
+    }
+
+    // 将 wrapEntryRaw 生成的版本标记为被 xid 删除（覆盖）
+    public static void setRawXmax(byte[] versionRaw, long xid) {
+        Parser.putLong(versionRaw, OF_XMAX, xid);
     }
 
     public void release() {
@@ -58,12 +73,31 @@ public class Entry {
         dataItem.release();
     }
 
+    // 更新时持有写锁，保证生成 undo 记录和覆盖版本头之间不被打断
+    public void lock() {
+        dataItem.lock();
+    }
+
+    public void unlock() {
+        dataItem.unlock();
+    }
+
+    // 读锁可重入，调用方可以在一次加锁内完成可见性判断和数据拷贝，避免读到并发原地更新的中间状态
+    public void rLock() {
+        dataItem.rLock();
+    }
+
+    public void rUnLock() {
+        dataItem.rUnLock();
+    }
+
     // 以拷贝的形式返回内容
     public byte[] data() {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            byte[] data = new byte[sa.end - sa.start - OF_DATA];
+            int size = getSize(sa);
+            byte[] data = new byte[size];
             System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);
             return data;
         } finally {
@@ -71,11 +105,40 @@ public class Entry {
         }
     }
 
+    // 在读锁内把页面中的数据交给 reader，不拷贝，用于只需要解码的读取
+    public void read(EntryReader reader) throws Exception {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            int start = sa.start+OF_DATA;
+            reader.read(sa.raw, start, start+getSize(sa));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 以拷贝的形式返回整个版本，用于生成 undo 记录
+    byte[] versionRaw() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Arrays.copyOfRange(sa.raw, sa.start, sa.start+OF_DATA+getSize(sa));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    // 版本头能容纳的最大数据长度
+    public int capacity() {
+        SubArray sa = dataItem.data();
+        return sa.end - sa.start - OF_DATA;
+    }
+
     public long getXmin() {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -85,17 +148,64 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    public long getPrev() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Parser.parseLong(sa.raw, sa.start+OF_PREV);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public void setPrev(long xid, long prev) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            Parser.putLong(sa.raw, sa.start+OF_PREV, prev);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    private static int getSize(SubArray sa) {
+        return Parser.parseShort(sa.raw, sa.start+OF_SIZE);
+    }
+
     public void setXmax(long xid) {
         dataItem.before();
         try {
             SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            Parser.putLong(sa.raw, sa.start+OF_XMAX, xid);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    // 撤销 xid 设置的 XMAX，修改日志记在 xid 名下
+    public void clearXmax(long xid) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            Parser.putLong(sa.raw, sa.start+OF_XMAX, 0);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    // 以 versionRaw（wrapEntryRaw 生成的完整版本）原地覆盖版本头，修改日志记在 xid 名下
+    // 调用方需保证数据长度不超过 capacity()
+    public void overwrite(long xid, byte[] versionRaw) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(versionRaw, 0, sa.raw, sa.start, versionRaw.length);
         } finally {
             dataItem.after(xid);
         }
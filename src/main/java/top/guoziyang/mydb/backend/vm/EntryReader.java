@@ -0,0 +1,6 @@
+package top.guoziyang.mydb.backend.vm;
+
+// 在版本的读锁内读取数据：raw[start, end) 直接指向页面中的数据，只能在回调内读取，不能修改或保留
+public interface EntryReader {
+    void read(byte[] raw, int start, int end) throws Exception;
+}
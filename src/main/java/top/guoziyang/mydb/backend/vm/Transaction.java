@@ -1,7 +1,12 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 
@@ -12,11 +17,19 @@ public class Transaction {
     public Map<Long, Boolean> snapshot;
     public Exception err;
     public boolean autoAborted;
+    public List<Long> touched;                      // 该事务插入、删除或更新过的记录，结束后交给 vacuum
+    public List<Long> undos;                        // 该事务生成的 undo 记录，回滚后不再被版本链引用
+    public Map<Long, VacuumListener> listeners;     // 记录被回收前需要通知的上层模块，建立索引时会被其他线程读取
+    public Set<Long> overflows;                     // 该事务写入的溢出数据，回滚后不再被任何版本引用
 
     public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {  // active，保存着当前所有 active 的事务
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
+        t.touched = new ArrayList<>();
+        t.undos = new ArrayList<>();
+        t.listeners = new ConcurrentHashMap<>();
+        t.overflows = new HashSet<>();
         if(level != 0) {
             t.snapshot = new HashMap<>();
             for(Long x : active.keySet()) {
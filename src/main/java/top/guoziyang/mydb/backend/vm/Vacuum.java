@@ -0,0 +1,268 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.dm.Overflow;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * Vacuum 回收对所有活跃事务都不可见的版本
+ *
+ * 事务结束时，它修改过的记录被放入待回收队列。当该事务对所有活跃事务都已过时
+ * （不再活跃，且所有活跃事务都在它结束后开始），队列中的记录会被逐条检查：
+ * 1. 记录已被过时的事务删除，或由已回滚的事务插入：通知上层清理索引项，再释放整条版本链
+ * 2. 记录仍然存活：从新到旧找到第一个对所有事务都可见的版本，截断并释放它之后的旧版本
+ * 释放版本时，一并释放其中不再被保留的版本引用的溢出数据。回滚的事务写入的溢出数据只被它自己的版本引用，
+ * 回滚后整体释放
+ *
+ * 队列只在内存中，上次运行结束或崩溃时留在队列中的记录不会再被加入。打开表时将表的段中的页面加入队列，
+ * 逐页检查其中的记录，并释放上次运行中回滚的事务留下的 undo 记录
+ */
+public class Vacuum {
+
+    static class Garbage {
+        long xid;
+        boolean aborted;
+        List<Long> uids;
+        List<Long> undos;
+        Map<Long, VacuumListener> listeners;
+        Set<Long> overflows;
+        // 打开表时加入的段页面，其中的记录都使用 listener
+        int[] pages;
+        VacuumListener listener;
+    }
+
+    private VersionManagerImpl vm;
+    private TransactionManager tm;
+    private List<Garbage> queue;
+    private Lock lock;
+
+    Vacuum(VersionManagerImpl vm) {
+        this.vm = vm;
+        this.tm = vm.tm;
+        this.queue = new ArrayList<>();
+        this.lock = new ReentrantLock();
+    }
+
+    // 事务提交或回滚后，将其修改过的记录加入待回收队列
+    void add(Transaction t, boolean aborted) {
+        if(t.touched.isEmpty()) {
+            return;
+        }
+        Garbage g = new Garbage();
+        g.xid = t.xid;
+        g.aborted = aborted;
+        g.uids = t.touched;
+        g.undos = t.undos;
+        g.listeners = t.listeners;
+        g.overflows = t.overflows;
+        lock.lock();
+        try {
+            queue.add(g);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 将段中的页面加入待回收队列，回收上次运行遗留的旧版本
+    void addPages(int[] pages, VacuumListener listener) {
+        if(pages.length == 0) {
+            return;
+        }
+        Garbage g = new Garbage();
+        g.pages = pages;
+        g.listener = listener;
+        lock.lock();
+        try {
+            queue.add(g);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 执行一轮回收，返回释放的 DataItem 个数
+    public int run() throws Exception {
+        List<Garbage> ready = new ArrayList<>();
+        lock.lock();
+        try {
+            Iterator<Garbage> it = queue.iterator();
+            while(it.hasNext()) {
+                Garbage g = it.next();
+                if(g.pages != null || g.aborted || vm.isObsolete(g.xid)) {
+                    ready.add(g);
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        int freed = 0;
+        for(Garbage g : ready) {
+            if(g.pages != null) {
+                for(int pgno : g.pages) {
+                    for(long uid : vm.dm.scanPage(pgno)) {
+                        freed += vacuumEntry(uid, g.listener, true);
+                    }
+                }
+                continue;
+            }
+            for(long uid : g.uids) {
+                freed += vacuumEntry(uid, g.listeners.get(uid), false);
+            }
+            if(g.aborted) {
+                // 版本头都已回滚，回滚事务生成的 undo 记录不再被引用
+                for(long uid : g.undos) {
+                    vm.dm.free(uid);
+                    freed ++;
+                }
+                for(long uid : g.overflows) {
+                    freed += Overflow.free(vm.dm, uid);
+                }
+            }
+        }
+        return freed;
+    }
+
+    // leftover 为 true 时，回滚版本头后不再被引用的上次运行的 undo 记录也一并释放
+    private int vacuumEntry(long uid, VacuumListener listener, boolean leftover) throws Exception {
+        Entry head = vm.getEntry(uid);
+        if(head == null) {
+            return 0;   // 已经被回收
+        }
+        List<Long> dead = new ArrayList<>();
+        Set<Long> overflows = new HashSet<>();
+        byte[] data = null;
+        head.lock();
+        try {
+            long xmin = head.getXmin();
+            // 本次运行中回滚的事务写入的溢出数据由它的待回收项释放，上次运行的在这里释放
+            boolean own = !tm.isAborted(xmin) || vm.isLeftover(xmin);
+            if(tm.isAborted(xmin) && own) {
+                addOverflows(listener, head.data(), overflows);
+            }
+            vm.rollbackAborted(TransactionManagerImpl.SUPER_XID, head, leftover ? dead : null);
+            xmin = head.getXmin();
+            long xmax = head.getXmax();
+            if(tm.isAborted(xmin) || (xmax != 0 && tm.isCommitted(xmax) && vm.isObsolete(xmax))) {
+                data = head.data();
+                dead.add(uid);
+                if(own) {
+                    addOverflows(listener, data, overflows);
+                }
+                collectChain(head.getPrev(), dead, listener, overflows);
+            } else {
+                removeOverflows(listener, head.data(), overflows);
+                truncateChain(head, dead, listener, overflows);
+            }
+        } finally {
+            head.unlock();
+            head.release();
+        }
+
+        if(data != null && listener != null) {
+            listener.purge(uid, data);
+        }
+        for(long u : dead) {
+            vm.dm.free(u);
+        }
+        int freed = dead.size();
+        for(long of : overflows) {
+            freed += Overflow.free(vm.dm, of);
+        }
+        return freed;
+    }
+
+    // 找到第一个创建者对所有事务都可见的版本，更旧的版本不会再被任何事务读到。
+    // 溢出数据只被版本链上连续的一段版本引用，保留的版本仍引用的溢出数据不释放
+    private void truncateChain(Entry head, List<Long> dead, VacuumListener listener, Set<Long> overflows) throws Exception {
+        Entry version = head;
+        while(true) {
+            long xmin = version.getXmin();
+            if(tm.isCommitted(xmin) && (xmin == TransactionManagerImpl.SUPER_XID || vm.isObsolete(xmin))) {
+                long prev = version.getPrev();
+                if(prev != 0) {
+                    version.setPrev(TransactionManagerImpl.SUPER_XID, 0);
+                    Set<Long> older = new HashSet<>();
+                    collectChain(prev, dead, listener, older);
+                    removeOverflows(listener, version.data(), older);
+                    overflows.addAll(older);
+                }
+                break;
+            }
+            long prev = version.getPrev();
+            if(version != head) {
+                version.release();
+            }
+            version = prev == 0 ? null : vm.getEntry(prev);
+            if(version == null) {
+                return;
+            }
+        }
+        if(version != head) {
+            version.release();
+        }
+    }
+
+    private void collectChain(long uid, List<Long> dead, VacuumListener listener, Set<Long> overflows) throws Exception {
+        while(uid != 0) {
+            Entry version = vm.getEntry(uid);
+            if(version == null) {
+                return;
+            }
+            try {
+                dead.add(uid);
+                addOverflows(listener, version.data(), overflows);
+                uid = version.getPrev();
+            } finally {
+                version.release();
+            }
+        }
+    }
+
+    private static void addOverflows(VacuumListener listener, byte[] data, Set<Long> overflows) throws Exception {
+        if(listener == null) {
+            return;
+        }
+        for(long of : listener.overflows(data)) {
+            overflows.add(of);
+        }
+    }
+
+    private static void removeOverflows(VacuumListener listener, byte[] data, Set<Long> overflows) throws Exception {
+        if(listener == null || overflows.isEmpty()) {
+            return;
+        }
+        for(long of : listener.overflows(data)) {
+            overflows.remove(of);
+        }
+    }
+
+    // 后台线程定期执行回收
+    public static Thread startDaemon(VersionManager vm, long intervalMillis) {
+        Thread t = new Thread(() -> {
+            while(true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    vm.vacuum();
+                } catch(InterruptedException e) {
+                    return;
+                } catch(Exception e) {
+                    Panic.panic(e);
+                }
+            }
+        }, "vacuum");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
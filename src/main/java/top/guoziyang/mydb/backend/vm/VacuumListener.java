@@ -0,0 +1,9 @@
+package top.guoziyang.mydb.backend.vm;
+
+// 记录被 vacuum 回收之前的回调，上层模块借此清理指向该记录的索引项
+// data 为记录最后一个版本的内容
+public interface VacuumListener {
+    void purge(long uid, byte[] data) throws Exception;
+    // 一个版本的数据中指向的溢出数据（见 Overflow）的 UID，vacuum 释放版本时一并释放不再被引用的溢出数据
+    long[] overflows(byte[] data) throws Exception;
+}
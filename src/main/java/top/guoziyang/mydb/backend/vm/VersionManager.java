@@ -1,16 +1,42 @@
 package top.guoziyang.mydb.backend.vm;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.Segment;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
+    // 在可见版本的读锁内由 reader 直接读取页面中的数据，不拷贝。没有可见版本时返回 false
+    boolean read(long xid, long uid, EntryReader reader) throws Exception;
+    // 判断 uid 对应的记录是否有对 xid 可见的版本，不拷贝数据
+    boolean isVisible(long xid, long uid) throws Exception;
+    // 唯一索引检查冲突时使用，判断记录对 xid 而言是否仍然存在，不考虑快照，见 Visibility.isLive
+    boolean isLive(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 记录插入到段 seg 的页面中，seg 为 null 时插入到公共页面。undo 记录总是插入到公共页面
+    long insert(long xid, byte[] data, Segment seg) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    // 撤销 xid 对 uid 的 delete，用于语句失败时恢复已经删除的旧记录。xid 仍持有记录的锁
+    void undelete(long xid, long uid) throws Exception;
+    long update(long xid, long uid, byte[] data) throws Exception;
+    long update(long xid, long uid, byte[] data, Segment seg) throws Exception;
 
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
+    // 语句执行到一半失败、已经做出的修改无法单独撤销时回滚整个事务，与死锁时的自动回滚相同，之后 xid 上的操作都抛出 err
+    void autoAbort(long xid, Exception err);
+
+    // 为 xid 修改过的记录注册回收回调，记录被 vacuum 回收前会通知 listener
+    void attach(long xid, long uid, VacuumListener listener);
+    // 是否有活跃的事务修改过注册了 listener 的记录，即 listener 对应的表上是否有未提交的修改
+    boolean hasWriter(VacuumListener listener);
+    // 登记 xid 写入的溢出数据，xid 回滚后由 vacuum 释放
+    void attachOverflow(long xid, long uid);
+    // 回收已经对所有事务都不可见的版本，返回释放的 DataItem 个数
+    int vacuum() throws Exception;
+    // 待回收队列只在内存中，打开表时将表的段加入队列，回收上次运行（包括崩溃）遗留的旧版本
+    void vacuumSegment(Segment seg, VacuumListener listener);
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
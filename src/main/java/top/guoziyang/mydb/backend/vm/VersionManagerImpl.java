@@ -1,12 +1,17 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.Overflow;
+import top.guoziyang.mydb.backend.dm.Readers;
+import top.guoziyang.mydb.backend.dm.Segment;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -16,11 +21,17 @@ import top.guoziyang.mydb.common.Error;
 // 同时实现了两种隔离级别
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
+    // 只判断是否存在可见版本时使用，不读取数据
+    private static final EntryReader SKIP = (raw, start, end) -> {};
+
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
     Lock lock;
     LockTable lt;
+    Vacuum vacuum;
+    long lastXid;   // 最近开始的事务
+    long firstXid;  // 本次运行中第一个开始的事务，更早的事务都是上次运行留下的
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
@@ -30,11 +41,37 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.vacuum = new Vacuum(this);
+        dm.setReaders(new Readers() {
+            @Override
+            public long mark() {
+                lock.lock();
+                try {
+                    return lastXid;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public boolean finished(long mark) {
+                return isFinished(mark);
+            }
+        });
     }
 
-    // read() 方法读取一个 entry，注意判断下可见性即可：
+    // read() 方法读取一个 entry，注意判断下可见性即可，版本头不可见时沿版本链向前查找：
     @Override
     public byte[] read(long xid, long uid) throws Exception {
+        byte[][] data = new byte[1][];
+        if(!read(xid, uid, (raw, start, end) -> data[0] = Arrays.copyOfRange(raw, start, end))) {
+            return null;
+        }
+        return data[0];
+    }
+
+    @Override
+    public boolean read(long xid, long uid, EntryReader reader) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -43,21 +80,59 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
-        Entry entry = null;
+        Entry entry = getEntry(uid);
+        if(entry == null) {
+            return false;
+        }
         try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
+            return readVisible(t, entry, reader);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public boolean isVisible(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry = getEntry(uid);
+        if(entry == null) {
+            return false;
+        }
+        try {
+            entry.rLock();
+            try {
+                if(Visibility.isVisible(tm, t, entry)) {
+                    return true;
+                }
+            } finally {
+                entry.rUnLock();
             }
+            // 最新版本不可见时沿版本链查找
+            return readVisible(t, entry, SKIP);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public boolean isLive(long xid, long uid) throws Exception {
+        Entry entry = getEntry(uid);
+        if(entry == null) {
+            return false;
         }
         try {
-            if(Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
+            entry.rLock();
+            try {
+                return Visibility.isLive(tm, xid, entry);
+            } finally {
+                entry.rUnLock();
             }
         } finally {
             entry.release();
@@ -67,6 +142,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     // insert() 则是将数据包裹成 Entry，无脑交给 DM 插入即可：
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, data, null);
+    }
+
+    @Override
+    public long insert(long xid, byte[] data, Segment seg) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -76,7 +156,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        long uid = dm.insert(xid, raw, seg);
+        touch(t, uid);
+        return uid;
     }
 
     // delete 主要是前置的三件事：一是可见性判断，二是获取资源的锁，三是版本跳跃判断。
@@ -90,50 +172,349 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
+        Entry entry = getEntry(uid);
+        if(entry == null) {
+            return false;
+        }
         try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
+            if(!readVisible(t, entry, SKIP)) {
                 return false;
-            } else {
-                throw e;
             }
+            lockEntry(t, xid, uid);
+
+            entry.lock();
+            try {
+                if(!prepareModify(t, entry)) {
+                    return false;
+                }
+                entry.setXmax(xid);
+                touch(t, uid);
+                return true;
+            } finally {
+                entry.unlock();
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void undelete(long xid, long uid) throws Exception {
+        Entry entry = getEntry(uid);
+        if(entry == null) {
+            return;
         }
         try {
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
+            entry.lock();
+            try {
+                if(entry.getXmax() == xid) {
+                    entry.clearXmax(xid);
+                }
+            } finally {
+                entry.unlock();
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    // update 的前置检查与 delete 相同，随后将当前版本拷贝为 undo 记录，并原地覆盖版本头，UID 保持不变。
+    // 新数据超出版本头的容量时，退化为删除旧记录并插入一条新记录。
+    // 返回新版本所在的 UID，记录对 xid 不可见时返回 0
+    @Override
+    public long update(long xid, long uid, byte[] data) throws Exception {
+        return update(xid, uid, data, null);
+    }
+
+    @Override
+    public long update(long xid, long uid, byte[] data, Segment seg) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        Entry entry = getEntry(uid);
+        if(entry == null) {
+            return 0;
+        }
+        try {
+            if(!readVisible(t, entry, SKIP)) {
+                return 0;
             }
-            Lock l = null;
+            lockEntry(t, xid, uid);
+
+            entry.lock();
             try {
-                l = lt.add(xid, uid);
-            } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+                if(!prepareModify(t, entry)) {
+                    return 0;
+                }
+                if(data.length > entry.capacity()) {
+                    entry.setXmax(xid);
+                    touch(t, uid);
+                    long newUid = dm.insert(xid, Entry.wrapEntryRaw(xid, data), seg);
+                    touch(t, newUid);
+                    return newUid;
+                }
+                long prev;
+                if(entry.getXmin() == xid) {
+                    // 同一事务内的再次更新，事务开始前的版本已经保存在 undo 记录中
+                    prev = entry.getPrev();
+                    dropOverflows(t, uid, entry.data(), data);
+                } else {
+                    byte[] old = entry.versionRaw();
+                    Entry.setRawXmax(old, xid);
+                    prev = dm.insert(xid, old);
+                    if(xid != TransactionManagerImpl.SUPER_XID) {
+                        t.undos.add(prev);
+                    }
+                }
+                entry.overwrite(xid, Entry.wrapEntryRaw(xid, 0, prev, data));
+                touch(t, uid);
+                return uid;
+            } finally {
+                entry.unlock();
             }
-            if(l != null) {
-                l.lock();
-                l.unlock();
+        } finally {
+            entry.release();
+        }
+    }
+
+    // 被覆盖的版本只对 t 可见，其中由 t 写入、新版本不再引用的溢出数据可以立即释放
+    private void dropOverflows(Transaction t, long uid, byte[] old, byte[] data) throws Exception {
+        VacuumListener listener = t.listeners.get(uid);
+        if(listener == null || t.overflows.isEmpty()) {
+            return;
+        }
+        long[] kept = listener.overflows(data);
+        for(long of : listener.overflows(old)) {
+            if(!contains(kept, of) && t.overflows.remove(of)) {
+                Overflow.free(dm, of);
             }
+        }
+    }
 
-            if(entry.getXmax() == xid) {
-                return false;
+    private static boolean contains(long[] uids, long uid) {
+        for(long u : uids) {
+            if(u == uid) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            if(Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+    // 记录事务修改过的记录，事务结束后由 vacuum 检查
+    private void touch(Transaction t, long uid) {
+        if(t.xid != TransactionManagerImpl.SUPER_XID) {
+            t.touched.add(uid);
+        }
+    }
+
+    @Override
+    public void attach(long xid, long uid, VacuumListener listener) {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            t.listeners.put(uid, listener);
+        }
+    }
+
+    @Override
+    public boolean hasWriter(VacuumListener listener) {
+        lock.lock();
+        try {
+            for(Transaction t : activeTransaction.values()) {
+                if(!t.autoAborted && t.listeners.containsValue(listener)) {
+                    return true;
+                }
             }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void attachOverflow(long xid, long uid) {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            t.overflows.add(uid);
+        }
+    }
+
+    @Override
+    public void vacuumSegment(Segment seg, VacuumListener listener) {
+        vacuum.addPages(seg.pages(), listener);
+    }
+
+    @Override
+    public int vacuum() throws Exception {
+        return vacuum.run();
+    }
 
-            entry.setXmax(xid);
+    // 不晚于 mark 开始的事务是否都已结束。DataItem 只在事务中被读取，
+    // 回收的 UID 已经从索引和版本链中摘除，之后开始的事务不会再得到它
+    private boolean isFinished(long mark) {
+        lock.lock();
+        try {
+            for(long xid : activeTransaction.keySet()) {
+                if(xid != TransactionManagerImpl.SUPER_XID && xid <= mark) {
+                    return false;
+                }
+            }
             return true;
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    // xid 已经结束，且所有活跃事务都在它结束之后开始，说明 xid 的修改对所有事务的可见性都已确定
+    boolean isObsolete(long xid) {
+        lock.lock();
+        try {
+            if(activeTransaction.containsKey(xid)) {
+                return false;
+            }
+            for(Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                if(t.xid < xid || (t.snapshot != null && t.snapshot.containsKey(xid))) {
+                    return false;
+                }
+            }
+            return true;
         } finally {
-            entry.release();
+            lock.unlock();
+        }
+    }
+
+    // 从新到旧沿版本链查找对 t 可见的版本，在它的读锁内交给 reader
+    private boolean readVisible(Transaction t, Entry entry, EntryReader reader) throws Exception {
+        long prev;
+        entry.rLock();
+        try {
+            if(Visibility.isVisible(tm, t, entry)) {
+                entry.read(reader);
+                return true;
+            }
+            prev = entry.getPrev();
+        } finally {
+            entry.rUnLock();
+        }
+        long first = prev;
+        while(prev != 0) {
+            Entry version = getEntry(prev);
+            if(version == null) {
+                // 版本链被 vacuum 并发地截断或回滚，从版本头重新查找
+                if(entry.getPrev() != first) {
+                    return readVisible(t, entry, reader);
+                }
+                return false;
+            }
+            try {
+                if(Visibility.isVisible(tm, t, version)) {
+                    version.read(reader);
+                    return true;
+                }
+                prev = version.getPrev();
+            } finally {
+                version.release();
+            }
+        }
+        return false;
+    }
+
+    // 获取 uid 上的锁，可能因死锁而自动回滚事务
+    private void lockEntry(Transaction t, long xid, long uid) throws Exception {
+        Lock l = null;
+        try {
+            l = lt.add(xid, uid);
+        } catch(Exception e) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+        if(l != null) {
+            l.lock();
+            l.unlock();
+        }
+    }
+
+    // 在持有版本头写锁的情况下，检查是否可以修改该记录：
+    // 先撤销被回滚事务留下的版本头，再做版本跳跃判断。已被删除则返回 false
+    private boolean prepareModify(Transaction t, Entry entry) throws Exception {
+        rollbackAborted(t.xid, entry);
+        long xmax = entry.getXmax();
+        if(xmax == t.xid) {
+            return false;
+        }
+        if(Visibility.isVersionSkip(tm, t, entry)) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(t.xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+        return xmax == 0 || !tm.isCommitted(xmax);
+    }
+
+    // 版本头由已回滚的事务写入时，用上一个版本覆盖回版本头
+    void rollbackAborted(long xid, Entry entry) throws Exception {
+        rollbackAborted(xid, entry, null);
+    }
+
+    // undone 不为 null 时，收集上次运行留下的、覆盖后不再被引用的 undo 记录。
+    // 本次运行的 undo 记录由回滚事务的待回收项释放
+    void rollbackAborted(long xid, Entry entry, List<Long> undone) throws Exception {
+        while(true) {
+            long xmin = entry.getXmin();
+            if(!tm.isAborted(xmin)) {
+                return;
+            }
+            long prev = entry.getPrev();
+            if(prev == 0) {
+                return;
+            }
+            Entry version = getEntry(prev);
+            if(version == null) {
+                return;
+            }
+            try {
+                entry.overwrite(xid, version.versionRaw());
+            } finally {
+                version.release();
+            }
+            if(undone != null && isLeftover(xmin)) {
+                undone.add(prev);
+            }
+        }
+    }
+
+    boolean isLeftover(long xid) {
+        lock.lock();
+        try {
+            return firstXid == 0 || xid < firstXid;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Entry getEntry(long uid) throws Exception {
+        try {
+            return super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
         }
     }
 
@@ -146,6 +527,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             long xid = tm.begin();
             Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
             activeTransaction.put(xid, t);
+            lastXid = xid;
+            if(firstXid == 0) {
+                firstXid = xid;
+            }
             return xid;
         } finally {
             lock.unlock();
@@ -176,6 +561,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
         lt.remove(xid);
         tm.commit(xid);
+        vacuum.add(t, false);
     }
 
     // abort 事务的方法则有两种，手动和自动。
@@ -186,6 +572,18 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         internAbort(xid, false);
     }
 
+    @Override
+    public void autoAbort(long xid, Exception err) {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.autoAborted) return;
+        t.err = err;
+        internAbort(xid, true);
+        t.autoAborted = true;
+    }
+
     private void internAbort(long xid, boolean autoAborted) {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
@@ -197,6 +595,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.autoAborted) return;
         lt.remove(xid);
         tm.abort(xid);
+        vacuum.add(t, true);
     }
 
     public void releaseEntry(Entry entry) {
@@ -14,14 +14,30 @@ public class Visibility {
     // 版本跳跃的检查
     // 取出要修改的数据 X 的最新提交版本，并检查该最新版本的创建者对当前事务是否可见:
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
+        long xmin = e.getXmin();
         long xmax = e.getXmax();
         if(t.level == 0) {  // 读提交允许版本跳跃
             return false;
         } else {
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            // 原地更新时新版本的创建者记在版本头的 XMIN 中，同样需要检查
+            return isSkipped(tm, t, xmax) || (xmin != t.xid && isSkipped(tm, t, xmin));
         }
     }
 
+    private static boolean isSkipped(TransactionManager tm, Transaction t, long xid) {
+        return tm.isCommitted(xid) && (xid > t.xid || t.isInSnapshot(xid));
+    }
+
+    // 唯一性检查使用：记录是否仍然存在或可能存在，即插入它的事务没有回滚，也没有被已提交的事务或 xid 自己删除。
+    // 未提交的插入和删除都按存在处理
+    public static boolean isLive(TransactionManager tm, long xid, Entry e) {
+        long xmin = e.getXmin();
+        long xmax = e.getXmax();
+        if(tm.isAborted(xmin)) return false;
+        if(xmax != 0 && (xmax == xid || tm.isCommitted(xmax))) return false;
+        return true;
+    }
+
     public static boolean isVisible(TransactionManager tm, Transaction t, Entry e) {
         if(t.level == 0) {
             return readCommitted(tm, t, e);
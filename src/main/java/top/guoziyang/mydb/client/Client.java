@@ -1,5 +1,6 @@
 package top.guoziyang.mydb.client;
 
+import top.guoziyang.mydb.common.ResultSink;
 import top.guoziyang.mydb.transport.Package;
 import top.guoziyang.mydb.transport.Packager;
 
@@ -19,6 +20,14 @@ public class Client {
         return resPkg.getData();
     }
 
+    // 结果的每一块收到后立即交给 sink
+    public void execute(byte[] stat, ResultSink sink) throws Exception {
+        Package resPkg = rt.roundTrip(new Package(stat, null), sink);
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+    }
+
     public void close() {
         try {
             rt.close();
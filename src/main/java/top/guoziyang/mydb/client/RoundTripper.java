@@ -1,5 +1,8 @@
 package top.guoziyang.mydb.client;
 
+import java.io.ByteArrayOutputStream;
+
+import top.guoziyang.mydb.common.ResultSink;
 import top.guoziyang.mydb.transport.Package;
 import top.guoziyang.mydb.transport.Packager;
 
@@ -14,8 +17,26 @@ public class RoundTripper {
     }
 
     public Package roundTrip(Package pkg) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Package res = roundTrip(pkg, out::write);
+        if(res.getErr() != null) {
+            return res;
+        }
+        return new Package(out.toByteArray(), null);
+    }
+
+    // 部分结果收到后立即交给 sink，返回最后一个数据包，其中的数据也已经交给 sink
+    public Package roundTrip(Package pkg, ResultSink sink) throws Exception {
         packager.send(pkg);
-        return packager.receive();
+        while(true) {
+            Package res = packager.receive();
+            if(res.getErr() == null) {
+                sink.write(res.getData());
+            }
+            if(!res.isPartial()) {
+                return res;
+            }
+        }
     }
 
     public void close() throws Exception {
@@ -19,8 +19,8 @@ public class Shell {
                     break;
                 }
                 try {
-                    byte[] res = client.execute(statStr.getBytes());
-                    System.out.println(new String(res));
+                    client.execute(statStr.getBytes(), chunk -> System.out.print(new String(chunk)));
+                    System.out.println();
                 } catch(Exception e) {
                     System.out.println(e.getMessage());
                 }
@@ -6,6 +6,7 @@ public class Error {
     public static final Exception FileExistsException = new RuntimeException("File already exists!");
     public static final Exception FileNotExistsException = new RuntimeException("File does not exists!");
     public static final Exception FileCannotRWException = new RuntimeException("File cannot read or write!");
+    public static final Exception BadFormatVersionException = new RuntimeException("Database file format version is not supported!");
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
@@ -29,6 +30,18 @@ public class Error {
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception FieldAlreadyIndexedException = new RuntimeException("Field already indexed!");
+    public static final Exception TableBusyException = new RuntimeException("Table has uncommitted changes!");
+    public static final Exception IncludedFieldTooWideException = new RuntimeException("Included field does not fit in index key!");
+    public static final Exception DuplicatedKeyException = new RuntimeException("Duplicated key!");
+    public static final Exception UniqueIndexTypeException = new RuntimeException("Unique index only supports a single int32 or int64 field!");
+    public static final Exception HashIndexException = new RuntimeException("Hash index only supports a single non-unique field!");
+    public static final Exception NotGroupedException = new RuntimeException("Selected field must appear in group by!");
+    public static final Exception AggregateTypeException = new RuntimeException("Sum and avg only support int32 or int64 fields!");
+    public static final Exception OrderByAggregateException = new RuntimeException("Order by is not supported with aggregates!");
+    public static final Exception AmbiguousFieldException = new RuntimeException("Field name is ambiguous!");
+    public static final Exception JoinTypeException = new RuntimeException("Join fields must both be strings or both be integers!");
+    public static final Exception JoinUnsupportedException = new RuntimeException("Join does not support aggregates, group by or order by!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
@@ -0,0 +1,6 @@
+package top.guoziyang.mydb.common;
+
+// 查询结果按块输出，服务端每块发送一个数据包，客户端收到一块就可以先处理
+public interface ResultSink {
+    void write(byte[] chunk) throws Exception;
+}
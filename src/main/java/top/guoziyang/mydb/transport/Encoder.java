@@ -12,7 +12,8 @@ import top.guoziyang.mydb.common.Error;
  * 编解码规则：
  * [Flag][data]
  * 若 flag 为 0，表示发送的是数据，那么 data 即为这份数据本身；
- * 如果 flag 为 1，表示发送的是错误，data 是 Exception.getMessage() 的错误提示信息
+ * 如果 flag 为 1，表示发送的是错误，data 是 Exception.getMessage() 的错误提示信息；
+ * 如果 flag 为 2，表示 data 是结果的一部分，之后还有 flag 为 2 的包，最后以 flag 为 0 或 1 的包结束
  */
 public class Encoder {
 
@@ -24,6 +25,8 @@ public class Encoder {
                 msg = err.getMessage();
             }
             return Bytes.concat(new byte[]{1}, msg.getBytes());
+        } else if(pkg.isPartial()) {
+            return Bytes.concat(new byte[]{2}, pkg.getData());
         } else {
             return Bytes.concat(new byte[]{0}, pkg.getData());
         }
@@ -35,6 +38,8 @@ public class Encoder {
         }
         if(data[0] == 0) {
             return new Package(Arrays.copyOfRange(data, 1, data.length), null);
+        } else if(data[0] == 2) {
+            return Package.partial(Arrays.copyOfRange(data, 1, data.length));
         } else if(data[0] == 1) {
             return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
         } else {
@@ -3,12 +3,20 @@ package top.guoziyang.mydb.transport;
 public class Package {
     byte[] data;
     Exception err;
+    // 结果的一部分，之后还有数据包
+    boolean partial;
 
     public Package(byte[] data, Exception err) {
         this.data = data;
         this.err = err;
     }
 
+    public static Package partial(byte[] data) {
+        Package pkg = new Package(data, null);
+        pkg.partial = true;
+        return pkg;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -16,4 +24,8 @@ public class Package {
     public Exception getErr() {
         return err;
     }
+
+    public boolean isPartial() {
+        return partial;
+    }
 }
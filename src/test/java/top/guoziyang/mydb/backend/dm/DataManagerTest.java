@@ -14,6 +14,7 @@ import org.junit.Test;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -158,4 +159,169 @@ public class DataManagerTest {
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testFreeAndCompact() throws Exception {
+        String path = "/tmp/TestDMCompact";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 16; i ++) {
+            byte[] data = RandomUtil.randomBytes(500);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        int pages = ((DataManagerImpl)dm0).pc.getPageNumber();
+
+        // 回收一半数据后，新数据通过整理页面复用原来的空间
+        for(int i = 0; i < 16; i += 2) {
+            dm0.free(uids.get(i));
+            assert dm0.read(uids.get(i)) == null;
+        }
+        for(int i = 0; i < 16; i += 2) {
+            byte[] data = RandomUtil.randomBytes(500);
+            uids.set(i, dm0.insert(0, data));
+            datas.set(i, data);
+        }
+        assert ((DataManagerImpl)dm0).pc.getPageNumber() == pages;
+        assertData(dm0, uids, datas);
+
+        // 不关闭直接重新打开，模拟崩溃，整理页面的日志可以正确恢复
+        dm0 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        assertData(dm0, uids, datas);
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testFreeWholePage() throws Exception {
+        String path = "/tmp/TestDMWholePage";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        long a = dm0.insert(0, RandomUtil.randomBytes(500));
+        long b = dm0.insert(0, RandomUtil.randomBytes(500));
+        int pages = ((DataManagerImpl)dm0).pc.getPageNumber();
+        dm0.free(a);
+        dm0.free(b);
+        // 两个槽都被回收，整理时截掉空槽后可以放下占满整页的数据
+        byte[] data = RandomUtil.randomBytes(PageX.MAX_FREE_SPACE - 3);
+        long uid = dm0.insert(0, data);
+        assert ((DataManagerImpl)dm0).pc.getPageNumber() == pages;
+        assertData(dm0, Arrays.asList(uid), Arrays.asList(data));
+
+        dm0.close();
+        tm0.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testDeferredSlotReuse() throws Exception {
+        String path = "/tmp/TestDMSlotReuse";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+        boolean[] finished = {false};
+        dm0.setReaders(new Readers() {
+            @Override
+            public long mark() {
+                return 1;
+            }
+
+            @Override
+            public boolean finished(long mark) {
+                return finished[0];
+            }
+        });
+
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 16; i ++) {
+            uids.add(dm0.insert(0, RandomUtil.randomBytes(500)));
+        }
+        List<Long> freed = new ArrayList<>();
+        for(int i = 0; i < 16; i += 2) {
+            dm0.free(uids.get(i));
+            freed.add(uids.get(i));
+        }
+        // 读者还可能持有回收的 UID，页面整理后空间被复用，但槽号不会
+        List<Long> inserted = new ArrayList<>();
+        for(int i = 0; i < 8; i ++) {
+            long uid = dm0.insert(0, RandomUtil.randomBytes(500));
+            assert !freed.contains(uid);
+            inserted.add(uid);
+        }
+
+        // 读者都结束之后空槽可以复用
+        finished[0] = true;
+        for (long uid : inserted) {
+            dm0.free(uid);
+        }
+        boolean reused = false;
+        for(int i = 0; i < 8; i ++) {
+            reused |= freed.contains(dm0.insert(0, RandomUtil.randomBytes(500)));
+        }
+        assert reused;
+
+        dm0.close();
+        tm0.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        String path = "/tmp/TestDMOverflow";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        byte[] data = RandomUtil.randomBytes(Overflow.CHUNK_SIZE*3 + 100);
+        long uid = Overflow.insert(dm0, 0, data);
+        long small = Overflow.insert(dm0, 0, "small".getBytes());
+        assert Arrays.equals(Overflow.read(dm0, uid), data);
+        assert Arrays.equals(Overflow.read(dm0, small), "small".getBytes());
+
+        dm0.close();
+        tm0.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testInsertFullChunk() throws Exception {
+        String path = "/tmp/TestDMFullChunk";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        // 页面的空闲空间仍在最高的区间，但放不下整块，不能被反复选中，数据插入新页
+        long uid = dm0.insert(0, new byte[10]);
+        byte[] chunk = RandomUtil.randomBytes(Overflow.CHUNK_SIZE);
+        long full = Overflow.insert(dm0, 0, chunk);
+        assert Arrays.equals(Overflow.read(dm0, full), chunk);
+        assert dm0.read(uid) != null;
+
+        dm0.close();
+        tm0.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    private void assertData(DataManager dm, List<Long> uids, List<byte[]> datas) throws Exception {
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm.read(uids.get(i));
+            assert di != null;
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+    }
 }
@@ -51,6 +51,39 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public long insert(long xid, byte[] data, Segment seg) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public Segment createSegment() throws Exception {
+        return null;
+    }
+
+    @Override
+    public Segment loadSegment(long uid) throws Exception {
+        return null;
+    }
+
+    @Override
+    public long[] scanPage(int pgno) throws Exception {
+        return new long[0];
+    }
+
+    @Override
+    public void free(long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setReaders(Readers readers) {}
+
     @Override
     public void close() {}
     
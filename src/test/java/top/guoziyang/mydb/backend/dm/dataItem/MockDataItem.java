@@ -71,6 +71,17 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    // 不支持乐观读，调用方总是退回到加读锁
+    @Override
+    public long tryOptimisticRead() {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return false;
+    }
+
     @Override
     public Page page() {
         return null;
@@ -1,7 +1,12 @@
 package top.guoziyang.mydb.backend.im;
 
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
@@ -14,7 +19,7 @@ public class BPlusTreeTest {
     @Test
     public void testTreeSingle() throws Exception {
         TransactionManager tm = new MockTransactionManager();
-        DataManager dm = DataManager.create("./tmp/TestTreeSingle", PageCache.PAGE_SIZE*10, tm);
+        DataManager dm = DataManager.create("/tmp/TestTreeSingle", PageCache.PAGE_SIZE*10, tm);
 
         long root = BPlusTree.create(dm);
         BPlusTree tree = BPlusTree.load(root, dm);
@@ -33,4 +38,256 @@ public class BPlusTreeTest {
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testDuplicateAndDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDuplicate", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 重复的 key 会跨越多个叶子节点
+        int lim = 1000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i % 10, i+1);
+        }
+        for(int k = 0; k < 10; k ++) {
+            assert tree.search(k).size() == lim/10;
+        }
+        assert tree.searchRange(3, 5).size() == lim/10*3;
+
+        for(int i = 0; i < lim; i += 2) {
+            assert tree.delete(i % 10, i+1);
+        }
+        assert !tree.delete(0, 1);
+        for(int k = 0; k < 10; k ++) {
+            List<Long> uids = tree.search(k);
+            assert uids.size() == (k % 2 == 0 ? 0 : lim/10);
+        }
+
+        dm.close();
+        assert new File("/tmp/TestTreeDuplicate.db").delete();
+        assert new File("/tmp/TestTreeDuplicate.log").delete();
+    }
+
+    @Test
+    public void testConcurrentSearch() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 读者在写者不断分裂节点的同时查找已经插入的 key，不能漏掉
+        int lim = 5000, noReaders = 4;
+        AtomicInteger inserted = new AtomicInteger(0);
+        AtomicReference<Throwable> err = new AtomicReference<>();
+        CountDownLatch cdl = new CountDownLatch(noReaders);
+        for(int i = 0; i < noReaders; i ++) {
+            new Thread(() -> {
+                try {
+                    while(inserted.get() < lim) {
+                        int n = inserted.get();
+                        if(n == 0) continue;
+                        int k = (int)(Math.random() * n);
+                        List<Long> uids = tree.search(k);
+                        if(uids.size() != 1 || uids.get(0) != k) {
+                            throw new AssertionError("key " + k + " not found");
+                        }
+                    }
+                } catch(Throwable e) {
+                    err.compareAndSet(null, e);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+            inserted.incrementAndGet();
+        }
+        cdl.await();
+        assert err.get() == null : err.get();
+
+        dm.close();
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+    }
+
+    @Test
+    public void testCursorAcrossMerge() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeCursor", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个 key 重复 50 次，跨越多个叶子
+        int lim = 10000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i/50, i+1);
+        }
+        IndexCursor cursor = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        Set<Long> seen = new HashSet<>();
+        long lastKey = Long.MIN_VALUE;
+        for(int i = 0; i < 3025; i ++) {
+            assert seen.add(cursor.next());
+            lastKey = cursor.key();
+        }
+        assert lastKey == 60;
+        // 游标之后的叶子下溢并被合并释放，游标需要从 key 60 重新查找
+        for(int i = 3100; i < lim; i ++) {
+            if(i % 10 != 0) {
+                assert tree.delete(i/50, i+1);
+            }
+        }
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            assert cursor.key() >= lastKey;
+            lastKey = cursor.key();
+            assert seen.add(uid);
+        }
+        assert seen.size() == 3100 + (lim-3100)/10;
+
+        dm.close();
+        assert new File("/tmp/TestTreeCursor.db").delete();
+        assert new File("/tmp/TestTreeCursor.log").delete();
+    }
+
+    @Test
+    public void testDeleteAndMerge() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeMerge", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 10000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i+1);
+        }
+        // 只保留每 100 个中的一个，下溢的节点被合并
+        for(int i = 0; i < lim; i ++) {
+            if(i % 100 != 0) {
+                assert tree.delete(i, i+1);
+            }
+        }
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == (i % 100 == 0 ? 1 : 0);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim/100;
+
+        // 全部删除后，根节点退化为叶子
+        for(int i = 0; i < lim; i += 100) {
+            assert tree.delete(i, i+1);
+        }
+        Node rootNode = Node.loadNode(tree, tree.rootUid);
+        assert rootNode.decode().isLeaf();
+        rootNode.release();
+
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i+1);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim;
+
+        dm.close();
+        assert new File("/tmp/TestTreeMerge.db").delete();
+        assert new File("/tmp/TestTreeMerge.log").delete();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeBulk", PageCache.PAGE_SIZE*10, tm);
+
+        // 每个 key 重复两次
+        int lim = 10000;
+        long[] keys = new long[lim];
+        long[] uids = new long[lim];
+        for(int i = 0; i < lim; i ++) {
+            keys[i] = i / 2;
+            uids[i] = i+1;
+        }
+        long root = BPlusTree.bulkLoad(dm, keys, uids, 0.8);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        for(int k = 0; k < lim/2; k ++) {
+            List<Long> res = tree.search(k);
+            assert res.size() == 2;
+            assert res.contains((long)k*2+1) && res.contains((long)k*2+2);
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim;
+
+        // 批量建成的树可以继续插入和删除
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i / 2, lim+i+1);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.delete(i / 2, i+1);
+        }
+        for(int k = 0; k < lim/2; k ++) {
+            List<Long> res = tree.search(k);
+            assert res.size() == 2;
+            assert res.contains((long)lim+k*2+1) && res.contains((long)lim+k*2+2);
+        }
+
+        dm.close();
+        assert new File("/tmp/TestTreeBulk.db").delete();
+        assert new File("/tmp/TestTreeBulk.log").delete();
+    }
+
+    @Test
+    public void testEstimate() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeEstimate", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 20000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i % 5000, i+1);
+        }
+        // 范围只跨越少量叶子时是精确值，较大的范围误差在两倍以内
+        assert tree.estimate(10, 10) == 4;
+        assert tree.estimate(4000, 4000) == 4;
+        assert tree.estimate(10, 9) == 0;
+        long[][] ranges = {{0, 4999}, {100, 1099}, {2000, 2099}, {4000, 4000}, {Long.MIN_VALUE, Long.MAX_VALUE}};
+        for (long[] range : ranges) {
+            long actual = tree.searchRange(range[0], range[1]).size();
+            long est = tree.estimate(range[0], range[1]);
+            assert est >= actual / 2 && est <= actual * 2;
+        }
+
+        assert new File("/tmp/TestTreeEstimate.db").delete();
+        assert new File("/tmp/TestTreeEstimate.log").delete();
+    }
+
+    @Test
+    public void testLastLive() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeLast", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        assert tree.lastLive(uid -> true) == null;
+
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i * 2, i+1);
+        }
+        long[] last = tree.lastLive(uid -> true);
+        assert last[0] == (lim-1) * 2 && last[1] == lim;
+        // 最后几个叶子中的项都不满足时，向前查找到前面的叶子
+        last = tree.lastLive(uid -> uid <= 3000);
+        assert last[0] == 2999 * 2 && last[1] == 3000;
+        last = tree.lastLive(uid -> uid == 1);
+        assert last[0] == 0;
+        assert tree.lastLive(uid -> false) == null;
+
+        assert new File("/tmp/TestTreeLast.db").delete();
+        assert new File("/tmp/TestTreeLast.log").delete();
+    }
 }
@@ -0,0 +1,90 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+
+public class HashIndexTest {
+    private static int count(IndexCursor cursor) throws Exception {
+        int n = 0;
+        while(cursor.hasNext()) {
+            cursor.next();
+            n ++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testHashSingle() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashSingle", PageCache.PAGE_SIZE*10, tm);
+
+        long boot = HashIndex.create(dm);
+        HashIndex hash = HashIndex.load(boot, dm);
+
+        // 目录会超过一个段
+        int lim = 30000;
+        for(int i = 0; i < lim; i ++) {
+            hash.insert(i, i+1);
+        }
+        assert hash.dir.depth > HashIndex.SEGMENT_BITS;
+
+        // 重新加载，目录从磁盘读入
+        hash = HashIndex.load(boot, dm);
+        for(int i = 0; i < lim; i ++) {
+            IndexCursor cursor = hash.cursor(i, i);
+            assert cursor.hasNext();
+            assert cursor.next() == i+1;
+            assert cursor.key() == i;
+            assert !cursor.hasNext();
+        }
+        assert !hash.cursor(lim, lim).hasNext();
+
+        Set<Long> uids = new HashSet<>();
+        IndexCursor cursor = hash.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while(cursor.hasNext()) {
+            assert uids.add(cursor.next());
+        }
+        assert uids.size() == lim;
+        assert count(hash.cursor(100, 199)) == 100;
+
+        assert new File("/tmp/TestHashSingle.db").delete();
+        assert new File("/tmp/TestHashSingle.log").delete();
+    }
+
+    @Test
+    public void testDuplicateAndDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestHashDuplicate", PageCache.PAGE_SIZE*10, tm);
+
+        long boot = HashIndex.create(dm);
+        HashIndex hash = HashIndex.load(boot, dm);
+
+        // 同一个 key 超过桶的容量，区域内追加溢出桶
+        int lim = 1000;
+        for(int i = 0; i < lim; i ++) {
+            hash.insert(i % 4, i+1);
+        }
+        for(int k = 0; k < 4; k ++) {
+            assert count(hash.cursor(k, k)) == lim/4;
+        }
+
+        for(int i = 0; i < lim; i += 2) {
+            assert hash.delete(i % 4, i+1);
+        }
+        assert !hash.delete(0, 1);
+        assert count(hash.cursor(0, 0)) == 0;
+        assert count(hash.cursor(1, 1)) == lim/4;
+        assert count(hash.cursor(Long.MIN_VALUE, Long.MAX_VALUE)) == lim/2;
+
+        assert new File("/tmp/TestHashDuplicate.db").delete();
+        assert new File("/tmp/TestHashDuplicate.log").delete();
+    }
+}
@@ -6,9 +6,12 @@ import com.google.gson.Gson;
 
 import org.junit.Test;
 
+import top.guoziyang.mydb.backend.parser.statement.Analyze;
 import top.guoziyang.mydb.backend.parser.statement.Begin;
 import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.CreateIndex;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
+import top.guoziyang.mydb.backend.parser.statement.Explain;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
 import top.guoziyang.mydb.backend.parser.statement.Select;
 import top.guoziyang.mydb.backend.parser.statement.Show;
@@ -29,6 +32,76 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateUnique() throws Exception {
+        String stat = "create table student id int32, name string (index name) (unique id)";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(new String[]{"name"}, create.index);
+        assert Arrays.equals(new String[]{"id"}, create.unique);
+
+        stat = "create unique index on student (id)";
+        CreateIndex createIndex = (CreateIndex)Parser.Parse(stat.getBytes());
+        assert createIndex.unique;
+        assert Arrays.equals(new String[]{"id"}, createIndex.fieldName);
+    }
+
+    @Test
+    public void testCreateNoIndex() throws Exception {
+        String stat = "create table logs seq int32, level string";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(new String[]{"seq", "level"}, create.fieldName);
+        assert create.index.length == 0;
+        assert create.unique.length == 0;
+    }
+
+    @Test
+    public void testCreateHash() throws Exception {
+        String stat = "create table student id int64, uid int64, name string (index name) (hash uid) (unique id)";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(new String[]{"uid"}, create.hash);
+        assert Arrays.equals(new String[]{"id"}, create.unique);
+
+        stat = "create hash index on student (uid)";
+        CreateIndex createIndex = (CreateIndex)Parser.Parse(stat.getBytes());
+        assert createIndex.hash && !createIndex.unique;
+        assert Arrays.equals(new String[]{"uid"}, createIndex.fieldName);
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        String stat = "create index on student (name)";
+        Object res = Parser.Parse(stat.getBytes());
+        CreateIndex create = (CreateIndex)res;
+        assert "student".equals(create.tableName);
+        assert Arrays.equals(new String[]{"name"}, create.fieldName);
+        assert create.included.length == 0;
+
+        stat = "create index on student (id, uid) include (name)";
+        res = Parser.Parse(stat.getBytes());
+        create = (CreateIndex)res;
+        assert Arrays.equals(new String[]{"id", "uid"}, create.fieldName);
+        assert Arrays.equals(new String[]{"name"}, create.included);
+    }
+
+    @Test
+    public void testExplain() throws Exception {
+        String stat = "explain select * from student where id > 1 or name = x";
+        Explain explain = (Explain)Parser.Parse(stat.getBytes());
+        assert "student".equals(explain.tableName);
+        Select select = (Select)explain.statement;
+        assert "or".equals(select.where.logicOp);
+
+        stat = "explain delete from student where id = 1";
+        explain = (Explain)Parser.Parse(stat.getBytes());
+        assert explain.statement instanceof Delete;
+    }
+
+    @Test
+    public void testAnalyze() throws Exception {
+        Analyze analyze = (Analyze)Parser.Parse("analyze student".getBytes());
+        assert "student".equals(analyze.tableName);
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
@@ -60,6 +133,94 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCount() throws Exception {
+        Select select = (Select)Parser.Parse("select count(*) from student where id > 1".getBytes());
+        assert "count".equals(select.aggregates[0]);
+        assert "*".equals(select.fields[0]);
+        assert "id".equals(select.where.singleExp1.field);
+
+        // count 后面不是 ( 时是字段名
+        select = (Select)Parser.Parse("select count, id from student".getBytes());
+        assert select.aggregates == null;
+        assert "count".equals(select.fields[0]);
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        Select select = (Select)Parser.Parse("select dept, sum(age), avg(age) from student where age > 18 group by dept".getBytes());
+        assert select.aggregates[0] == null && "dept".equals(select.fields[0]);
+        assert "sum".equals(select.aggregates[1]) && "age".equals(select.fields[1]);
+        assert "avg".equals(select.aggregates[2]);
+        assert "age".equals(select.where.singleExp1.field);
+        assert "dept".equals(select.groupBy[0]);
+
+        select = (Select)Parser.Parse("select a, b, max(c) from t group by a, b".getBytes());
+        assert select.where == null;
+        assert select.groupBy.length == 2;
+
+        try {
+            Parser.Parse("select sum(*) from t".getBytes());
+            assert false;
+        } catch(RuntimeException e) {
+        }
+        try {
+            Parser.Parse("delete from t where a = 1 group by a".getBytes());
+            assert false;
+        } catch(RuntimeException e) {
+        }
+    }
+
+    @Test
+    public void testOrderBy() throws Exception {
+        Select select = (Select)Parser.Parse("select * from student where age > 18 order by dept desc, age limit 10".getBytes());
+        assert "age".equals(select.where.singleExp1.field);
+        assert select.orderBy.length == 2 && "dept".equals(select.orderBy[0]) && "age".equals(select.orderBy[1]);
+        assert select.desc[0] && !select.desc[1];
+        assert select.limit == 10;
+
+        select = (Select)Parser.Parse("select name from student order by name asc".getBytes());
+        assert !select.desc[0] && select.limit == -1;
+        select = (Select)Parser.Parse("select name from student limit 0".getBytes());
+        assert select.orderBy == null && select.limit == 0;
+
+        try {
+            Parser.Parse("select name from student order name".getBytes());
+            assert false;
+        } catch(RuntimeException e) {
+        }
+        try {
+            Parser.Parse("select name from student limit abc".getBytes());
+            assert false;
+        } catch(RuntimeException e) {
+        }
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        Select select = (Select)Parser.Parse("select student.name, class.title from student join class on student.cid = class.id where class.id > 3 limit 5".getBytes());
+        assert "student".equals(select.tableName);
+        assert "student.name".equals(select.fields[0]) && "class.title".equals(select.fields[1]);
+        assert "class".equals(select.join.tableName);
+        assert "student.cid".equals(select.join.leftField) && "class.id".equals(select.join.rightField);
+        assert "class.id".equals(select.where.singleExp1.field);
+        assert select.limit == 5;
+
+        select = (Select)Parser.Parse("select * from a inner join b on x = y".getBytes());
+        assert "b".equals(select.join.tableName) && select.where == null;
+
+        try {
+            Parser.Parse("select * from a join b x = y".getBytes());
+            assert false;
+        } catch(RuntimeException e) {
+        }
+        try {
+            Parser.Parse("select * from a inner b on x = y".getBytes());
+            assert false;
+        } catch(RuntimeException e) {
+        }
+    }
+
     @Test
     public void testInsert() throws Exception {
         String stat = "insert into student values 5 \"Guo Ziyang\" 22";
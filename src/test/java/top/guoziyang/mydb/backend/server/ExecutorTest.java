@@ -1,10 +1,19 @@
 package top.guoziyang.mydb.backend.server;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -17,6 +26,47 @@ public class ExecutorTest {
     byte[] CREATE_TABLE = "create table test_table id int32 (index id)".getBytes();
     byte[] INSERT = "insert into test_table values 2333".getBytes();
 
+    // 各个功能测试共用的数据库，每个测试前重新创建
+    String fixturePath = "/tmp/mydbFixture";
+    TransactionManager tm;
+    DataManager dm;
+    VersionManager vm;
+    TableManager tbm;
+    Executor exe;
+
+    @Before
+    public void setUp() throws Exception {
+        deleteFiles();
+        tm = TransactionManager.create(fixturePath);
+        dm = DataManager.create(fixturePath, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.create(fixturePath, vm, dm);
+        exe = new Executor(tbm);
+    }
+
+    // 关闭并重新打开共用的数据库
+    private void reopen() throws Exception {
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(fixturePath);
+        dm = DataManager.open(fixturePath, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(fixturePath, vm, dm);
+        exe = new Executor(tbm);
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        new File(fixturePath + ".db").delete();
+        new File(fixturePath + ".bt").delete();
+        new File(fixturePath + ".log").delete();
+        new File(fixturePath + ".xid").delete();
+    }
+
     private Executor testCreate() throws Exception {
         TransactionManager tm = TransactionManager.create(path);
         DataManager dm = DataManager.create(path, mem, tm);
@@ -75,4 +125,499 @@ public class ExecutorTest {
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
     }
+
+    private int countRows(Executor exe, String sql) throws Exception {
+        String res = new String(exe.execute(sql.getBytes()));
+        return res.isEmpty() ? 0 : res.split("\n").length;
+    }
+
+    @Test
+    public void testStringIndexRange() throws Exception {
+        exe.execute("create table users name string, age int32 (index name age)".getBytes());
+        // 前 8 个字节相同的字符串共用一个 key
+        String[] names = {"alice", "bob", "carol", "carolina", "dave", "prefix_one", "prefix_two", "zed"};
+        for (int i = 0; i < names.length; i++) {
+            exe.execute(("insert into users values " + names[i] + " '" + (i - 4) + "'").getBytes());
+        }
+
+        assertEquals(2, countRows(exe, "select * from users where name < carol"));
+        assertEquals(5, countRows(exe, "select * from users where name > carol"));
+        assertEquals(1, countRows(exe, "select * from users where name = prefix_two"));
+        assertEquals(2, countRows(exe, "select * from users where name like 'carol%'"));
+        assertEquals(2, countRows(exe, "select * from users where name like 'prefix_%'"));
+        assertEquals(1, countRows(exe, "select * from users where name like '%e_'"));
+        assertEquals(4, countRows(exe, "select * from users where age < 0"));
+        assertEquals(8, countRows(exe, "select * from users where age > '-5' or age < 3"));
+        assertEquals(1, countRows(exe, "select * from users where name > b and age < '-2'"));
+        assertEquals(8, countRows(exe, "select * from users"));
+
+        assertEquals("update 1", new String(exe.execute("update users set age = 100 where name = prefix_one".getBytes())));
+        assertEquals("delete 1", new String(exe.execute("delete from users where name like 'carol_%'".getBytes())));
+        assertEquals(1, countRows(exe, "select * from users where name like 'carol%'"));
+    }
+
+    @Test
+    public void testCompositeIndex() throws Exception {
+        exe.execute("create table orders id int32, cust int32, amount int64, note string (index id)".getBytes());
+        for (int i = 0; i < 20; i++) {
+            exe.execute(("insert into orders values " + i + " " + (i % 4) + " " + (i * 10) + " n" + i).getBytes());
+        }
+        exe.execute("create index on orders (cust, note)".getBytes());
+        exe.execute("create index on orders (cust) include (id)".getBytes());
+
+        // id 和 cust 都能从 (cust) include (id) 的 key 中还原
+        assertEquals("[1]\n[5]\n[9]\n[13]\n[17]\n", new String(exe.execute("select id from orders where cust = 1".getBytes())));
+        assertEquals(4, countRows(exe, "select * from orders where cust = 1 and note > n1"));
+        assertEquals(10, countRows(exe, "select id, cust from orders where cust < 2"));
+
+        assertEquals("delete 2", new String(exe.execute("delete from orders where cust = 1 and id < 9".getBytes())));
+        assertEquals("[9]\n[13]\n[17]\n", new String(exe.execute("select id from orders where cust = 1".getBytes())));
+        assertEquals("update 1", new String(exe.execute("update orders set cust = 1 where id = 2".getBytes())));
+        assertEquals("[2, 1]\n[9, 1]\n[13, 1]\n[17, 1]\n", new String(exe.execute("select id, cust from orders where cust = 1".getBytes())));
+
+        try {
+            exe.execute("create index on orders (amount) include (id)".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Included field does not fit in index key!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUniqueIndex() throws Exception {
+        exe.execute("create table users id int64, age int32, name string (index age) (unique id)".getBytes());
+        for (int i = 0; i < 10; i++) {
+            exe.execute(("insert into users values " + i + " " + (i % 3) + " u" + i).getBytes());
+        }
+        try {
+            exe.execute("insert into users values 3 0 dup".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Duplicated key!", e.getMessage());
+        }
+        assertEquals("[3, 0, u3]\n", new String(exe.execute("select * from users where id = 3".getBytes())));
+        assertEquals(4, countRows(exe, "select * from users where age = 0"));
+
+        // 同一事务中删除后可以重新插入相同的 key
+        exe.execute("begin".getBytes());
+        exe.execute("delete from users where id = 3".getBytes());
+        exe.execute("insert into users values 3 1 again".getBytes());
+        assertEquals("[3, 1, again]\n", new String(exe.execute("select * from users where id = 3".getBytes())));
+        exe.execute("commit".getBytes());
+        assertEquals("[3, 1, again]\n", new String(exe.execute("select * from users where id = 3".getBytes())));
+        assertEquals("update 1", new String(exe.execute("update users set id = 42 where id = 3".getBytes())));
+        exe.execute("insert into users values 3 2 third".getBytes());
+        assertEquals("[3, 2, third]\n", new String(exe.execute("select * from users where id = 3".getBytes())));
+        assertEquals("", new String(exe.execute("select * from users where id = 100".getBytes())));
+
+        try {
+            exe.execute("create unique index on users (name)".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Unique index only supports a single int32 or int64 field!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUniqueUpdateConflict() throws Exception {
+        exe.execute("create table u id int64, v int32 (unique id)".getBytes());
+        exe.execute("insert into u values 1 10".getBytes());
+        exe.execute("insert into u values 2 20".getBytes());
+        // 修改唯一索引列违反唯一性时，旧记录不能被删除
+        exe.execute("begin".getBytes());
+        try {
+            exe.execute("update u set id = 2 where id = 1".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Duplicated key!", e.getMessage());
+        }
+        exe.execute("commit".getBytes());
+        assertEquals(Arrays.asList("[1, 10]", "[2, 20]"), sorted(new String(exe.execute("select * from u".getBytes()))));
+        assertEquals("[1, 10]\n", new String(exe.execute("select * from u where id = 1".getBytes())));
+
+        // 多条记录的唯一列被改为同一个值，第二条才冲突，第一条也不能被修改
+        exe.execute("insert into u values 3 30".getBytes());
+        exe.execute("begin".getBytes());
+        try {
+            exe.execute("update u set id = 9 where v > 15".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Duplicated key!", e.getMessage());
+        }
+        exe.execute("commit".getBytes());
+        assertEquals(Arrays.asList("[1, 10]", "[2, 20]", "[3, 30]"), sorted(new String(exe.execute("select * from u".getBytes()))));
+        assertEquals("", new String(exe.execute("select * from u where id = 9".getBytes())));
+    }
+
+    @Test
+    public void testHashIndex() throws Exception {
+        exe.execute("create table events id int64, kind int32, tag string (index kind) (hash id)".getBytes());
+        for (int i = 0; i < 300; i++) {
+            exe.execute(("insert into events values " + i + " " + (i % 5) + " t" + i).getBytes());
+        }
+        assertEquals("[42, 2, t42]\n", new String(exe.execute("select * from events where id = 42".getBytes())));
+        assertEquals(2, countRows(exe, "select * from events where id = 7 or id = 9"));
+        assertEquals(10, countRows(exe, "select * from events where id < 10"));
+        assertEquals(300, countRows(exe, "select * from events"));
+
+        assertEquals("delete 1", new String(exe.execute("delete from events where id = 42".getBytes())));
+        assertEquals("", new String(exe.execute("select * from events where id = 42".getBytes())));
+        assertEquals("update 1", new String(exe.execute("update events set id = 1000 where id = 43".getBytes())));
+        assertEquals("[1000, 3, t43]\n", new String(exe.execute("select * from events where id = 1000".getBytes())));
+
+        exe.execute("create hash index on events (tag)".getBytes());
+        assertEquals("[7, 2, t7]\n", new String(exe.execute("select * from events where tag = t7".getBytes())));
+        try {
+            exe.execute("create hash index on events (id, kind)".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Hash index only supports a single non-unique field!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testHeapScan() throws Exception {
+        exe.execute("create table logs seq int32, level string".getBytes());
+        exe.execute("create table other seq int32, level string (index seq)".getBytes());
+        // 两张表交替插入，扫描一张表时不能读到另一张表的记录
+        for (int i = 0; i < 600; i++) {
+            exe.execute(("insert into logs values " + i + " " + (i % 3 == 0 ? "warn" : "info")).getBytes());
+            exe.execute(("insert into other values " + i + " warn").getBytes());
+        }
+        assertEquals(600, countRows(exe, "select * from logs"));
+        assertEquals(200, countRows(exe, "select * from logs where level = warn"));
+        assertEquals(10, countRows(exe, "select * from logs where seq < 10"));
+        assertEquals(600, countRows(exe, "select * from other where level = warn"));
+
+        assertEquals("update 200", new String(exe.execute("update logs set level = error where level = warn".getBytes())));
+        assertEquals("delete 400", new String(exe.execute("delete from logs where level = info".getBytes())));
+        assertEquals(200, countRows(exe, "select * from logs"));
+        assertEquals("[3, error]\n", new String(exe.execute("select * from logs where seq = 3".getBytes())));
+
+        exe.execute("create index on logs (seq)".getBytes());
+        assertEquals(200, countRows(exe, "select * from logs where seq > 0 or seq = 0"));
+    }
+
+    @Test
+    public void testPlanner() throws Exception {
+        exe.execute("create table t a int32, b int32, c int32 (index a b)".getBytes());
+        for (int i = 0; i < 2000; i++) {
+            exe.execute(("insert into t values " + i + " " + (i % 100) + " " + i).getBytes());
+        }
+
+        assert explain(exe, "select * from t where a = 5").startsWith("IndexScan t.a");
+        assert explain(exe, "select * from t where b = 7 and c > 100").startsWith("IndexScan t.b");
+        // 条件覆盖大部分记录，或者字段上没有索引时扫描段
+        assert explain(exe, "select * from t where a > 0").startsWith("HeapScan t");
+        assert explain(exe, "select * from t where c = 5").startsWith("HeapScan t");
+        assert explain(exe, "delete from t where a = 5 or c = 5").startsWith("HeapScan t");
+
+        assert explain(exe, "select * from t where a < 200 and b < 10").startsWith("Intersect");
+        assertEquals(20, countRows(exe, "select * from t where a < 200 and b < 10"));
+        assert explain(exe, "update t set c = 5000 where a = 5 or b = 7").startsWith("Union");
+        assertEquals(21, countRows(exe, "select * from t where a = 5 or b = 7"));
+        assertEquals("update 21", new String(exe.execute("update t set c = 5000 where a = 5 or b = 7".getBytes())));
+        assertEquals(21, countRows(exe, "select * from t where c = 5000"));
+    }
+
+    @Test
+    public void testAnalyze() throws Exception {
+        exe.execute("create table t a int32, b int32 (index a)".getBytes());
+        for (int i = 0; i < 3000; i++) {
+            exe.execute(("insert into t values " + i + " " + (i % 10)).getBytes());
+        }
+
+        // 页面数不超过抽样的页面数，统计信息是精确的
+        assertEquals("t: rows=3000, a distinct=3000, b distinct=10", new String(exe.execute("analyze t".getBytes())));
+        assert explain(exe, "select * from t where b = 3").startsWith("HeapScan t (rows=300, cost=750.00)");
+        assert explain(exe, "select * from t where b < 5 or b = 8").startsWith("HeapScan t (rows=1");
+
+        // 两次 ANALYZE 之间由插入和删除的计数修正记录数
+        for (int i = 0; i < 1000; i++) {
+            exe.execute(("insert into t values " + (3000 + i) + " " + (i % 10)).getBytes());
+        }
+        assertEquals("delete 400", new String(exe.execute("delete from t where b = 1".getBytes())));
+        assert explain(exe, "select * from t where b = 3").startsWith("HeapScan t (rows=360, cost=900.00)");
+    }
+
+    @Test
+    public void testRowCodec() throws Exception {
+        // string 夹在定长字段之间，之后的字段偏移由前一个 string 的长度决定
+        exe.execute("create table t a int32, s string, b int64, u string, c int32 (index c)".getBytes());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append((char)('a' + i % 26));
+        }
+        String big = sb.toString();
+        for (int i = 0; i < 100; i++) {
+            String s = i == 7 ? big : "s" + i;
+            exe.execute(("insert into t values " + i + " " + s + " " + (i * 10000000000L) + " u" + i + " " + (1000 - i)).getBytes());
+        }
+        assertEquals("[993, 70000000000]\n", new String(exe.execute("select c, b from t where a = 7".getBytes())));
+        assertEquals("[" + big + ", u7]\n", new String(exe.execute("select s, u from t where c = 993".getBytes())));
+        assertEquals("[u8, 8, s8]\n", new String(exe.execute("select u, a, s from t where u = u8".getBytes())));
+
+        // 替换中间的 string，溢出页中的值和之后的字段原样保留
+        assertEquals("update 1", new String(exe.execute("update t set u = longer7 where a = 7".getBytes())));
+        assertEquals("update 1", new String(exe.execute("update t set c = 700 where a = 7".getBytes())));
+        assertEquals("[7, " + big + ", 70000000000, longer7, 700]\n", new String(exe.execute("select * from t where c = 700".getBytes())));
+        assertEquals(0, countRows(exe, "select * from t where c = 993"));
+    }
+
+    @Test
+    public void testToastReuse() throws Exception {
+        exe.execute("create table t a int32, s string, u string (index a)".getBytes());
+        Random random = new Random(1);
+        long size = 0;
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 20; i++) {
+                exe.execute(("insert into t values " + i + " " + randomString(random, 20000) + " u" + i).getBytes());
+            }
+            // 原地更新另一列和修改索引列后，新版本与旧版本共用或拷贝溢出数据
+            exe.execute("update t set u = v where a < 10".getBytes());
+            exe.execute("update t set a = 100 where a = 3".getBytes());
+            // 回滚的事务写入的溢出数据，包括同一事务中被覆盖的版本引用的
+            exe.execute("begin".getBytes());
+            exe.execute(("insert into t values 99 " + randomString(random, 20000) + " u99").getBytes());
+            exe.execute(("update t set s = " + randomString(random, 20000) + " where a = 99").getBytes());
+            exe.execute("abort".getBytes());
+            assertEquals(20, countRows(exe, "select a from t"));
+            if (round == 0) {
+                size = new File(fixturePath + ".db").length();
+            }
+            exe.execute("delete from t where a < 1000".getBytes());
+            vm.vacuum();
+        }
+        // 回收的溢出页被之后的插入重新使用，文件不再增长
+        assertEquals(size, new File(fixturePath + ".db").length());
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char)('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        exe.execute("create table t a int32, b int32, s string (index a s)".getBytes());
+        for (int i = 0; i < 500; i++) {
+            exe.execute(("insert into t values " + i + " " + (i % 5) + " s" + i).getBytes());
+        }
+        exe.execute("create index on t (b) include (a)".getBytes());
+        assertEquals("delete 10", new String(exe.execute("delete from t where a < 10".getBytes())));
+
+        assertEquals("[490]\n", new String(exe.execute("select count(*) from t".getBytes())));
+        assertEquals("[90]\n", new String(exe.execute("select count(*) from t where a < 100".getBytes())));
+        assertEquals("[98]\n", new String(exe.execute("select count(*) from t where b = 3".getBytes())));
+        assertEquals("[1]\n", new String(exe.execute("select count(*) from t where s = s42".getBytes())));
+        assertEquals("[0]\n", new String(exe.execute("select count(*) from t where s = s4".getBytes())));
+
+        assert explain(exe, "select count(*) from t where a < 100").startsWith("CountVisible t\n  IndexScan t.a");
+        assert explain(exe, "select count(*) from t where b = 3").startsWith("Count t\n  CoveringIndexScan t(Index b");
+        assert explain(exe, "select count(*) from t where s = s42").startsWith("Count t\n  IndexScan t.s");
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        exe.execute("create table sales id int32, region string, amount int64 (index id)".getBytes());
+        String[] regions = {"east", "north", "west"};
+        for (int i = 0; i < 300; i++) {
+            exe.execute(("insert into sales values " + i + " " + regions[i % 3] + " " + i).getBytes());
+        }
+
+        assertEquals("[300, 44850, 0, 299, 149.5]\n",
+            new String(exe.execute("select count(*), sum(amount), min(amount), max(amount), avg(amount) from sales".getBytes())));
+        String res = new String(exe.execute("select region, count(*), sum(amount), max(region) from sales where id < 30 group by region".getBytes()));
+        List<String> rows = Arrays.asList(res.split("\n"));
+        assertEquals(3, rows.size());
+        assert rows.contains("[east, 10, 135, east]");
+        assert rows.contains("[north, 10, 145, north]");
+        assert rows.contains("[west, 10, 155, west]");
+        assertEquals("[null, 0]\n", new String(exe.execute("select sum(amount), count(amount) from sales where id > 1000".getBytes())));
+        assertEquals("", new String(exe.execute("select region from sales where id > 1000 group by region".getBytes())));
+
+        // min、max 从索引的两端取值，跳过已删除的记录
+        assertEquals("delete 5", new String(exe.execute("delete from sales where id > 294".getBytes())));
+        assertEquals("delete 1", new String(exe.execute("delete from sales where id = 0".getBytes())));
+        assertEquals("[1, 294]\n", new String(exe.execute("select min(id), max(id) from sales".getBytes())));
+        assert explain(exe, "select min(id), max(id) from sales").startsWith("IndexMinMax sales");
+        assert explain(exe, "select region, avg(amount) from sales group by region").startsWith("HashAggregate sales: group by region\n  ");
+
+        try {
+            exe.execute("select region, count(*) from sales".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Selected field must appear in group by!", e.getMessage());
+        }
+        try {
+            exe.execute("select avg(region) from sales".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Sum and avg only support int32 or int64 fields!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOrderBy() throws Exception {
+        exe.execute("create table scores id int32, name string, score int64 (index id)".getBytes());
+        for (int i = 0; i < 200; i++) {
+            exe.execute(("insert into scores values " + (199 - i) + " n" + (i % 10) + " " + (i * 7 % 50)).getBytes());
+        }
+
+        // id 上有 B+ 树索引，按索引顺序读取，读够 limit 行即停止
+        assertEquals("[0]\n[1]\n[2]\n", new String(exe.execute("select id from scores order by id limit 3".getBytes())));
+        assertEquals("[10]\n[11]\n", new String(exe.execute("select id from scores where id > 9 order by id limit 2".getBytes())));
+        assertEquals("IndexOrderScan scores.id limit 3\n", explain(exe, "select id from scores order by id limit 3"));
+
+        // 其余情况排序
+        String res = new String(exe.execute("select score, id from scores order by score desc, id limit 4".getBytes()));
+        assertEquals("[49, 42]\n[49, 92]\n[49, 142]\n[49, 192]\n", res);
+        assert explain(exe, "select * from scores order by score desc, id limit 4").startsWith("TopN scores: order by score desc, id limit 4\n  ");
+        assert explain(exe, "select * from scores order by name").startsWith("ExternalSort scores: order by name\n  ");
+        String[] rows = new String(exe.execute("select name, id from scores where id < 50 order by name, id desc".getBytes())).split("\n");
+        assertEquals(50, rows.length);
+        assertEquals("[n0, 49]", rows[0]);
+        assertEquals("[n9, 0]", rows[49]);
+
+        // 没有 order by 时 limit 只截断结果
+        assertEquals(5, new String(exe.execute("select * from scores limit 5".getBytes())).split("\n").length);
+        assertEquals("", new String(exe.execute("select * from scores where id = 3 limit 0".getBytes())));
+        assertEquals("", new String(exe.execute("select count(*) from scores limit 0".getBytes())));
+        assertEquals(2, new String(exe.execute("select name, count(*) from scores group by name limit 2".getBytes())).split("\n").length);
+        try {
+            exe.execute("select name, count(*) from scores group by name order by name".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Order by is not supported with aggregates!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        exe.execute("create table customers id int32, name string (index id)".getBytes());
+        exe.execute("create table orders oid int64, cid int32, note string (index oid)".getBytes());
+        for (int i = 0; i < 50; i++) {
+            exe.execute(("insert into customers values " + i + " c" + i).getBytes());
+        }
+        for (int i = 0; i < 400; i++) {
+            exe.execute(("insert into orders values " + i + " " + (i % 80) + " o" + i).getBytes());
+        }
+
+        // cid 没有索引，只能哈希连接，客户较少作为构建侧；cid 不小于 50 的订单没有对应的客户
+        String res = new String(exe.execute("select name, oid from orders join customers on cid = id".getBytes()));
+        List<String> rows = Arrays.asList(res.split("\n"));
+        assertEquals(250, rows.size());
+        assert rows.contains("[c7, 87]");
+        assert !rows.contains("[c7, 88]");
+        assert explain(exe, "select * from orders join customers on orders.cid = customers.id")
+            .startsWith("HashJoin orders.cid = customers.id: build customers");
+
+        // 外表只有一行时，在 customers.id 的索引上查找
+        assertEquals("[87, 7, o87, 7, c7]\n", new String(exe.execute(
+            "select * from orders join customers on orders.cid = customers.id where oid = 87".getBytes())));
+        assert explain(exe, "select * from orders join customers on orders.cid = customers.id where oid = 87")
+            .startsWith("IndexNestedLoopJoin orders.cid = customers.id: inner customers");
+
+        // 两个表上的条件用 and 连接时分别下推，用 or 连接时在连接之后检查
+        res = new String(exe.execute("select oid from orders join customers on cid = id where name = c3 and oid > 300".getBytes()));
+        assertEquals(Arrays.asList("[323]"), sorted(res));
+        res = new String(exe.execute("select oid from orders join customers on cid = id where name = c3 or oid = 7".getBytes()));
+        assertEquals(Arrays.asList("[163]", "[243]", "[323]", "[3]", "[7]", "[83]"), sorted(res));
+        assert explain(exe, "select oid from orders join customers on cid = id where name = c3 or oid = 7")
+            .contains(", filter name = c3 or oid = 7");
+        assertEquals(3, new String(exe.execute("select oid from orders join customers on cid = id limit 3".getBytes())).split("\n").length);
+
+        try {
+            exe.execute("select * from orders join customers on cid = name".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Join fields must both be strings or both be integers!", e.getMessage());
+        }
+        exe.execute("create table notes cid int32 (index cid)".getBytes());
+        try {
+            exe.execute("select cid from orders join notes on orders.cid = notes.cid".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Field name is ambiguous!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        exe.execute("create table events id int32, kind int32 (index id)".getBytes());
+        exe.execute("begin".getBytes());
+        for (int i = 0; i < 2500; i++) {
+            exe.execute(("insert into events values " + i + " " + (i % 3)).getBytes());
+        }
+        exe.execute("commit".getBytes());
+
+        // 每批至多 1024 行，过滤之后每批只剩满足条件的行
+        List<Integer> chunks = new ArrayList<>();
+        exe.execute("select id from events".getBytes(), chunk -> chunks.add(new String(chunk).split("\n").length));
+        assertEquals(Arrays.asList(1024, 1024, 452), chunks);
+        chunks.clear();
+        exe.execute("select id from events where kind = 0".getBytes(), chunk -> chunks.add(new String(chunk).split("\n").length));
+        assertEquals(834, chunks.stream().mapToInt(Integer::intValue).sum());
+        // limit 读够之后不再产生下一批
+        chunks.clear();
+        exe.execute("select id from events limit 1030".getBytes(), chunk -> chunks.add(new String(chunk).split("\n").length));
+        assertEquals(Arrays.asList(1024, 6), chunks);
+        // 非查询语句只有一块
+        chunks.clear();
+        exe.execute("delete from events where id > 2400".getBytes(), chunk -> chunks.add(chunk.length));
+        assertEquals(1, chunks.size());
+    }
+
+    private static List<String> sorted(String res) {
+        List<String> rows = new ArrayList<>(Arrays.asList(res.split("\n")));
+        rows.sort(null);
+        return rows;
+    }
+
+    @Test
+    public void testCreateIndexAbort() throws Exception {
+        exe.execute("create table t a int32, b int32, c int64 (index a)".getBytes());
+        for (int i = 0; i < 20; i++) {
+            exe.execute(("insert into t values " + i + " " + (i % 5) + " " + i).getBytes());
+        }
+        // 建立索引不随事务回滚，回滚后内存和磁盘中的表结构一致
+        exe.execute("begin".getBytes());
+        exe.execute("create index on t (b)".getBytes());
+        exe.execute("abort".getBytes());
+        exe.execute("insert into t values 100 3 100".getBytes());
+        assert explain(exe, "select * from t where b = 3").startsWith("IndexScan t.b");
+        assertEquals(5, countRows(exe, "select * from t where b = 3"));
+        reopen();
+        assert explain(exe, "select * from t where b = 3").startsWith("IndexScan t.b");
+        assertEquals(5, countRows(exe, "select * from t where b = 3"));
+
+        // 表上有未提交的修改时不能建立索引，否则这些记录不会出现在索引中，唯一索引也查不出重复
+        Executor other = new Executor(tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into t values 200 7 5".getBytes());
+        try {
+            exe.execute("create unique index on t (c)".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Table has uncommitted changes!", e.getMessage());
+        }
+        other.execute("commit".getBytes());
+        try {
+            exe.execute("create unique index on t (c)".getBytes());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Duplicated key!", e.getMessage());
+        }
+        exe.execute("create index on t (a) include (b)".getBytes());
+        assertEquals("[200, 7]\n", new String(exe.execute("select a, b from t where a = 200".getBytes())));
+        reopen();
+        assertEquals("[200, 7]\n", new String(exe.execute("select a, b from t where a = 200".getBytes())));
+    }
+
+    private String explain(Executor exe, String sql) throws Exception {
+        return new String(exe.execute(("explain " + sql).getBytes()));
+    }
 }
@@ -0,0 +1,66 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AggregatorTest {
+    private static final byte[] TYPES = {RowCodec.INT32, RowCodec.STRING, RowCodec.INT64};
+
+    @Test
+    public void testSpill() throws Exception {
+        // 每组约一百字节，预算只能放下几十个组，需要多次溢出并在分区中合并
+        int noGroups = 5000;
+        Aggregator agg = new Aggregator(TYPES, new int[]{0},
+            new byte[]{Aggregator.COUNT, Aggregator.SUM, Aggregator.MIN, Aggregator.MAX, Aggregator.AVG},
+            new int[]{-1, 2, 1, 2, 2}, new int[]{-1, 0, 1, 2, 3, 4}, 4096);
+        Row row = new Row(TYPES);
+        for(int i = 0; i < noGroups * 4; i ++) {
+            row.set(0, i % noGroups);
+            row.set(1, "s" + (i / noGroups));
+            row.set(2, (long)i);
+            agg.add(row);
+        }
+
+        Map<String, Integer> lines = new HashMap<>();
+        agg.finish(values -> lines.merge(Arrays.toString(values), 1, Integer::sum));
+        assertEquals(noGroups, lines.size());
+        for(int g = 0; g < noGroups; g ++) {
+            long sum = 4L * g + (0 + 1 + 2 + 3) * noGroups;
+            String expected = "[" + g + ", 4, " + sum + ", s0, " + (g + 3 * noGroups) + ", " + (double)sum / 4 + "]";
+            assertEquals(Integer.valueOf(1), lines.get(expected));
+        }
+    }
+
+    @Test
+    public void testStringGroups() throws Exception {
+        Aggregator agg = new Aggregator(TYPES, new int[]{1}, new byte[]{Aggregator.MIN},
+            new int[]{0}, new int[]{0, -1}, 256);
+        Row row = new Row(TYPES);
+        for(int i = 0; i < 1000; i ++) {
+            row.set(0, 1000 - i);
+            row.set(1, "g" + (i % 7));
+            row.set(2, 0L);
+            agg.add(row);
+        }
+        Map<String, Integer> lines = new HashMap<>();
+        agg.finish(values -> lines.merge(Arrays.toString(values), 1, Integer::sum));
+        assertEquals(7, lines.size());
+        // 每组最小的值是该组最后插入的一行
+        for(int k = 0; k < 7; k ++) {
+            int last = 999 - (999 - k) % 7;
+            assertEquals(Integer.valueOf(1), lines.get("[" + (1000 - last) + ", g" + k + "]"));
+        }
+
+        // 没有分组也没有记录时输出一行
+        agg = new Aggregator(TYPES, new int[0], new byte[]{Aggregator.COUNT, Aggregator.MAX},
+            new int[]{-1, 2}, new int[]{0, 1}, 256);
+        StringBuilder sb = new StringBuilder();
+        agg.finish(values -> sb.append(Arrays.toString(values)));
+        assertEquals("[0, null]", sb.toString());
+    }
+}
@@ -0,0 +1,69 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HashJoinTest {
+    private static final byte[] BUILD = {RowCodec.INT32, RowCodec.STRING};
+    private static final byte[] PROBE = {RowCodec.INT64, RowCodec.INT64};
+
+    @Test
+    public void testSpill() throws Exception {
+        // 预算只能放下几十行，构建侧需要溢出，分区中仍然超过预算的继续划分
+        int n = 5000;
+        HashJoin join = new HashJoin(BUILD, 0, new boolean[]{true, true}, PROBE, 0, new boolean[]{true, true}, 2048);
+        Map<Long, Integer> matched = new HashMap<>();
+        boolean done = join.join(c -> {
+            Row row = new Row(BUILD);
+            for(int i = 0; i < n; i ++) {
+                row.set(0, i);
+                row.set(1, "b" + i);
+                c.accept(row);
+            }
+        }, c -> {
+            Row row = new Row(PROBE);
+            for(int i = 0; i < 3 * n; i ++) {
+                row.set(0, (long)(i % (2 * n)));
+                row.set(1, (long)i);
+                c.accept(row);
+            }
+        }, (b, p) -> {
+            assertEquals(b.longs[0], p.longs[0]);
+            assertEquals("b" + b.longs[0], b.strs[1]);
+            matched.merge(p.longs[1], 1, Integer::sum);
+            return true;
+        });
+        assert done;
+        // 探测侧的值 0 到 n-1 出现两次，n 到 2n-1 出现一次且没有匹配
+        assertEquals(2 * n, matched.size());
+        for (Map.Entry<Long, Integer> e : matched.entrySet()) {
+            assertEquals(Integer.valueOf(1), e.getValue());
+            assert e.getKey() % (2 * n) < n;
+        }
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        HashJoin join = new HashJoin(BUILD, 1, new boolean[]{false, true}, BUILD, 1, new boolean[]{false, true}, 1 << 20);
+        int[] count = new int[1];
+        boolean done = join.join(c -> {
+            Row row = new Row(BUILD);
+            for(int i = 0; i < 10; i ++) {
+                row.set(1, "k" + (i % 2));
+                c.accept(row);
+            }
+        }, c -> {
+            Row row = new Row(BUILD);
+            row.set(1, "k1");
+            c.accept(row);
+            row.set(1, "k2");
+            c.accept(row);
+        }, (b, p) -> ++ count[0] < 3);
+        assert !done;
+        assertEquals(3, count[0]);
+    }
+}
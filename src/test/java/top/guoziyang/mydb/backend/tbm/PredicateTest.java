@@ -0,0 +1,77 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PredicateTest {
+    private static final byte[] TYPES = {RowCodec.INT32, RowCodec.INT64, RowCodec.STRING};
+
+    private Batch batch(int n, Random random) {
+        Batch batch = new Batch(TYPES);
+        Row row = new Row(TYPES);
+        for(int i = 0; i < n; i ++) {
+            row.set(0, random.nextInt(100));
+            row.set(1, (long)random.nextInt(1000) - 500);
+            row.set(2, "s" + random.nextInt(50));
+            batch.add(row);
+        }
+        return batch;
+    }
+
+    // 与编译的条件相同的逐行检查：(a < 30 or b > 200) and (c like 's1%' or (a = 50 and c > 's3'))
+    private boolean match(Batch batch, int i) {
+        long a = batch.longs[0][i];
+        long b = batch.longs[1][i];
+        String c = batch.strs[2][i];
+        return (a < 30 || b > 200) && (c.startsWith("s1") || (a == 50 && c.compareTo("s3") > 0));
+    }
+
+    private Predicate tree() {
+        return new Predicate.And(
+            new Predicate.Or(new Predicate.LongCompare(0, "<", 30), new Predicate.LongCompare(1, ">", 200)),
+            new Predicate.Or(new Predicate.Like(2, "s1%"),
+                new Predicate.And(new Predicate.LongCompare(0, "=", 50), new Predicate.StringCompare(2, ">", "s3"))));
+    }
+
+    @Test
+    public void testTree() {
+        Random random = new Random(7);
+        Predicate p = tree();
+        for(int round = 0; round < 20; round ++) {
+            Batch batch = batch(Batch.CAPACITY, random);
+            // 选择向量中先去掉一部分行，被去掉的行不能再被选中
+            int count = 0;
+            for(int i = 0; i < batch.size; i ++) {
+                if(i % 3 != 0) batch.sel[count ++] = i;
+            }
+            int n = p.filter(batch, batch.sel, count);
+            int expected = 0;
+            for(int i = 0; i < batch.size; i ++) {
+                if(i % 3 == 0 || !match(batch, i)) continue;
+                assertEquals(i, batch.sel[expected ++]);
+            }
+            assertEquals(expected, n);
+        }
+    }
+
+    @Test
+    public void testOr() {
+        Batch batch = batch(10, new Random(1));
+        for(int i = 0; i < 10; i ++) {
+            batch.longs[0][i] = i;
+        }
+        // 两边选中的行有重叠，结果中每行只出现一次
+        Predicate p = new Predicate.Or(new Predicate.LongCompare(0, "<", 6), new Predicate.LongCompare(0, ">", 3));
+        assertEquals(10, p.filter(batch, batch.sel, batch.count));
+        p = new Predicate.Or(new Predicate.LongCompare(0, "=", 7), new Predicate.LongCompare(0, "<", 2));
+        int n = p.filter(batch, batch.sel, batch.count);
+        assertEquals(3, n);
+        assertEquals(0, batch.sel[0]);
+        assertEquals(1, batch.sel[1]);
+        assertEquals(7, batch.sel[2]);
+        assertEquals(0, new Predicate.None().filter(batch, batch.sel, n));
+    }
+}
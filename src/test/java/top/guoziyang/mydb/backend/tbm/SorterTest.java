@@ -0,0 +1,53 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SorterTest {
+    private static final byte[] TYPES = {RowCodec.INT32, RowCodec.STRING, RowCodec.INT64};
+
+    @Test
+    public void testExternalSort() throws Exception {
+        // 预算只能放下几十条记录，写出上百个有序段，需要先分批归并
+        Sorter sorter = new Sorter(TYPES, new int[]{1, 2}, new boolean[]{false, true}, -1, 4096);
+        Row row = new Row(TYPES);
+        int n = 10000;
+        for(int i = 0; i < n; i ++) {
+            row.set(0, i);
+            row.set(1, "k" + (i * 7919 % 13));
+            row.set(2, (long)(i * 31 % n));
+            sorter.add(row, new String[]{row.strs[1], String.valueOf(row.longs[2])});
+        }
+        List<String> lines = new ArrayList<>();
+        sorter.finish(values -> lines.add(values[0] + " " + values[1]));
+        assertEquals(n, lines.size());
+        for(int i = 1; i < n; i ++) {
+            String[] a = lines.get(i - 1).split(" "), b = lines.get(i).split(" ");
+            int c = a[0].compareTo(b[0]);
+            assert c < 0 || c == 0 && Long.parseLong(a[1]) > Long.parseLong(b[1]);
+        }
+    }
+
+    @Test
+    public void testTopN() throws Exception {
+        Sorter sorter = new Sorter(TYPES, new int[]{0}, new boolean[]{true}, 3, 4096);
+        Row row = new Row(TYPES);
+        for(int i = 0; i < 1000; i ++) {
+            row.set(0, i * 37 % 1000);
+            if(sorter.wants(row)) {
+                sorter.add(row, new String[]{String.valueOf(row.longs[0])});
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sorter.finish(values -> sb.append(values[0]).append(","));
+        assertEquals("999,998,997,", sb.toString());
+
+        sorter = new Sorter(TYPES, new int[]{0}, new boolean[]{false}, 0, 4096);
+        row.set(0, 1);
+        assert !sorter.wants(row);
+    }
+}
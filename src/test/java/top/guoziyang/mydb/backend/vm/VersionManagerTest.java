@@ -0,0 +1,183 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.Segment;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+
+public class VersionManagerTest {
+
+    @Test
+    public void testUpdateChain() throws Exception {
+        String path = "/tmp/TestVMUpdate";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*10, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        long x0 = vm.begin(0);
+        long uid = vm.insert(x0, "aaaa".getBytes());
+        vm.commit(x0);
+
+        long reader = vm.begin(1);
+
+        long x1 = vm.begin(0);
+        assert vm.update(x1, uid, "bb".getBytes()) == uid;
+        assert Arrays.equals(vm.read(x1, uid), "bb".getBytes());
+        assert Arrays.equals(vm.read(reader, uid), "aaaa".getBytes());
+        // 不拷贝的读取只看到数据的实际长度，版本头的容量仍是 4
+        assert Arrays.equals(view(vm, x1, uid), "bb".getBytes());
+        assert Arrays.equals(view(vm, reader, uid), "aaaa".getBytes());
+        vm.commit(x1);
+
+        long x2 = vm.begin(0);
+        assert Arrays.equals(vm.read(x2, uid), "bb".getBytes());
+        assert vm.update(x2, uid, "cccc".getBytes()) == uid;
+        vm.abort(x2);
+
+        long x3 = vm.begin(0);
+        assert Arrays.equals(vm.read(x3, uid), "bb".getBytes());
+        long moved = vm.update(x3, uid, "dddddddd".getBytes());
+        assert moved != uid;
+        vm.commit(x3);
+
+        long x4 = vm.begin(0);
+        assert vm.read(x4, uid) == null;
+        assert !vm.read(x4, uid, (raw, start, end) -> { throw new AssertionError(); });
+        assert Arrays.equals(vm.read(x4, moved), "dddddddd".getBytes());
+        vm.commit(x4);
+
+        assert Arrays.equals(vm.read(reader, uid), "aaaa".getBytes());
+        vm.commit(reader);
+
+        // 撤销删除之后记录仍然存在
+        long x5 = vm.begin(0);
+        assert vm.delete(x5, moved);
+        vm.undelete(x5, moved);
+        assert Arrays.equals(vm.read(x5, moved), "dddddddd".getBytes());
+        vm.commit(x5);
+        long x6 = vm.begin(0);
+        assert Arrays.equals(vm.read(x6, moved), "dddddddd".getBytes());
+        vm.commit(x6);
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    private static byte[] view(VersionManager vm, long xid, long uid) throws Exception {
+        List<byte[]> out = new ArrayList<>();
+        if(!vm.read(xid, uid, (raw, start, end) -> out.add(Arrays.copyOfRange(raw, start, end)))) {
+            return null;
+        }
+        return out.get(0);
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        String path = "/tmp/TestVMVacuum";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*10, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        long x0 = vm.begin(0);
+        long uid = vm.insert(x0, "aaaa".getBytes());
+        long dead = vm.insert(x0, "dead".getBytes());
+        vm.commit(x0);
+
+        long reader = vm.begin(1);
+
+        long x1 = vm.begin(0);
+        vm.update(x1, uid, "bbbb".getBytes());
+        vm.delete(x1, dead);
+        vm.commit(x1);
+
+        long x2 = vm.begin(0);
+        long aborted = vm.insert(x2, "cccc".getBytes());
+        vm.abort(x2);
+
+        // 回滚事务插入的记录可以立即回收，其余版本仍对 reader 可见
+        assert vm.vacuum() == 1;
+        assert dm.read(aborted) == null;
+        assert Arrays.equals(vm.read(reader, uid), "aaaa".getBytes());
+        assert Arrays.equals(vm.read(reader, dead), "dead".getBytes());
+        vm.commit(reader);
+
+        // undo 记录和被删除的记录都被回收
+        assert vm.vacuum() == 2;
+        assert dm.read(dead) == null;
+        long x3 = vm.begin(1);
+        assert Arrays.equals(vm.read(x3, uid), "bbbb".getBytes());
+        vm.commit(x3);
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuumAfterRestart() throws Exception {
+        String path = "/tmp/TestVMRestart";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*10, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        Segment seg = dm.createSegment();
+
+        long x0 = vm.begin(0);
+        long uid = vm.insert(x0, "aaaa".getBytes(), seg);
+        long dead = vm.insert(x0, "dead".getBytes(), seg);
+        vm.commit(x0);
+        long x1 = vm.begin(0);
+        vm.update(x1, uid, "bbbb".getBytes(), seg);
+        vm.delete(x1, dead);
+        vm.commit(x1);
+        long x2 = vm.begin(0);
+        vm.update(x2, uid, "cccc".getBytes(), seg);
+        vm.abort(x2);
+        // 没有执行 vacuum 就关闭，待回收队列丢失
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, PageCache.PAGE_SIZE*10, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        seg = dm.loadSegment(seg.getUid());
+        List<Long> purged = new ArrayList<>();
+        vm.vacuumSegment(seg, new VacuumListener() {
+            @Override
+            public void purge(long u, byte[] data) {
+                purged.add(u);
+            }
+
+            @Override
+            public long[] overflows(byte[] data) {
+                return new long[0];
+            }
+        });
+
+        // 被删除的记录、提交事务的 undo 记录、回滚事务的 undo 记录都被回收
+        assert vm.vacuum() == 3;
+        assert purged.equals(Arrays.asList(dead));
+        assert dm.read(dead) == null;
+        long x3 = vm.begin(0);
+        assert Arrays.equals(vm.read(x3, uid), "bbbb".getBytes());
+        vm.commit(x3);
+        assert vm.vacuum() == 0;
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+}
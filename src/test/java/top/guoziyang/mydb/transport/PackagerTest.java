@@ -39,4 +39,13 @@ public class PackagerTest {
         Package three = p.receive();
         assert "pkg3 test".equals(new String(three.getData()));
     }
+
+    @Test
+    public void testPartial() throws Exception {
+        Encoder e = new Encoder();
+        Package part = e.decode(e.encode(Package.partial("rows".getBytes())));
+        assert part.isPartial() && "rows".equals(new String(part.getData()));
+        Package last = e.decode(e.encode(new Package(new byte[0], null)));
+        assert !last.isPartial() && last.getData().length == 0;
+    }
 }